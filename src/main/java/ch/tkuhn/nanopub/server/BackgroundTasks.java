@@ -0,0 +1,136 @@
+package ch.tkuhn.nanopub.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import ch.tkuhn.nanopub.server.storage.PackageCachePopulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Runs peer scanning, file loading and package warming on fixed schedules. Each task has its own
+ * scheduler thread with its own priority, so a task never runs twice at the same time and a long
+ * run of one task doesn't delay the others. A run of peer scanning or file loading that shows no
+ * sign of life for 7 days is interrupted, so that the next run can start. Started and stopped with
+ * the servlet context.
+ */
+public class BackgroundTasks {
+
+	private static BackgroundTasks obj = new BackgroundTasks();
+
+	public static BackgroundTasks get() {
+		return obj;
+	}
+
+	private static final long maxSilentMs = 7L * 24 * 60 * 60 * 1000;
+	private static final long checkSilentIntervalMs = 60 * 60 * 1000;
+
+	/**
+	 * Implemented by tasks that report signs of life, so that a hanging run can be interrupted.
+	 */
+	interface Monitored extends Runnable {
+		long getAliveAtTime();
+	}
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final List<ScheduledExecutorService> schedulers = new ArrayList<>();
+	private final Map<Monitored,Thread> monitoredRuns = new ConcurrentHashMap<>();
+
+	private BackgroundTasks() {
+	}
+
+	public synchronized void start() {
+		if (!schedulers.isEmpty()) return;
+		ServerConf conf = ServerConf.get();
+		if (conf.isPeerScanEnabled()) {
+			long delay = conf.getWaitMsBeforePeerScan();
+			schedule("peer-scan", Thread.NORM_PRIORITY, delay, delay, () -> runMonitored(new ScanPeers()));
+		}
+		if (conf.getLoadDir() != null) {
+			long delay = conf.getWaitMsBeforeFileLoad();
+			schedule("file-load", Thread.NORM_PRIORITY, delay, delay, () -> runMonitored(new LoadFiles()));
+		}
+		if (conf.isPeerScanEnabled() || conf.getLoadDir() != null) {
+			schedule("task-watchdog", Thread.NORM_PRIORITY, checkSilentIntervalMs, checkSilentIntervalMs, this::checkMonitoredRuns);
+		}
+		if (conf.getPackageWarmInterval() > 0) {
+			// Lowest priority, as it only prepares packages that would otherwise be built on request:
+			long delay = conf.getPackageWarmInterval();
+			schedule("package-warm", Thread.MIN_PRIORITY, delay, delay, this::warmPackages);
+		}
+	}
+
+	public synchronized void stop() {
+		for (ScheduledExecutorService s : schedulers) {
+			s.shutdownNow();
+		}
+		schedulers.clear();
+	}
+
+	private void schedule(String name, int priority, long initialDelay, long delay, Runnable task) {
+		logger.info("Schedule task " + name + " every " + delay + "ms");
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat(name).setPriority(priority).setDaemon(true).build());
+		Timer timer = Metrics.timer("nanopub.task.duration", "task", name);
+		// The delay counts from the end of the previous run:
+		scheduler.scheduleWithFixedDelay(() -> {
+			long startTime = System.nanoTime();
+			try {
+				task.run();
+			} catch (Exception ex) {
+				// Has to be caught, as it would stop all further runs:
+				logger.error("Task " + name + " failed", ex);
+				Metrics.counter("nanopub.task.failures", "task", name).increment();
+			} finally {
+				timer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+			}
+		}, initialDelay, delay, TimeUnit.MILLISECONDS);
+		schedulers.add(scheduler);
+	}
+
+	private void runMonitored(Monitored task) {
+		monitoredRuns.put(task, Thread.currentThread());
+		try {
+			task.run();
+		} finally {
+			monitoredRuns.remove(task);
+		}
+	}
+
+	private void checkMonitoredRuns() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Monitored,Thread> e : monitoredRuns.entrySet()) {
+			if (e.getKey().getAliveAtTime() + maxSilentMs >= now) continue;
+			logger.info("No sign of life of task " + e.getValue().getName() + " for 7 days; interrupting");
+			if (monitoredRuns.remove(e.getKey()) != null) {
+				e.getValue().interrupt();
+			}
+		}
+	}
+
+	private void warmPackages() {
+		ServerConf conf = ServerConf.get();
+		try {
+			new PackageCachePopulator(NanopubStorageFactory.getInstance(), conf.getPackagePopulateParallelism(),
+					new File(conf.getPackagePopulateCheckpoint())).run();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to warm package cache", ex);
+		}
+	}
+
+}
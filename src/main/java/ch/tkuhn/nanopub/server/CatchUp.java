@@ -0,0 +1,125 @@
+package ch.tkuhn.nanopub.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Catches up with a journal that several peers hold (same journal id, page size and patterns) by
+ * loading disjoint pages from all of them at the same time. Each peer gets a worker that takes the
+ * lowest page that is not yet taken. Nanopubs that are already stored or being loaded are skipped.
+ * The peer state of all these peers is moved forward to the end of the pages that were loaded
+ * without gaps; the incomplete last page is left to the normal peer scan.
+ */
+public class CatchUp {
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final List<ServerInfo> peers;
+	private final ScanPeers parent;
+	private final int pageSize;
+	private final long ignoreBeforePos;
+	private final int firstPage;
+	private final int endPage;
+
+	private final PriorityBlockingQueue<Integer> pages = new PriorityBlockingQueue<>();
+	private final SortedSet<Integer> donePages = new TreeSet<>();
+	private int nextUndonePage;
+
+	public CatchUp(List<ServerInfo> peers, ScanPeers parent) {
+		this.peers = peers;
+		this.parent = parent;
+		ServerInfo first = peers.get(0);
+		pageSize = first.getPageSize();
+		long position = 0;
+		long end = Long.MAX_VALUE;
+		for (ServerInfo si : peers) {
+			Pair<Long,Long> state = NanopubStorageFactory.getInstance().getLastSeenPeerState(si.getPublicUrl());
+			if (state != null && state.getLeft() == si.getJournalId()) {
+				position = Math.max(position, state.getRight());
+			}
+			end = Math.min(end, si.getNextNanopubNo());
+		}
+		ignoreBeforePos = position;
+		firstPage = (int) (position / pageSize) + 1;
+		// Only complete pages that all of these peers have:
+		endPage = (int) (end / pageSize);
+		nextUndonePage = firstPage;
+	}
+
+	public int getPageCount() {
+		return Math.max(0, endPage - firstPage + 1);
+	}
+
+	public void run() {
+		logger.info("Catching up with pages " + firstPage + " to " + endPage + " from " + peers.size() + " peers");
+		for (int p = firstPage; p <= endPage; p++) {
+			pages.add(p);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(peers.size(),
+				new ThreadFactoryBuilder().setNameFormat("catch-up-%d").setDaemon(true).build());
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (ServerInfo si : peers) {
+				results.add(executor.submit(() -> loadPagesFrom(si)));
+			}
+			for (Future<?> f : results) {
+				try {
+					f.get();
+				} catch (ExecutionException ex) {
+					logger.error(ex.getMessage(), ex);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.info("Caught up to page " + (nextUndonePage - 1) + " of " + endPage);
+	}
+
+	private void loadPagesFrom(ServerInfo si) {
+		CollectNanopubs collector = new CollectNanopubs(si, parent);
+		Integer page;
+		while ((page = pages.poll()) != null) {
+			if (Thread.currentThread().isInterrupted()) return;
+			try {
+				collector.loadPage(page, false, page == firstPage ? ignoreBeforePos : 0);
+			} catch (Exception ex) {
+				logger.error("Failed to load page " + page + " from " + si.getPublicUrl() + "; leaving it to the other peers", ex);
+				ScanPeers.lastTimeMeasureMap.put(si.getPublicUrl(), Float.MAX_VALUE);
+				// If the other workers are already done, this page is left for the next scan:
+				pages.add(page);
+				return;
+			}
+			pageDone(page);
+		}
+	}
+
+	private synchronized void pageDone(int page) {
+		donePages.add(page);
+		if (page != nextUndonePage) return;
+		while (!donePages.isEmpty() && donePages.first() == nextUndonePage) {
+			donePages.remove(nextUndonePage);
+			nextUndonePage++;
+		}
+		long position = (long) (nextUndonePage - 1) * pageSize;
+		logger.info("Update peer state of " + peers.size() + " peers at position " + position);
+		for (ServerInfo si : peers) {
+			NanopubStorageFactory.getInstance().updatePeerState(si, position);
+		}
+	}
+
+}
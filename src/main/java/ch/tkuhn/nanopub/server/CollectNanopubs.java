@@ -1,30 +1,50 @@
 package ch.tkuhn.nanopub.server;
 
+import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
+import ch.tkuhn.nanopub.server.http.PeerHttpClient;
+import ch.tkuhn.nanopub.server.http.PeerHttpClient.RequestGroup;
+import ch.tkuhn.nanopub.server.storage.IngestPipeline;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.jodah.failsafe.Failsafe;
 import net.jodah.failsafe.RetryPolicy;
 import net.trustyuri.TrustyUriUtils;
 import org.apache.commons.lang.time.StopWatch;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.rdf4j.rio.RDFFormat;
+import org.nanopub.MalformedNanopubException;
 import org.nanopub.MultiNanopubRdfHandler;
 import org.nanopub.MultiNanopubRdfHandler.NanopubHandler;
 import org.nanopub.Nanopub;
 import org.nanopub.NanopubImpl;
-import org.nanopub.extra.server.NanopubServerUtils;
 import org.nanopub.extra.server.NanopubSurfacePattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 public class CollectNanopubs {
@@ -33,6 +53,10 @@ public class CollectNanopubs {
 
     private static NanopubSurfacePattern ourPattern = ServerConf.getInfo().getNanopubSurfacePattern();
 
+    // Artifact codes of nanopubs that are currently being loaded from some peer, so that peers that
+    // are scanned concurrently don't fetch the same nanopubs:
+    private static Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     private RetryPolicy<Object> retryPolicy;
 
@@ -40,13 +64,16 @@ public class CollectNanopubs {
     private ScanPeers parent;
     private int peerPageSize;
     private boolean isFinished = false;
-    private int loaded;
-    private StopWatch watch;
-    private long nextNp;
+
+    // Packages are spooled to temporary files until they are parsed; the ones that are left when
+    // processing stops are deleted:
+    private final Set<File> spooledFiles = ConcurrentHashMap.newKeySet();
+    private volatile boolean discardSpooled = false;
 
     public CollectNanopubs(ServerInfo peerInfo, ScanPeers parent) {
         this.peerInfo = peerInfo;
         this.parent = parent;
+        this.peerPageSize = peerInfo.getPageSize();
         parent.stillAlive();
         this.retryPolicy = new RetryPolicy<>()
                 .withDelay(Duration.ofSeconds(1))
@@ -60,7 +87,6 @@ public class CollectNanopubs {
             int startFromPage = 1;
             long startFromNp = 0;
             long newNanopubsCount;
-            peerPageSize = peerInfo.getPageSize();
             long peerNanopubNo = peerInfo.getNextNanopubNo();
             long peerJid = peerInfo.getJournalId();
             Pair<Long, Long> lastSeenPeerState = NanopubStorageFactory.getInstance().getLastSeenPeerState(peerInfo.getPublicUrl());
@@ -83,20 +109,10 @@ public class CollectNanopubs {
                 logger.info(newNanopubsCount + " nanopubs in total (unknown peer state)");
             }
             int lastPage = (int) (peerNanopubNo / peerPageSize) + 1;
-            long ignoreBeforePos = startFromNp;
             logger.info("Starting from page " + startFromPage + " of " + lastPage);
-            int pageCountThisRun = 0;
-            boolean interrupted = false;
-            for (int p = startFromPage; p <= lastPage; p++) {
-                pageCountThisRun++;
-                if (pageCountThisRun > processPagesPerRun) {
-                    interrupted = true;
-                    break;
-                }
-                processPage(p, p == lastPage, ignoreBeforePos);
-                ignoreBeforePos = 0;
-            }
-            if (interrupted) {
+            int endPage = Math.min(lastPage, startFromPage + processPagesPerRun - 1);
+            processPages(startFromPage, endPage, lastPage, startFromNp);
+            if (endPage < lastPage) {
                 logger.info("To be continued (see if other peers have new nanopubs)");
             } else {
                 logger.info("Done");
@@ -113,87 +129,218 @@ public class CollectNanopubs {
         return isFinished;
     }
 
-    private void processPage(int page, boolean isLastPage, long ignoreBeforePos) throws Exception {
-        parent.stillAlive();
+    /**
+     * Loads a single page and waits until its nanopubs are committed. Returns the position in the
+     * peer's journal after this page. The peer state is not updated.
+     */
+    long loadPage(int page, boolean isLastPage, long ignoreBeforePos) throws Exception {
+        PageWork w = download(page, isLastPage, ignoreBeforePos);
+        try {
+            parse(w);
+            awaitAll(w);
+        } finally {
+            inFlight.removeAll(w.claimed);
+        }
+        recordTime(w);
+        return w.nextNp;
+    }
+
+    // Pages go through three stages: the next page is downloaded in the background while the
+    // current one is parsed (and its nanopubs are submitted for loading), and the previous one is
+    // waited for until it is committed, after which the peer state is updated. The stages are
+    // connected by queues of size one, so no stage gets more than one page ahead.
+    private void processPages(int firstPage, int endPage, int lastPage, long ignoreBeforePos) throws Exception {
+        ExecutorService downloader = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("page-download-%d").setDaemon(true).build());
+        CommitStage commitStage = new CommitStage();
+        Thread commitThread = new Thread(commitStage, "page-commit-" + peerInfo.getPublicUrl());
+        commitThread.setDaemon(true);
+        commitThread.start();
+        // The downloads belong to the requests of this peer scan, so that they are aborted with it:
+        RequestGroup requests = PeerHttpClient.getRequestGroup();
+        try {
+            Future<PageWork> next = downloader.submit(() -> {
+                PeerHttpClient.setRequestGroup(requests);
+                return download(firstPage, firstPage == lastPage, ignoreBeforePos);
+            });
+            for (int p = firstPage; p <= endPage; p++) {
+                PageWork w;
+                try {
+                    w = next.get();
+                } catch (ExecutionException ex) {
+                    throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
+                if (p < endPage) {
+                    final int nextPage = p + 1;
+                    next = downloader.submit(() -> {
+                        PeerHttpClient.setRequestGroup(requests);
+                        return download(nextPage, nextPage == lastPage, 0);
+                    });
+                }
+                try {
+                    parse(w);
+                } catch (Exception ex) {
+                    inFlight.removeAll(w.claimed);
+                    throw ex;
+                }
+                try {
+                    commitStage.handOver(w);
+                } catch (Exception ex) {
+                    inFlight.removeAll(w.claimed);
+                    throw ex;
+                }
+            }
+            commitStage.handOver(endOfPages);
+            commitThread.join();
+            commitStage.checkError();
+        } finally {
+            downloader.shutdownNow();
+            commitThread.interrupt();
+            try {
+                commitThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            // Release the pages that were not committed:
+            PageWork w;
+            while ((w = commitStage.queue.poll()) != null) {
+                inFlight.removeAll(w.claimed);
+            }
+            discardSpooled = true;
+            for (File f : spooledFiles) {
+                deleteSpooled(f);
+            }
+        }
+    }
+
+    // Download stage: gets the list of nanopubs of the page and, if more than a few of them are
+    // new, the entire page as a package.
+    private PageWork download(int page, boolean isLastPage, long ignoreBeforePos) throws Exception {
+        PageWork w = new PageWork(page);
+        w.watch.start();
         logger.info("Process page " + page + " from " + peerInfo.getPublicUrl());
-        loaded = 0;
-        nextNp = (page - 1) * peerPageSize;
-        List<String> toLoad = new ArrayList<>();
+        long nextNp = (page - 1) * peerPageSize;
         boolean downloadAsPackage = false;
         for (String nanopubUri : NanopubServerUtils.loadNanopubUriList(peerInfo, page)) {
             parent.stillAlive();
+            checkInterrupted();
             if (nextNp >= ignoreBeforePos) {
                 String ac = TrustyUriUtils.getArtifactCode(nanopubUri);
                 if (ac != null && ourPattern.matchesUri(nanopubUri) && !NanopubStorageFactory.getInstance().hasNanopub(ac)) {
-                    toLoad.add(ac);
-                    if (!isLastPage && toLoad.size() > 5) {
+                    w.toLoad.add(ac);
+                    if (!isLastPage && w.toLoad.size() > 5) {
                         // Download entire package if more than 5 nanopubs are new
                         downloadAsPackage = true;
-                        nextNp = (page - 1) * peerPageSize;
                         break;
                     }
                 }
             }
             nextNp++;
         }
-        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(5 * 1000).build();
-        HttpClient c = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build();
-        watch = new StopWatch();
-        watch.start();
+        w.nextNp = nextNp;
         if (downloadAsPackage) {
             Failsafe.with(retryPolicy).onFailure(event -> {
                         logger.error("Exception downloadAsPackage -> {} attempts.", event.getAttemptCount());
                     }
-            ).run(
-                    () -> {
-                        logger.info("Download page " + page + " as compressed package...");
-                        HttpGet get = new HttpGet(peerInfo.getPublicUrl() + "package.gz?page=" + page);
-                        get.setHeader("Accept", "application/x-gzip");
-                        HttpResponse resp = c.execute(get);
-
-                        InputStream in = null;
-                        try {
-                            if (wasSuccessful(resp)) {
-                                in = new GZIPInputStream(resp.getEntity().getContent());
-                            } else {
-                                logger.info("Failed. Trying uncompressed package...");
-                                // This is for compability with older versions; to be removed at some point...
-                                get = new HttpGet(peerInfo.getPublicUrl() + "package?page=" + page);
-                                get.setHeader("Accept", "application/trig");
-                                resp = c.execute(get);
-                                if (!wasSuccessful(resp)) {
-                                    logger.error("HTTP request failed: " + resp.getStatusLine().getReasonPhrase());
-                                    recordTime();
-                                    throw new RuntimeException(resp.getStatusLine().getReasonPhrase());
-                                }
-                                in = resp.getEntity().getContent();
-                            }
-                            MultiNanopubRdfHandler.process(RDFFormat.TRIG, in, new NanopubHandler() {
-                                @Override
-                                public void handleNanopub(Nanopub np) {
-                                    nextNp++;
-                                    if (watch.getTime() > 20 * 60 * 1000) {
-                                        // Downloading the whole package should never take more than 5 minutes.
-                                        logger.error("Downloading package took too long; interrupting");
-                                        recordTime();
-                                        throw new RuntimeException("Downloading package took too long; interrupting");
-                                    }
-                                    if (!ourPattern.matchesUri(np.getUri().stringValue())) return;
-                                    try {
-                                        loadNanopub(np);
-                                    } catch (Exception ex) {
-                                        throw new RuntimeException(ex);
-                                    }
-                                }
-                            });
-                        } finally {
-                            if (in != null) in.close();
+            ).run(() -> downloadPackage(w));
+        }
+        return w;
+    }
+
+    private void downloadPackage(PageWork w) throws Exception {
+        PeerHttpClient c = PeerHttpClient.get();
+        logger.info("Download page " + w.page + " as compressed package...");
+        HttpGet get = new HttpGet(peerInfo.getPublicUrl() + "package.gz?page=" + w.page);
+        get.setHeader("Accept", "application/x-gzip");
+        HttpResponse resp = c.execute(get);
+        if (wasSuccessful(resp)) {
+            spool(w, resp);
+            w.packageGzipped = true;
+            return;
+        }
+        logger.info("Failed. Trying uncompressed package...");
+        EntityUtils.consumeQuietly(resp.getEntity());
+        // This is for compability with older versions; to be removed at some point...
+        get = new HttpGet(peerInfo.getPublicUrl() + "package?page=" + w.page);
+        get.setHeader("Accept", "application/trig");
+        resp = c.execute(get);
+        if (!wasSuccessful(resp)) {
+            EntityUtils.consumeQuietly(resp.getEntity());
+            logger.error("HTTP request failed: " + resp.getStatusLine().getReasonPhrase());
+            throw new RuntimeException(resp.getStatusLine().getReasonPhrase());
+        }
+        spool(w, resp);
+        w.packageGzipped = false;
+    }
+
+    // Writes the package to a temporary file, so that large pages aren't held in memory:
+    private void spool(PageWork w, HttpResponse resp) throws Exception {
+        File f = File.createTempFile("nanopub-package-", ".tmp");
+        spooledFiles.add(f);
+        try {
+            if (discardSpooled) throw new InterruptedException("Peer scan stopped");
+            try (InputStream in = resp.getEntity().getContent()) {
+                Files.copy(in, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception ex) {
+            EntityUtils.consumeQuietly(resp.getEntity());
+            deleteSpooled(f);
+            throw ex;
+        }
+        w.packageFile = f;
+    }
+
+    private void deleteSpooled(File f) {
+        f.delete();
+        spooledFiles.remove(f);
+    }
+
+    // Parse stage: parses the downloaded package (or downloads the few new nanopubs one by one)
+    // and submits the nanopubs for loading.
+    private void parse(PageWork w) throws Exception {
+        parent.stillAlive();
+        if (w.packageFile != null) {
+            w.nextNp = (w.page - 1) * peerPageSize;
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(w.packageFile));
+                if (w.packageGzipped) {
+                    in = new GZIPInputStream(in);
+                }
+                MultiNanopubRdfHandler.process(RDFFormat.TRIG, in, new NanopubHandler() {
+                    @Override
+                    public void handleNanopub(Nanopub np) {
+                        w.nextNp++;
+                        if (w.watch.getTime() > 20 * 60 * 1000) {
+                            // Processing the whole package should never take that long.
+                            logger.error("Processing package took too long; interrupting");
+                            throw new RuntimeException("Processing package took too long; interrupting");
                         }
-                    });
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new RuntimeException("Peer scan interrupted");
+                        }
+                        if (!ourPattern.matchesUri(np.getUri().stringValue())) return;
+                        String ac = TrustyUriUtils.getArtifactCode(np.getUri().stringValue());
+                        if (NanopubStorageFactory.getInstance().hasNanopub(ac)) return;
+                        if (!inFlight.add(ac)) return;
+                        w.claimed.add(ac);
+                        // Checked and stored in the background while the package is still being parsed:
+                        w.submitted.add(IngestPipeline.get().submit(np));
+                    }
+                });
+            } finally {
+                if (in != null) in.close();
+                deleteSpooled(w.packageFile);
+                w.packageFile = null;
+            }
         } else {
-
-            logger.info("Download " + toLoad.size() + " nanopubs individually...");
-            for (String ac : toLoad) {
+            PeerHttpClient c = PeerHttpClient.get();
+            for (String ac : w.toLoad) {
+                if (inFlight.add(ac)) w.claimed.add(ac);
+            }
+            logger.info("Download " + w.claimed.size() + " nanopubs individually...");
+            for (String ac : w.claimed) {
+                checkInterrupted();
                 Failsafe.with(retryPolicy).onFailure(event -> {
                             logger.error("Exception download individually -> {} attempts.", event.getAttemptCount());
                         }
@@ -204,35 +351,115 @@ public class CollectNanopubs {
                             get.setHeader("Accept", "application/trig");
                             HttpResponse resp = c.execute(get);
                             if (!wasSuccessful(resp)) {
+                                EntityUtils.consumeQuietly(resp.getEntity());
                                 logger.error("HTTP request failed: " + resp.getStatusLine().getReasonPhrase());
-                                recordTime();
                                 throw new RuntimeException(resp.getStatusLine().getReasonPhrase());
                             }
                             InputStream in = null;
                             try {
                                 in = resp.getEntity().getContent();
-                                loadNanopub(new NanopubImpl(in, RDFFormat.TRIG));
+                                w.submitted.add(IngestPipeline.get().submit(new NanopubImpl(in, RDFFormat.TRIG)));
+                            } catch (MalformedNanopubException ex) {
+                                // Retrying doesn't help:
+                                logger.info("Skip malformed nanopub " + ac + " from " + peerInfo.getPublicUrl() + ": " + ex.getMessage());
                             } finally {
                                 if (in != null) in.close();
                             }
                         });
             }
+        }
+    }
+
+    // Commit stage: waits until the nanopubs of each page are stored, and only then moves the peer
+    // state forward. Pages are handled in order, and it stops at the first failed page.
+    private class CommitStage implements Runnable {
+
+        private final BlockingQueue<PageWork> queue = new ArrayBlockingQueue<>(1);
+        private volatile Exception error;
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    PageWork w = queue.take();
+                    if (w == endOfPages) return;
+                    try {
+                        awaitAll(w);
+                    } finally {
+                        inFlight.removeAll(w.claimed);
+                    }
+                    recordTime(w);
+                    logger.info("Update peer state: " + peerInfo.getPublicUrl() + " at position " + w.nextNp);
+                    NanopubStorageFactory.getInstance().updatePeerState(peerInfo, w.nextNp);
+                }
+            } catch (Exception ex) {
+                error = ex;
+            }
+        }
+
+        // Blocks while the previous page is not yet taken up, unless this stage has failed. If this
+        // throws, the page was not handed over:
+        void handOver(PageWork w) throws Exception {
+            while (!queue.offer(w, 1, TimeUnit.SECONDS)) {
+                checkError();
+            }
+        }
+
+        void checkError() throws Exception {
+            if (error != null) throw error;
+        }
+
+    }
 
+    // Waits until the nanopubs of the page are committed. A nanopub that cannot be loaded (e.g. not
+    // trusty) is skipped, as it would be rejected again on every scan; only storage errors stop the
+    // page.
+    private void awaitAll(PageWork w) throws Exception {
+        for (CompletableFuture<Boolean> f : w.submitted) {
+            try {
+                IngestPipeline.await(f);
+            } catch (NotTrustyNanopubException | OversizedNanopubException | ProtectedNanopubException ex) {
+                logger.info("Skip nanopub from " + peerInfo.getPublicUrl() + ": " + ex.getMessage());
+            }
         }
-        recordTime();
-        logger.info("Update peer state: " + peerInfo.getPublicUrl() + " at position " + nextNp);
-        NanopubStorageFactory.getInstance().updatePeerState(peerInfo, nextNp);
     }
 
-    private void recordTime() {
+    private static final PageWork endOfPages = new PageWork(-1);
+
+    // A page as it moves through the stages:
+    private static class PageWork {
+
+        final int page;
+        final StopWatch watch = new StopWatch();
+        final List<String> toLoad = new ArrayList<>();
+        final List<String> claimed = new ArrayList<>();
+        final List<CompletableFuture<Boolean>> submitted = new ArrayList<>();
+        File packageFile;
+        boolean packageGzipped;
+        long nextNp;
+
+        PageWork(int page) {
+            this.page = page;
+        }
+
+    }
+
+    private void checkInterrupted() throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("Peer scan interrupted");
+        }
+    }
+
+    private void recordTime(PageWork w) {
         try {
-            watch.stop();
+            w.watch.stop();
+            int loaded = w.submitted.size();
             Float avg = null;
             if (loaded > 0) {
-                avg = (float) watch.getTime() / loaded;
+                avg = (float) w.watch.getTime() / loaded;
                 ScanPeers.lastTimeMeasureMap.put(peerInfo.getPublicUrl(), avg);
             }
-            logger.info("Time measurement: " + watch.getTime() + " for " + loaded + " nanopubs (average: " + avg + ")");
+            logger.info("Time measurement: " + w.watch.getTime() + " for " + loaded + " nanopubs (average: " + avg + ")");
         } catch (Exception ex) {
             // ignore
         }
@@ -243,9 +470,4 @@ public class CollectNanopubs {
         return c >= 200 && c < 300;
     }
 
-    private void loadNanopub(Nanopub np) throws Exception {
-        NanopubStorageFactory.getInstance().loadNanopub(np);
-        loaded++;
-    }
-
 }
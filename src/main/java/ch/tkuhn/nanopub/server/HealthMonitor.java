@@ -0,0 +1,120 @@
+package ch.tkuhn.nanopub.server;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Probes the reachability of the storage and the free disk space in the background, so that
+ * requests and commits only read the results of the last probe and never wait for a check.
+ */
+public class HealthMonitor {
+
+	private static final long minFreeBytes = 1000000;
+
+	private static HealthMonitor obj = new HealthMonitor(ServerConf.get().getHealthProbeInterval());
+
+	public static HealthMonitor get() {
+		return obj;
+	}
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final long probeInterval;
+	private final List<File> watchedDirs = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService scheduler;
+
+	// Results of the last probe; the storage counts as accessible until a probe says otherwise:
+	private volatile boolean storageAccessible = true;
+	private volatile boolean diskFull = false;
+	private volatile long lastProbeTime = 0;
+
+	public HealthMonitor(long probeInterval) {
+		this.probeInterval = probeInterval;
+		Metrics.gauge("nanopub.health.ready", this, m -> m.isReady() ? 1 : 0);
+	}
+
+	/**
+	 * Adds a directory whose file system is checked for free space.
+	 */
+	public void watchFreeSpace(File dir) {
+		watchedDirs.add(dir);
+		start();
+	}
+
+	/**
+	 * Starts the background probes, unless they are running already.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("health-monitor").setDaemon(true).build());
+		scheduler.scheduleWithFixedDelay(this::probe, 0, probeInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private void probe() {
+		try {
+			boolean accessible = NanopubStorageFactory.getInstance().isAccessible();
+			if (accessible != storageAccessible) {
+				logger.info("Storage is " + (accessible ? "accessible again" : "not accessible"));
+			}
+			storageAccessible = accessible;
+			boolean full = false;
+			for (File dir : watchedDirs) {
+				if (dir.getFreeSpace() < minFreeBytes) full = true;
+			}
+			if (full != diskFull) {
+				logger.info("Disk is " + (full ? "full" : "no longer full"));
+			}
+			diskFull = full;
+			lastProbeTime = System.currentTimeMillis();
+		} catch (Exception ex) {
+			// Also has to catch runtime exceptions, as they would stop the scheduled probes:
+			logger.error("Health probe failed", ex);
+			storageAccessible = false;
+		}
+	}
+
+	public boolean isStorageAccessible() {
+		return storageAccessible;
+	}
+
+	public boolean isDiskFull() {
+		return diskFull;
+	}
+
+	/**
+	 * Returns true if the last probe found no problems and is recent, i.e. the probes are not
+	 * stuck on an unresponsive storage.
+	 */
+	public boolean isReady() {
+		return storageAccessible && !diskFull && System.currentTimeMillis() - lastProbeTime < 3 * probeInterval;
+	}
+
+	/**
+	 * Returns a short plain text description of the health state.
+	 */
+	public String getStatus() {
+		String s = isReady() ? "ready\n" : "not ready\n";
+		s += "storage: " + (storageAccessible ? "accessible" : "not accessible") + "\n";
+		s += "disk: " + (diskFull ? "full" : "ok") + "\n";
+		if (lastProbeTime == 0) {
+			s += "last probe: none yet\n";
+		} else {
+			s += "last probe: " + (System.currentTimeMillis() - lastProbeTime) + " ms ago\n";
+		}
+		return s;
+	}
+
+}
@@ -1,8 +1,12 @@
 package ch.tkuhn.nanopub.server;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import ch.tkuhn.nanopub.server.storage.IngestPipeline;
+import org.apache.commons.lang3.tuple.Pair;
 import org.nanopub.MultiNanopubRdfHandler;
 import org.nanopub.MultiNanopubRdfHandler.NanopubHandler;
 import org.nanopub.Nanopub;
@@ -11,44 +15,18 @@ import org.eclipse.rdf4j.rio.Rio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class LoadFiles implements Runnable {
+public class LoadFiles implements BackgroundTasks.Monitored {
 
-	private static LoadFiles running;
-	private static Thread thread;
-
-
-	public static synchronized void check() {
-		if (running != null) {
-//			if (running.aliveAtTime + 60 * 60 * 1000 < System.currentTimeMillis()) {
-//				running.logger.info("No sign of life of the daemon for 60 minutes... (the starting of a new one is disabled)");
-//				running.aliveAtTime = System.currentTimeMillis();
-//				return;
-			if (running.aliveAtTime + 7 * 24 * 60 * 60 * 1000 < System.currentTimeMillis()) {
-				running.logger.info("No sign of life of the daemon for 7 days. Starting a new one...");
-				running.aliveAtTime = System.currentTimeMillis();
-				running = null;
-				thread.interrupt();
-			} else {
-				return;
-			}
-		}
-		if (ServerConf.get().getLoadDir() == null) return;
-		try {
-			running = new LoadFiles();
-			thread = new Thread(running);
-			thread.setDaemon(true);
-			thread.start();
-		} catch (Exception ex) {
-			LoggerFactory.getLogger(LoadFiles.class).error(ex.getMessage(), ex);
-		}
-	}
+	// Maximum number of submitted nanopubs to wait for at once:
+	private static final int batchSize = 1000;
 
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
-	private long aliveAtTime;
+	private volatile long aliveAtTime;
 
 	private final File loadDir, processingDir, doneDir;
 
-	private LoadFiles() {
+	// Run by BackgroundTasks on a fixed schedule:
+	LoadFiles() {
 		stillAlive();
 		loadDir = new File(ServerConf.get().getLoadDir());
 		processingDir = new File(loadDir, "processing");
@@ -60,24 +38,13 @@ public class LoadFiles implements Runnable {
 	@Override
 	public void run() {
 		stillAlive();
-		logger.info("Start file loading thread");
-		try {
-			try {
-				int ms = 30000;
-				logger.info("Wait " + ms + "ms...");
-				Thread.sleep(ms);
-			} catch(InterruptedException ex) {
-				Thread.currentThread().interrupt();
-			}
-			checkFilesToLoad();
-		} finally {
-			running = null;
-		}
+		checkFilesToLoad();
 	}
 
 	private void checkFilesToLoad() {
 		logger.info("Check whether there are files to load...");
 		for (File f : loadDir.listFiles()) {
+			if (Thread.currentThread().isInterrupted()) return;
 			stillAlive();
 			if (f.isDirectory()) continue;
 			logger.info("Try to load file: " + f);
@@ -85,18 +52,19 @@ public class LoadFiles implements Runnable {
 				final File processingFile = new File(processingDir, f.getName());
 				f.renameTo(processingFile);
 				RDFFormat format = Rio.getParserFormatForFileName(processingFile.getName()).orElse(null);
+				final List<Pair<Nanopub,CompletableFuture<Boolean>>> batch = new ArrayList<>();
 				MultiNanopubRdfHandler.process(format, processingFile, new NanopubHandler() {
 					@Override
 					public void handleNanopub(Nanopub np) {
 						if (!ServerConf.getInfo().getNanopubSurfacePattern().matchesUri(np.getUri().toString())) return;
-						try {
-							NanopubStorageFactory.getInstance().loadNanopub(np);
-						} catch (Exception ex) {
-							logger.error("Failed to load nanopublication", ex);
+						batch.add(Pair.of(np, IngestPipeline.get().submit(np)));
+						if (batch.size() >= batchSize) {
+							loadBatch(batch);
 						}
 						stillAlive();
 					}
 				});
+				loadBatch(batch);
 				processingFile.renameTo(new File(doneDir, f.getName()));
 				logger.info("File loaded: " + processingFile);
 			} catch (Exception ex) {
@@ -105,8 +73,28 @@ public class LoadFiles implements Runnable {
 		}
 	}
 
+	// Waits for the submitted nanopubs to be stored; the ones that cannot be loaded are skipped:
+	private void loadBatch(List<Pair<Nanopub,CompletableFuture<Boolean>>> batch) {
+		for (Pair<Nanopub,CompletableFuture<Boolean>> p : batch) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new RuntimeException("File loading interrupted");
+			}
+			try {
+				IngestPipeline.await(p.getRight());
+			} catch (Exception ex) {
+				logger.error("Failed to load nanopublication: " + p.getLeft().getUri(), ex);
+			}
+		}
+		batch.clear();
+	}
+
 	private void stillAlive() {
 		aliveAtTime = System.currentTimeMillis();
 	}
 
+	@Override
+	public long getAliveAtTime() {
+		return aliveAtTime;
+	}
+
 }
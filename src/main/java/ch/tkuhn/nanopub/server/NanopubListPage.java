@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import javax.servlet.http.HttpServletResponse;
 
+import ch.tkuhn.nanopub.server.storage.JournalSnapshot;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
 import net.trustyuri.TrustyUriUtils;
 
@@ -23,21 +24,28 @@ public class NanopubListPage extends Page {
 	private final long pageNo;
 	private final long nextNpNo;
 	private final String pageContent;
+	private final boolean complete;
+	private String etag;
 
 	public NanopubListPage(ServerRequest req, HttpServletResponse httpResp) {
 		super(req, httpResp);
-		synchronized(NanopubStorageFactory.getInstance()) {
-			pageSize = NanopubStorageFactory.getInstance().getJournal().getPageSize();
-			lastPage = NanopubStorageFactory.getInstance().getJournal().getCurrentPageNo();
-			nextNpNo = NanopubStorageFactory.getInstance().getNextNanopubNo();
-			String[] paramValues = req.getHttpRequest().getParameterValues("page");
-			if (paramValues != null && paramValues.length > 0) {
-				pageNo = Integer.parseInt(paramValues[0]);
-			} else {
-				pageNo = lastPage;
-			}
-			pageContent = NanopubStorageFactory.getInstance().getJournal().getPageContent(pageNo);
-			getResp().addHeader("ETag", "W/\"" + NanopubStorageFactory.getInstance().getJournal().getStateId() + "\"");
+		JournalSnapshot journal = NanopubStorageFactory.getInstance().getJournal().getSnapshot();
+		pageSize = journal.getPageSize();
+		lastPage = journal.getCurrentPageNo();
+		nextNpNo = journal.getNextNanopubNo();
+		String[] paramValues = req.getHttpRequest().getParameterValues("page");
+		if (paramValues != null && paramValues.length > 0) {
+			pageNo = Integer.parseInt(paramValues[0]);
+		} else {
+			pageNo = lastPage;
+		}
+		pageContent = NanopubStorageFactory.getInstance().getJournal().getPageContent(pageNo);
+		// Complete pages never change, but the current one does with every new nanopub:
+		complete = pageNo < lastPage;
+		if (complete) {
+			etag = "\"nanopubs-" + journal.getJournalId() + "-" + pageNo;
+		} else {
+			etag = "W/\"" + journal.getStateId();
 		}
 		setCanonicalLink("/" + PAGE_NAME + "?page=" + pageNo);
 		getResp().addHeader("Link", "<" + PAGE_NAME + "?page=1>; rel=\"start\"");
@@ -54,13 +62,20 @@ public class NanopubListPage extends Page {
 		} else {
 			asHtml = "text/html".equals(getReq().getPresentationFormat());
 		}
+		etag += (asHtml ? "-html" : "") + "\"";
+		getResp().setHeader("Vary", "Accept");
 	}
 
 	public void show() throws IOException {
+		if (checkNotModified(etag, complete)) {
+			return;
+		}
 		printStart();
 		long n = (pageNo-1) * pageSize;
 		for (String uri : pageContent.split("\\n")) {
 			if (uri.isEmpty()) continue;
+			// Entries of a commit that is still in progress are not part of the snapshot:
+			if (n >= nextNpNo) break;
 			printElement(n, uri);
 			n++;
 		}
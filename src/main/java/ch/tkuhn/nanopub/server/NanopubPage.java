@@ -1,5 +1,7 @@
 package ch.tkuhn.nanopub.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.DateFormat;
@@ -10,6 +12,7 @@ import java.util.List;
 import javax.servlet.http.HttpServletResponse;
 
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import ch.tkuhn.nanopub.server.storage.RawNanopub;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Statement;
@@ -45,6 +48,9 @@ public class NanopubPage extends Page {
 	public void show() throws IOException {
 		Nanopub nanopub;
 		String ac = getReq().getArtifactCode();
+		if (showStored(ac)) {
+			return;
+		}
 		try {
 			nanopub = NanopubStorageFactory.getInstance().getNanopub(ac);
 		} catch (Exception ex) {
@@ -97,26 +103,142 @@ public class NanopubPage extends Page {
 			getResp().sendError(400, "Unsuitable RDF format: " + ext);
 			return;
 		}
+		setContentHeaders(ac, format, rf);
+		String etag = getETag(ac, format, rf, false);
+		if (checkNotModified(etag, true)) {
+			return;
+		}
+		String variant = null;
+		if (ext == null && getReq().getPresentationFormat() == null && format == HtmlWriter.HTML_FORMAT && !isIndexNanopub) {
+			variant = RenditionCache.NEGOTIATED;
+		}
+		RenditionCache.Tee tee = null;
+		try {
+			if (getHttpReq().getHeader("Range") != null) {
+				// The length has to be known to serve a range:
+				ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+				render(nanopub, format, bOut);
+				byte[] bytes = bOut.toByteArray();
+				RenditionCache.get().put(ac, format, variant, bytes);
+				writeContent(new ByteArrayInputStream(bytes), bytes.length, etag);
+			} else {
+				tee = RenditionCache.get().tee(ac, format, variant, getResp().getOutputStream());
+				if (tee == null) {
+					render(nanopub, format, getResp().getOutputStream());
+				} else {
+					render(nanopub, format, tee);
+					tee.commit();
+				}
+			}
+		} catch (Exception ex) {
+			getResp().sendError(500, "Internal error: " + ex.getMessage());
+			logger.error(ex.getMessage(), ex);
+		} finally {
+			if (tee != null) tee.discard();
+			closeOutput();
+		}
+	}
+
+	private void render(Nanopub nanopub, RDFFormat format, OutputStream out) throws Exception {
+		if (format == HtmlWriter.HTML_FORMAT) {
+			Nanopub2Html.createHtml(nanopub, out, true);
+		} else {
+			NanopubUtils.writeToStream(nanopub, out, format);
+		}
+	}
+
+	private void setContentHeaders(String ac, RDFFormat format, String rf) {
+		if (getReq().getExtension() == null) {
+			// Representation chosen by content negotiation:
+			getResp().setHeader("Vary", "Accept");
+		}
 		if (rf != null) {
 			getResp().setContentType(rf);
 		} else {
 			getResp().setContentType(format.getDefaultMIMEType());
 			getResp().addHeader("Content-Disposition", "filename=\"" + ac + "." + format.getDefaultFileExtension() + "\"");
 		}
-		OutputStream out = null;
-		try {
-			out = getResp().getOutputStream();
-			if (format == HtmlWriter.HTML_FORMAT) {
-				Nanopub2Html.createHtml(nanopub, out, true);
+	}
+
+	// The stored bytes and a rendition in the same format are different representations, so they
+	// need different strong ETags:
+	private static String getETag(String ac, RDFFormat format, String rf, boolean raw) {
+		return "\"" + ac + "." + format.getDefaultFileExtension() + (rf == null ? "" : "+" + rf) + (raw ? "-raw" : "") + "\"";
+	}
+
+	// Serves the nanopub without parsing it if the stored bytes are in the requested format, or if a
+	// rendition in the requested format has been cached before:
+	private boolean showStored(String ac) throws IOException {
+		String ext = getReq().getExtension();
+		String rf = getReq().getPresentationFormat();
+		RDFFormat format;
+		String variant = null;
+		if (ext != null) {
+			format = Rio.getParserFormatForFileName("np." + ext).orElse(null);
+			if (ext.equals("stnp")) {
+				format = TrustyNanopubUtils.STNP_FORMAT;
+			}
+		} else if (rf != null) {
+			format = HtmlWriter.HTML_FORMAT;
+		} else {
+			String mimeType = Utils.getMimeType(getHttpReq(), "text/html,application/trig,application/x-trig,text/x-nquads,application/trix,application/ld+json,text/plain");
+			if ("text/html".equals(mimeType) || "text/plain".equals(mimeType)) {
+				// Index nanopubs get a page of their own, so only the variant that has been cached
+				// for other nanopubs can be served:
+				format = HtmlWriter.HTML_FORMAT;
+				variant = RenditionCache.NEGOTIATED;
+				if ("text/plain".equals(mimeType)) rf = mimeType;
 			} else {
-				NanopubUtils.writeToStream(nanopub, out, format);
+				format = Rio.getParserFormatForMIMEType(mimeType).orElse(null);
+			}
+		}
+		if (format == null || !format.supportsContexts()) return false;
+		try {
+			String ifNoneMatch = getHttpReq().getHeader("If-None-Match");
+			if (ifNoneMatch != null || getHttpReq().getHeader("If-Modified-Since") != null) {
+				if (!NanopubStorageFactory.getInstance().hasNanopub(ac)) return false;
+				setContentHeaders(ac, format, rf);
+				// Whichever of the two representations the client has is still valid:
+				String rawETag = getETag(ac, format, rf, true);
+				boolean hasRaw = ifNoneMatch != null && matchesETag(ifNoneMatch, rawETag, true);
+				if (checkNotModified(hasRaw ? rawETag : getETag(ac, format, rf, false), true)) return true;
 			}
 		} catch (Exception ex) {
-			getResp().sendError(500, "Internal error: " + ex.getMessage());
 			logger.error(ex.getMessage(), ex);
+			return false;
+		}
+		byte[] bytes = null;
+		boolean isRaw = false;
+		try {
+			if (rf == null && variant == null && !ServerConf.get().isCheckNanopubsOnGetEnabled()) {
+				RawNanopub raw = NanopubStorageFactory.getInstance().getRawNanopub(ac);
+				if (raw != null && format.equals(raw.getFormat())) {
+					bytes = raw.getBytes();
+					isRaw = true;
+				}
+			}
+			if (bytes == null) {
+				bytes = RenditionCache.get().get(ac, format, variant);
+				if (bytes != null && ServerConf.get().isCheckNanopubsOnGetEnabled()) {
+					// Checks the stored nanopub, as it would be checked when rendering it:
+					NanopubStorageFactory.getInstance().getNanopub(ac);
+				}
+			}
+		} catch (Exception ex) {
+			logger.error(ex.getMessage(), ex);
+			return false;
+		}
+		if (bytes == null) return false;
+		String etag = getETag(ac, format, rf, isRaw);
+		setCanonicalLink("/" + ac);
+		setContentHeaders(ac, format, rf);
+		if (checkNotModified(etag, true)) return true;
+		try {
+			writeContent(new ByteArrayInputStream(bytes), bytes.length, etag);
 		} finally {
-			if (out != null) out.close();
+			closeOutput();
 		}
+		return true;
 	}
 
 	private void showIndex(Nanopub np) throws IOException {
@@ -1,5 +1,17 @@
 package ch.tkuhn.nanopub.server;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.tkuhn.nanopub.server.http.PeerHttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
 public class NanopubServerUtils extends org.nanopub.extra.server.NanopubServerUtils {
 
 	// Version numbers have the form MAJOR.MINOR (for example, 0.12 is a newer version than 0.9!)
@@ -10,4 +22,34 @@ public class NanopubServerUtils extends org.nanopub.extra.server.NanopubServerUt
 	public static final String journalVersion = "0.3";
 	public static final int journalVersionValue = getVersionValue(journalVersion);
 
+	// The following methods do the same as the ones of the superclass, but use the pooled client:
+
+	public static List<String> loadPeerList(ServerInfo si) throws IOException {
+		return loadListPooled(si.getPublicUrl() + PeerListPage.PAGE_NAME);
+	}
+
+	public static List<String> loadNanopubUriList(ServerInfo si, int page) throws IOException {
+		return loadListPooled(si.getPublicUrl() + NanopubListPage.PAGE_NAME + "?page=" + page);
+	}
+
+	private static List<String> loadListPooled(String url) throws IOException {
+		HttpGet get = new HttpGet(url);
+		get.setHeader("Accept", "text/plain");
+		try (CloseableHttpResponse resp = PeerHttpClient.get().execute(get)) {
+			int c = resp.getStatusLine().getStatusCode();
+			if (c < 200 || c >= 300) {
+				EntityUtils.consumeQuietly(resp.getEntity());
+				throw new IOException("HTTP request failed: " + url + ": " + resp.getStatusLine().getReasonPhrase());
+			}
+			List<String> list = new ArrayList<>();
+			BufferedReader r = new BufferedReader(new InputStreamReader(resp.getEntity().getContent(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = r.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty()) list.add(line);
+			}
+			return list;
+		}
+	}
+
 }
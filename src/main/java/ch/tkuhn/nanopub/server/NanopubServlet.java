@@ -1,6 +1,7 @@
 package ch.tkuhn.nanopub.server;
 
 import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
+import ch.tkuhn.nanopub.server.storage.IngestPipeline;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
 import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
 import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
@@ -29,6 +30,7 @@ import java.io.OutputStream;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.time.Instant;
+import java.util.Collections;
 
 @Singleton
 public class NanopubServlet extends HttpServlet {
@@ -114,7 +116,15 @@ public class NanopubServlet extends HttpServlet {
                 OutputStream os = resp.getOutputStream();
                 os.write(response.getBytes());
                 os.close();
-            } else if (!NanopubStorageFactory.getInstance().isAccessible()) {
+            } else if (r.getRequestString().equals("ready")) {
+                // Readiness check for load balancers and container orchestration:
+                resp.setStatus(HealthMonitor.get().isReady() ? 200 : 503);
+                resp.setContentType("text/plain");
+                resp.setHeader("Cache-Control", "no-cache");
+                OutputStream os = resp.getOutputStream();
+                os.write(HealthMonitor.get().getStatus().getBytes());
+                os.close();
+            } else if (!HealthMonitor.get().isStorageAccessible()) {
                 // The above (single nanopub) gives a nice 500 error code if Storage is not running,
                 // but the pages below don't. That's why we need this check here.
                 resp.sendError(500, "Storage is not accessible");
@@ -134,12 +144,12 @@ public class NanopubServlet extends HttpServlet {
                 resp.sendError(400, "Invalid GET request: " + r.getFullRequest());
             }
         } finally {
-            resp.getOutputStream().close();
-            req.getInputStream().close();
+            // Async responses (packages and large renditions) are completed by their write listener:
+            if (!req.isAsyncStarted()) {
+                resp.getOutputStream().close();
+                req.getInputStream().close();
+            }
         }
-
-        check();
-
     }
 
     @Override
@@ -162,8 +172,8 @@ public class NanopubServlet extends HttpServlet {
                     if (ServerConf.getInfo().getNanopubSurfacePattern().matchesUri(np.getUri().toString())) {
                         String code = TrustyUriUtils.getArtifactCode(np.getUri().toString());
                         try {
-                            if (NanopubStorageFactory.getInstance().getNanopub(code) == null) {
-                                NanopubStorageFactory.getInstance().loadNanopub(np);
+                            if (!NanopubStorageFactory.getInstance().hasNanopub(code)) {
+                                IngestPipeline.get().load(Collections.singletonList(np));
                             }
                             resp.setHeader("Location", TrustyUriUtils.getArtifactCode(np.getUri().toString()));
                             resp.setStatus(201);
@@ -202,7 +212,6 @@ public class NanopubServlet extends HttpServlet {
             resp.getOutputStream().close();
             req.getInputStream().close();
         }
-        check();
     }
 
     @Override
@@ -214,16 +223,11 @@ public class NanopubServlet extends HttpServlet {
     @Override
     public void init() throws ServletException {
         logger.info("Init");
-        check();
+        HealthMonitor.get().start();
     }
 
     private void setGeneralHeaders(HttpServletResponse resp) {
         resp.setHeader("Access-Control-Allow-Origin", "*");
     }
 
-    private void check() {
-        ScanPeers.check();
-        LoadFiles.check();
-    }
-
 }
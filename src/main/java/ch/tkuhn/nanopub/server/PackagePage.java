@@ -1,8 +1,16 @@
 package ch.tkuhn.nanopub.server;
 
+import ch.tkuhn.nanopub.server.http.AsyncResponseWriter;
+import ch.tkuhn.nanopub.server.storage.JournalSnapshot;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -16,6 +24,10 @@ public class PackagePage extends Page {
 	}
 
 	private long pageNo = -1;
+	private boolean complete;
+	private long currentPageNo;
+	private long journalId;
+	private String stateId;
 
 	public PackagePage(ServerRequest req, HttpServletResponse httpResp) throws IOException {
 		super(req, httpResp);
@@ -23,16 +35,23 @@ public class PackagePage extends Page {
 			getResp().sendError(400, "Invalid extension: " + req.getExtension());
 			return;
 		}
-		synchronized(NanopubStorageFactory.getInstance()) {
-			String[] paramValues = req.getHttpRequest().getParameterValues("page");
-			if (paramValues != null && paramValues.length > 0) {
-				pageNo = Integer.parseInt(paramValues[0]);
-			}
+		String[] paramValues = req.getHttpRequest().getParameterValues("page");
+		if (paramValues != null && paramValues.length > 0) {
+			pageNo = Integer.parseInt(paramValues[0]);
 		}
+		JournalSnapshot journal = NanopubStorageFactory.getInstance().getJournal().getSnapshot();
+		currentPageNo = journal.getCurrentPageNo();
+		complete = pageNo >= 1 && pageNo < currentPageNo;
+		journalId = journal.getJournalId();
+		stateId = journal.getStateId();
 	}
 
 	public void show() throws IOException {
 		try {
+			// Checked here, as errors of the async path can only be reported after the fact:
+			if (pageNo < 1 || pageNo > currentPageNo) {
+				throw new IllegalArgumentException("Not a valid page: " + pageNo);
+			}
 			boolean gzipped;
 			String suppFormats = "application/x-gzip,application/trig,text/plain";
 			String mimeType = Utils.getMimeType(getHttpReq(), suppFormats);
@@ -45,10 +64,67 @@ public class PackagePage extends Page {
 				getResp().addHeader("Content-Disposition", "attachment; filename=\"package" + pageNo + ".trig\"");
 				gzipped = false;
 			}
+			getResp().setHeader("Vary", "Accept");
+			String etag;
+			if (complete) {
+				// Packages of complete pages never change:
+				etag = "\"package-" + journalId + "-" + pageNo + (gzipped ? ".trig.gz" : ".trig") + "\"";
+			} else {
+				etag = "W/\"" + stateId + (gzipped ? "-gz" : "") + "\"";
+			}
+			if (checkNotModified(etag, complete)) {
+				return;
+			}
+			if (complete && sendPackageFile(gzipped, etag)) {
+				return;
+			}
+			if (complete && getHttpReq().getHeader("Range") != null) {
+				// The length has to be known to serve a range, e.g. to resume a download:
+				File tempFile = File.createTempFile("package" + pageNo + "-", ".tmp");
+				try {
+					try (OutputStream out = new FileOutputStream(tempFile)) {
+						NanopubStorageFactory.getInstance().writePackageToStream(pageNo, gzipped, out);
+					}
+					// Can be deleted right away, as it stays readable while it is being sent:
+					writeContent(new FileInputStream(tempFile), tempFile.length(), etag);
+				} finally {
+					tempFile.delete();
+				}
+				return;
+			}
+			if (AsyncResponseWriter.isAvailable(getHttpReq())) {
+				// Produced on the async executor, so that slow clients don't hold a request thread:
+				AsyncResponseWriter.write(getHttpReq(), getResp(), out -> NanopubStorageFactory.getInstance().writePackageToStream(pageNo, gzipped, out));
+				return;
+			}
 			NanopubStorageFactory.getInstance().writePackageToStream(pageNo, gzipped, getResp().getOutputStream());
 		} catch (IllegalArgumentException ex) {
 			getResp().sendError(400, "Invalid argument: " + ex.getMessage());
 		}
 	}
 
+	// Sends the package from a local file if there is one, so that it doesn't need to be spooled:
+	private boolean sendPackageFile(boolean gzipped, String etag) throws IOException {
+		FileInputStream in = NanopubStorageFactory.getInstance().openPackageFile(pageNo);
+		if (in == null) return false;
+		if (gzipped) {
+			writeContent(in, in.getChannel().size(), etag);
+			return true;
+		}
+		// The length of the decompressed package is not known, which is needed for ranges:
+		if (getHttpReq().getHeader("Range") == null && AsyncResponseWriter.isAvailable(getHttpReq())) {
+			InputStream plainIn;
+			try {
+				plainIn = new GZIPInputStream(in, 64 * 1024);
+			} catch (IOException ex) {
+				in.close();
+				throw ex;
+			}
+			AsyncResponseWriter.write(getHttpReq(), getResp(), plainIn);
+			return true;
+		}
+		in.close();
+		return false;
+	}
+
 }
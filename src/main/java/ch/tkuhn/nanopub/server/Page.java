@@ -1,10 +1,14 @@
 package ch.tkuhn.nanopub.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import ch.tkuhn.nanopub.server.http.AsyncResponseWriter;
+import ch.tkuhn.nanopub.server.http.ByteRange;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringEscapeUtils;
 
 public abstract class Page {
@@ -80,4 +84,104 @@ public abstract class Page {
 		httpResp.addHeader("Link", "<" + url + ">; rel=\"canonical\"");
 	}
 
+	/**
+	 * Sets the ETag and caching headers, and sends a 304 response if the client already has this
+	 * representation. Returns true in the latter case. Immutable representations (nanopubs and
+	 * packages of complete pages) can be cached forever, and are never modified, so any copy the
+	 * client has is still valid; the others have to be revalidated.
+	 */
+	public boolean checkNotModified(String etag, boolean immutable) throws IOException {
+		httpResp.setHeader("ETag", etag);
+		if (immutable) {
+			// No Last-Modified, as there is no meaningful date; the strong ETag identifies the content:
+			httpResp.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+		} else {
+			httpResp.setHeader("Cache-Control", "no-cache");
+		}
+		String ifNoneMatch = getHttpReq().getHeader("If-None-Match");
+		boolean notModified;
+		if (ifNoneMatch != null) {
+			notModified = matchesETag(ifNoneMatch, etag, true);
+		} else {
+			// Whenever the client got an immutable representation, it hasn't changed since:
+			notModified = immutable && getDateHeader("If-Modified-Since") >= 0;
+		}
+		if (notModified) {
+			httpResp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		}
+		return notModified;
+	}
+
+	/**
+	 * Writes the content of the given length, or only the byte range that the client asked for
+	 * (unless an If-Range header doesn't match the given strong ETag).
+	 */
+	public void writeContent(InputStream in, long length, String etag) throws IOException {
+		boolean async = false;
+		try {
+			httpResp.setHeader("Accept-Ranges", "bytes");
+			ByteRange range = null;
+			String ifRange = getHttpReq().getHeader("If-Range");
+			if (etag != null && (ifRange == null || matchesETag(ifRange, etag, false))) {
+				range = ByteRange.parse(getHttpReq().getHeader("Range"), length);
+			}
+			if (range == null) {
+				httpResp.setContentLengthLong(length);
+				async = send(in, 0, length);
+			} else if (!range.isSatisfiable()) {
+				httpResp.setHeader("Content-Range", range.getContentRange());
+				httpResp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			} else {
+				httpResp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				httpResp.setHeader("Content-Range", range.getContentRange());
+				httpResp.setContentLengthLong(range.getSize());
+				async = send(in, range.getFirst(), range.getSize());
+			}
+		} finally {
+			if (!async) in.close();
+		}
+	}
+
+	// Large content is sent asynchronously, which closes the stream when done:
+	private boolean send(InputStream in, long offset, long size) throws IOException {
+		if (AsyncResponseWriter.isAvailable(getHttpReq(), size)) {
+			IOUtils.skipFully(in, offset);
+			AsyncResponseWriter.write(getHttpReq(), httpResp, in, size);
+			return true;
+		}
+		IOUtils.copyLarge(in, httpResp.getOutputStream(), offset, size);
+		return false;
+	}
+
+	/**
+	 * Closes the response stream, unless the response is being sent asynchronously.
+	 */
+	public void closeOutput() throws IOException {
+		if (!getHttpReq().isAsyncStarted()) {
+			httpResp.getOutputStream().close();
+		}
+	}
+
+	// Weak comparison for If-None-Match, strong comparison for If-Range:
+	protected static boolean matchesETag(String header, String etag, boolean weak) {
+		if (header.trim().equals("*")) return true;
+		if (!weak && (etag.startsWith("W/") || header.trim().startsWith("W/"))) return false;
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String t : header.split(",")) {
+			t = t.trim();
+			if (weak && t.startsWith("W/")) t = t.substring(2);
+			if (t.equals(opaque)) return true;
+		}
+		return false;
+	}
+
+	private long getDateHeader(String name) {
+		try {
+			return getHttpReq().getDateHeader(name);
+		} catch (IllegalArgumentException ex) {
+			// Invalid dates are ignored
+			return -1;
+		}
+	}
+
 }
@@ -1,19 +1,23 @@
 package ch.tkuhn.nanopub.server;
 
 import ch.tkuhn.nanopub.server.modules.IpfsInjectModule;
+import ch.tkuhn.nanopub.server.modules.LocalInjectModule;
 import ch.tkuhn.nanopub.server.modules.MongoInjectModule;
+import ch.tkuhn.nanopub.server.storage.NanopubStorage;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import ch.tkuhn.nanopub.server.storage.PackageCachePopulator;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import org.apache.commons.lang.NotImplementedException;
 
+import java.io.File;
 import java.io.IOException;
 
 public class PopulatePackageCache {
 	static Injector injector;
 
 
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws IOException, InterruptedException {
 
 
 		if (ServerConf.get().getStorageType().equalsIgnoreCase("mongodb")) {
@@ -22,10 +26,20 @@ public class PopulatePackageCache {
 		} else if (ServerConf.get().getStorageType().equalsIgnoreCase("ipfs")) {
 			injector = Guice
 					.createInjector(new IpfsInjectModule());
+		} else if (ServerConf.get().getStorageType().equalsIgnoreCase("local")) {
+			injector = Guice
+					.createInjector(new LocalInjectModule());
 		} else {
 			throw new NotImplementedException();
 		}
 
-		NanopubStorageFactory.getInstance().populatePackageCache();
+		ServerConf conf = ServerConf.get();
+		NanopubStorage storage = NanopubStorageFactory.getInstance();
+		try {
+			new PackageCachePopulator(storage, conf.getPackagePopulateParallelism(),
+					new File(conf.getPackagePopulateCheckpoint())).run();
+		} finally {
+			storage.close();
+		}
 	}
 }
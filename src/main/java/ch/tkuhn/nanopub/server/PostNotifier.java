@@ -0,0 +1,258 @@
+package ch.tkuhn.nanopub.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.tkuhn.nanopub.server.storage.CommitListener;
+import ch.tkuhn.nanopub.server.storage.PreparedNanopub;
+import ch.tkuhn.nanopub.server.http.PeerHttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.Rio;
+import org.nanopub.NanopubUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Notifies the URLs configured in post.new.nanopubs.to about new nanopubs in the background. New
+ * nanopubs are first written to a queue directory per URL, so that they survive restarts, and are
+ * then posted by one thread per URL over the shared peer connection pool, retrying with exponential
+ * backoff. Nanopubs that the target rejects with a client error (other than 408 and 429) are not
+ * retried but moved to the "rejected" subdirectory of the queue. If post.new.nanopubs.batch.size
+ * is larger than 1, several nanopubs are posted at once as concatenated TriG.
+ */
+public class PostNotifier implements CommitListener {
+
+	private static PostNotifier obj = new PostNotifier();
+
+	public static PostNotifier get() {
+		return obj;
+	}
+
+	private static final long minBackoffMs = 1000;
+	private static final long maxBackoffMs = 10 * 60 * 1000;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final int batchSize = ServerConf.get().getPostBatchSize();
+	private final List<Target> targets = new ArrayList<>();
+
+	private PostNotifier() {
+		for (String postUrl : ServerConf.get().getPostUrls()) {
+			if (Strings.isNullOrEmpty(postUrl)) continue;
+			File dir = new File(ServerConf.get().getPostQueueDir(), Hashing.sha256().hashString(postUrl, StandardCharsets.UTF_8).toString());
+			targets.add(new Target(postUrl, dir));
+		}
+	}
+
+	@Override
+	public void committed(List<PreparedNanopub> nanopubs) {
+		for (Target t : targets) {
+			for (PreparedNanopub np : nanopubs) {
+				try {
+					t.enqueue(np);
+				} catch (IOException ex) {
+					logger.error("Cannot queue nanopub for " + t.url + ": " + np.getUri(), ex);
+				}
+			}
+		}
+	}
+
+
+	private class Target implements Runnable {
+
+		private final String url;
+		private final File dir;
+		// The queued files in queue order, so that the directory is only listed at startup:
+		private final Deque<File> queue = new ArrayDeque<>();
+		private final AtomicInteger queueSize = new AtomicInteger();
+		private long nextNo;
+		// Number of upcoming files to post one by one, after a batch was rejected:
+		private int singlesLeft = 0;
+		private final Timer latency;
+		private final Counter failures;
+		private final Counter rejected;
+
+		Target(String url, File dir) {
+			this.url = url;
+			this.dir = dir;
+			dir.mkdirs();
+			File[] files = getQueuedFiles();
+			queue.addAll(Arrays.asList(files));
+			queueSize.set(files.length);
+			if (files.length > 0) {
+				String lastName = files[files.length - 1].getName();
+				nextNo = Long.parseLong(lastName.substring(0, lastName.indexOf('.'))) + 1;
+			}
+			latency = Metrics.timer("nanopub.post.latency", "target", url);
+			failures = Metrics.counter("nanopub.post.failures", "target", url);
+			rejected = Metrics.counter("nanopub.post.rejected", "target", url);
+			Metrics.gauge("nanopub.post.queue", Tags.of("target", url), queueSize);
+			Thread thread = new Thread(this, "post-notifier-" + targets.size());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		synchronized void enqueue(PreparedNanopub np) throws IOException {
+			String content = np.getContent();
+			RDFFormat format = np.getFormat();
+			if (batchSize > 1 && !format.equals(RDFFormat.TRIG)) {
+				// Only TriG can simply be concatenated when posting several nanopubs at once:
+				try {
+					content = NanopubUtils.writeToString(np.getNanopub(), RDFFormat.TRIG);
+				} catch (RDFHandlerException ex) {
+					throw new IOException(ex);
+				}
+				format = RDFFormat.TRIG;
+			}
+			File file = new File(dir, String.format("%016d.%s", nextNo, format.getDefaultFileExtension()));
+			File tempFile = new File(dir, file.getName() + ".tmp");
+			Files.write(tempFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			nextNo++;
+			queue.add(file);
+			queueSize.incrementAndGet();
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			long backoffMs = minBackoffMs;
+			while (true) {
+				try {
+					List<File> batch = takeBatch();
+					int code = post(batch);
+					if (code >= 200 && code < 300) {
+						long now = System.currentTimeMillis();
+						for (File f : batch) {
+							latency.record(now - f.lastModified(), TimeUnit.MILLISECONDS);
+							f.delete();
+						}
+						remove(batch);
+						backoffMs = minBackoffMs;
+					} else if (code >= 400 && code < 500 && code != 408 && code != 429) {
+						if (batch.size() > 1) {
+							// Find out which of the nanopubs are rejected:
+							setSinglesLeft(batch.size());
+						} else {
+							reject(batch.get(0), code);
+							remove(batch);
+						}
+						backoffMs = minBackoffMs;
+					} else {
+						failures.increment();
+						Thread.sleep(backoffMs);
+						backoffMs = Math.min(backoffMs * 2, maxBackoffMs);
+					}
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+
+		// Waits until there is something in the queue and returns up to batchSize files of the same
+		// format, oldest first:
+		private synchronized List<File> takeBatch() throws InterruptedException {
+			while (queue.isEmpty()) {
+				wait(60 * 1000);
+			}
+			int max = (singlesLeft > 0 ? 1 : batchSize);
+			List<File> batch = new ArrayList<>();
+			String ext = getExtension(queue.peek());
+			for (File f : queue) {
+				if (batch.size() >= max || !getExtension(f).equals(ext)) break;
+				batch.add(f);
+			}
+			return batch;
+		}
+
+		// Removes the given batch, which was taken from the head of the queue:
+		private synchronized void remove(List<File> batch) {
+			for (int i = 0; i < batch.size(); i++) {
+				queue.poll();
+			}
+			queueSize.addAndGet(-batch.size());
+			if (singlesLeft > 0) singlesLeft--;
+		}
+
+		private synchronized void setSinglesLeft(int singlesLeft) {
+			this.singlesLeft = singlesLeft;
+		}
+
+		private void reject(File file, int code) {
+			logger.error("Nanopub rejected by " + url + " with status " + code + ", not retrying: " + file.getName());
+			rejected.increment();
+			try {
+				File rejectedDir = new File(dir, "rejected");
+				rejectedDir.mkdirs();
+				Files.move(file.toPath(), new File(rejectedDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException ex) {
+				logger.error("Cannot move rejected nanopub " + file.getName(), ex);
+				file.delete();
+			}
+		}
+
+		// Returns the HTTP status code, or -1 if the request failed:
+		private int post(List<File> batch) {
+			try {
+				ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+				for (File f : batch) {
+					bOut.write(Files.readAllBytes(f.toPath()));
+					bOut.write('\n');
+				}
+				RDFFormat format = Rio.getParserFormatForFileName(batch.get(0).getName()).orElse(RDFFormat.TRIG);
+				HttpPost post = new HttpPost(url);
+				post.setHeader("Content-Type", format.getDefaultMIMEType());
+				post.setEntity(new ByteArrayEntity(bOut.toByteArray()));
+				try (CloseableHttpResponse response = PeerHttpClient.get().execute(post)) {
+					EntityUtils.consumeQuietly(response.getEntity());
+					int code = response.getStatusLine().getStatusCode();
+					if (code < 200 || code >= 300) {
+						logger.error("Failed to post nanopubs to " + url + ": " + response.getStatusLine().getReasonPhrase());
+					}
+					return code;
+				}
+			} catch (Exception ex) {
+				logger.error("Error while posting nanopubs to " + url, ex);
+			}
+			return -1;
+		}
+
+		private File[] getQueuedFiles() {
+			File[] files = dir.listFiles(f -> f.isFile() && !f.getName().endsWith(".tmp"));
+			if (files == null) return new File[0];
+			// Zero-padded numbers, so the names sort in queue order:
+			Arrays.sort(files);
+			return files;
+		}
+
+		private String getExtension(File f) {
+			return f.getName().substring(f.getName().indexOf('.'));
+		}
+
+	}
+
+}
@@ -0,0 +1,220 @@
+package ch.tkuhn.nanopub.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.nanopub.HtmlWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Persistent cache of rendered representations (HTML and JSON-LD) of nanopubs, keyed by artifact
+ * code and format. As trusty nanopubs never change, cached renditions never become stale. The
+ * cache is filled lazily when a nanopub is rendered for the first time in a format, by copying
+ * the rendition into the cache while it is sent. Other formats are cheap to produce, and large
+ * renditions are not worth the disk space, so they are not cached.
+ */
+public class RenditionCache {
+
+	/**
+	 * Variant of the HTML rendition of a nanopub that is not an index, for requests that leave the
+	 * format to content negotiation (which gets a different page for index nanopubs).
+	 */
+	public static final String NEGOTIATED = "negotiated";
+
+	private static RenditionCache obj = new RenditionCache(ServerConf.get().getRenditionCacheDir(),
+			ServerConf.get().getRenditionCacheMaxBytes());
+
+	public static RenditionCache get() {
+		return obj;
+	}
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final File dir;
+	private final long maxBytes;
+	private final Counter hits = Metrics.counter("nanopub.rendition.cache", "result", "hit");
+	private final Counter misses = Metrics.counter("nanopub.rendition.cache", "result", "miss");
+
+	public RenditionCache(String dir, long maxBytes) {
+		if (dir == null) {
+			this.dir = null;
+		} else {
+			this.dir = new File(dir);
+			this.dir.mkdirs();
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isEnabled() {
+		return dir != null;
+	}
+
+	/**
+	 * Returns true if renditions in the given format are cached.
+	 */
+	public boolean isCached(RDFFormat format) {
+		return isEnabled() && (format == HtmlWriter.HTML_FORMAT || RDFFormat.JSONLD.equals(format));
+	}
+
+	/**
+	 * Returns the cached rendition, or null if there is none (or the format is not cached). The
+	 * variant is null for the plain rendition of the format.
+	 */
+	public byte[] get(String artifactCode, RDFFormat format, String variant) {
+		if (!isCached(format)) return null;
+		File f = getFile(artifactCode, format, variant);
+		if (!f.exists()) {
+			misses.increment();
+			return null;
+		}
+		try {
+			byte[] bytes = Files.readAllBytes(f.toPath());
+			hits.increment();
+			return bytes;
+		} catch (IOException ex) {
+			logger.error("Cannot read cached rendition: " + f, ex);
+			misses.increment();
+			return null;
+		}
+	}
+
+	public void put(String artifactCode, RDFFormat format, String variant, byte[] bytes) {
+		if (!isCached(format) || bytes.length > maxBytes) return;
+		File f = getFile(artifactCode, format, variant);
+		if (f.exists()) return;
+		try {
+			f.getParentFile().mkdirs();
+			File tempFile = File.createTempFile(artifactCode, ".tmp", f.getParentFile());
+			try {
+				Files.write(tempFile.toPath(), bytes);
+				Files.move(tempFile.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tempFile.delete();
+			}
+		} catch (IOException ex) {
+			logger.error("Cannot write cached rendition: " + f, ex);
+		}
+	}
+
+	/**
+	 * Returns a stream that writes to the given one and copies what is written into the cache,
+	 * or null if the rendition is not to be cached. The copy only ends up in the cache if
+	 * {@link Tee#commit} is called after the complete rendition has been written.
+	 */
+	public Tee tee(String artifactCode, RDFFormat format, String variant, OutputStream out) {
+		if (!isCached(format)) return null;
+		File f = getFile(artifactCode, format, variant);
+		if (f.exists()) return null;
+		try {
+			f.getParentFile().mkdirs();
+			File tempFile = File.createTempFile(artifactCode, ".tmp", f.getParentFile());
+			return new Tee(out, f, tempFile);
+		} catch (IOException ex) {
+			logger.error("Cannot write cached rendition: " + f, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Stream that writes to the response and to a temporary file, which is given up as soon as
+	 * the rendition gets too large. Closing it doesn't close the response stream.
+	 */
+	public class Tee extends OutputStream {
+
+		private final OutputStream out;
+		private final File file;
+		private final File tempFile;
+		private OutputStream fileOut;
+		private long count;
+
+		private Tee(OutputStream out, File file, File tempFile) throws IOException {
+			this.out = out;
+			this.file = file;
+			this.tempFile = tempFile;
+			this.fileOut = new FileOutputStream(tempFile);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (fileOut == null) return;
+			count += len;
+			if (count > maxBytes) {
+				discard();
+				return;
+			}
+			try {
+				fileOut.write(b, off, len);
+			} catch (IOException ex) {
+				// Doesn't affect the response:
+				logger.error("Cannot write cached rendition: " + file, ex);
+				discard();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+
+		/**
+		 * Moves the copy into the cache, unless it was given up.
+		 */
+		public void commit() {
+			if (fileOut == null) return;
+			try {
+				fileOut.close();
+				fileOut = null;
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				logger.error("Cannot write cached rendition: " + file, ex);
+			} finally {
+				tempFile.delete();
+			}
+		}
+
+		/**
+		 * Gives up the copy, e.g. if the rendition failed. Does nothing after a commit.
+		 */
+		public void discard() {
+			if (fileOut == null) return;
+			try {
+				fileOut.close();
+			} catch (IOException ex) {
+				logger.debug("Cannot close cached rendition: " + ex.getMessage());
+			}
+			fileOut = null;
+			tempFile.delete();
+		}
+
+	}
+
+	private File getFile(String artifactCode, RDFFormat format, String variant) {
+		if (!artifactCode.matches("[A-Za-z0-9_\\-]{3,}")) {
+			throw new IllegalArgumentException("Invalid artifact code: " + artifactCode);
+		}
+		// Spread files over subdirectories by the first characters after the module ID:
+		File subDir = new File(dir, artifactCode.substring(2, Math.min(4, artifactCode.length())));
+		return new File(subDir, artifactCode + (variant == null ? "" : "." + variant) + "." + format.getDefaultFileExtension());
+	}
+
+}
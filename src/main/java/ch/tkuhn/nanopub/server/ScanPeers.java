@@ -3,76 +3,52 @@ package ch.tkuhn.nanopub.server;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
-import org.apache.http.HttpResponse;
+import ch.tkuhn.nanopub.server.http.PeerHttpClient;
+import ch.tkuhn.nanopub.server.http.PeerHttpClient.RequestGroup;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.nanopub.extra.server.NanopubServerUtils;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ScanPeers implements Runnable {
-
-	private static ScanPeers running;
-	private static Thread thread;
-
-
-	public static synchronized void check() {
-		if (running != null) {
-//			if (running.aliveAtTime + 60 * 60 * 1000 < System.currentTimeMillis()) {
-//				running.logger.info("No sign of life of the daemon for 60 minutes... (the starting of a new one is disabled)");
-//				running.aliveAtTime = System.currentTimeMillis();
-//				return;
-			if (running.aliveAtTime + 7 * 24 * 60 * 60 * 1000 < System.currentTimeMillis()) {
-				running.logger.info("No sign of life of the daemon for 7 days. Starting a new one...");
-				running.aliveAtTime = System.currentTimeMillis();
-				running = null;
-				thread.interrupt();
-			} else {
-				return;
-			}
-		}
-		if (!ServerConf.get().isPeerScanEnabled()) return;
-		running = new ScanPeers();
-		thread = new Thread(running);
-		thread.setDaemon(true);
-		thread.start();
-	}
+public class ScanPeers implements BackgroundTasks.Monitored {
 
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 	private Random random = new Random();
 
-	protected static Map<String,Float> lastTimeMeasureMap = new HashMap<String,Float>();
+	protected static Map<String,Float> lastTimeMeasureMap = new ConcurrentHashMap<String,Float>();
 
 	private boolean peerListsChecked = false;
 	private boolean isFinished = false;
-	private long aliveAtTime;
+	private volatile long aliveAtTime;
 
-	private ScanPeers() {
+	// Run by BackgroundTasks on a fixed schedule:
+	ScanPeers() {
 		stillAlive();
 	}
 
 	@Override
 	public void run() {
 		stillAlive();
-		logger.info("Start peer scanning thread");
-		try {
-			int ms = ServerConf.get().getWaitMsBeforePeerScan();
-			logger.info("Wait " + ms + "ms...");
-			Thread.sleep(ms);
-			while (!isFinished) {
-				collectAndContactPeers();
-			}
-		} catch (InterruptedException ex) {
-			throw new RuntimeException(ex);
-		} finally {
-			running = null;
+		logger.info("Start peer scanning");
+		while (!isFinished && !Thread.currentThread().isInterrupted()) {
+			collectAndContactPeers();
 		}
 	}
 
@@ -89,25 +65,134 @@ public class ScanPeers implements Runnable {
 			logger.info("Collect and contact peers (fast-first ordering)...");
 			Collections.sort(peerUris, fastFirstSorter);
 		}
+		Map<String,ServerInfo> loaded = catchUp(peerUris);
+		int parallelism = ServerConf.get().getPeerScanParallelism();
+		if (parallelism > 1) {
+			contactPeersConcurrently(peerUris, loaded, parallelism);
+			return;
+		}
+		ScheduledExecutorService watchdog = newWatchdog();
+		try {
+			for (String peerUri : peerUris) {
+				if (!contactPeerWithinBudget(peerUri, loaded.get(peerUri), watchdog)) {
+					isFinished = false;
+					break; // start over again
+				}
+				if (Thread.currentThread().isInterrupted()) return;
+			}
+		} finally {
+			watchdog.shutdownNow();
+		}
+	}
+
+	// Groups the peers that hold the same journal, and catches up with each group of several
+	// peers that is far enough ahead of us by loading pages from all of them at once. Returns the
+	// server info loaded per peer, so that it isn't loaded again when the peers are contacted:
+	private Map<String,ServerInfo> catchUp(List<String> peerUris) {
+		Map<String,ServerInfo> loaded = new ConcurrentHashMap<>();
+		int minPages = ServerConf.get().getPeerCatchUpMinPages();
+		if (minPages <= 0) return loaded;
+		Map<String,List<ServerInfo>> groups = new LinkedHashMap<>();
 		for (String peerUri : peerUris) {
-			ServerInfo si = null;
+			stillAlive();
 			try {
-				logger.info("Trying " + peerUri);
-				si = ServerInfo.load(peerUri);
-				checkPeerLists(si);
-				collectNanopubs(si);
+				ServerInfo si = ServerInfo.load(peerUri);
+				loaded.put(peerUri, si);
+				if (!canCollectFrom(si)) continue;
+				String key = si.getJournalId() + " " + si.getPageSize() + " " + si.getUriPattern() + " " + si.getHashPattern();
+				groups.computeIfAbsent(key, k -> new ArrayList<>()).add(si);
 			} catch (Exception ex) {
-				logger.error(ex.getMessage(), ex);
-				if (si != null) {
-					lastTimeMeasureMap.put(si.getPublicUrl(), Float.MAX_VALUE);
+				logger.info("Cannot check peer for catching up: " + peerUri);
+			}
+		}
+		for (List<ServerInfo> group : groups.values()) {
+			if (group.size() < 2) continue;
+			CatchUp c = new CatchUp(group, this);
+			if (c.getPageCount() < minPages) continue;
+			c.run();
+			if (Thread.currentThread().isInterrupted()) break;
+		}
+		return loaded;
+	}
+
+	// Contacts up to the given number of peers at the same time, each within its time budget.
+	private void contactPeersConcurrently(List<String> peerUris, Map<String,ServerInfo> loaded, int parallelism) {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				new ThreadFactoryBuilder().setNameFormat("peer-scan-%d").setDaemon(true).build());
+		ScheduledExecutorService watchdog = newWatchdog();
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (String peerUri : peerUris) {
+				results.add(executor.submit(() -> contactPeerWithinBudget(peerUri, loaded.get(peerUri), watchdog)));
+			}
+			for (Future<Boolean> f : results) {
+				try {
+					if (!f.get()) isFinished = false;
+				} catch (ExecutionException ex) {
+					logger.error(ex.getMessage(), ex);
 				}
-				isFinished = true;
 			}
-			if (!isFinished) break; // start over again
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+			watchdog.shutdownNow();
 		}
 	}
 
-	private void checkPeerLists(ServerInfo si) throws Exception {
+	private ScheduledExecutorService newWatchdog() {
+		return Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("peer-scan-watchdog").setDaemon(true).build());
+	}
+
+	// Contacts the peer on the current thread. When its time budget is used up, the thread is
+	// interrupted and its requests are aborted; the progress made so far is kept in the peer state.
+	private boolean contactPeerWithinBudget(String peerUri, ServerInfo si, ScheduledExecutorService watchdog) {
+		Thread worker = Thread.currentThread();
+		RequestGroup requests = new RequestGroup();
+		PeerHttpClient.setRequestGroup(requests);
+		// Guards the interrupt, so that it can't hit the thread after the peer is done:
+		Object lock = new Object();
+		boolean[] done = { false };
+		ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+			synchronized (lock) {
+				if (done[0]) return;
+				logger.info("Time budget used up for " + peerUri + "; interrupting");
+				requests.abort();
+				worker.interrupt();
+			}
+		}, ServerConf.get().getPeerScanBudgetMs(), TimeUnit.MILLISECONDS);
+		try {
+			return contactPeer(peerUri, si);
+		} finally {
+			timeout.cancel(false);
+			PeerHttpClient.setRequestGroup(null);
+			synchronized (lock) {
+				done[0] = true;
+				// Clear the interrupt of the time budget, but not one that stops the whole scan:
+				if (requests.isAborted()) Thread.interrupted();
+			}
+		}
+	}
+
+	// Returns false if there are more nanopubs to collect from this peer. The server info is loaded
+	// unless it is given:
+	private boolean contactPeer(String peerUri, ServerInfo si) {
+		try {
+			logger.info("Trying " + peerUri);
+			if (si == null) si = ServerInfo.load(peerUri);
+			checkPeerLists(si);
+			return collectNanopubs(si);
+		} catch (Exception ex) {
+			logger.error(ex.getMessage(), ex);
+			if (si != null) {
+				lastTimeMeasureMap.put(si.getPublicUrl(), Float.MAX_VALUE);
+			}
+			return true;
+		}
+	}
+
+	private synchronized void checkPeerLists(ServerInfo si) throws Exception {
 		stillAlive();
 		if (peerListsChecked) return;
 		logger.info("Check peer lists...");
@@ -129,44 +214,51 @@ public class ScanPeers implements Runnable {
 		if (!ServerConf.get().isRunAsLocalServerEnabled() && !myUrl.isEmpty() && !knowsMe && si.isPostPeersEnabled()) {
 			HttpPost post = new HttpPost(si.getPublicUrl() + PeerListPage.PAGE_NAME);
 			post.setEntity(new StringEntity(myUrl));
-			HttpResponse response = HttpClientBuilder.create().build().execute(post);
-			logger.info("Introduced myself to " + si.getPublicUrl() + ": " + response.getStatusLine().getReasonPhrase());
+			try (CloseableHttpResponse response = PeerHttpClient.get().execute(post)) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				logger.info("Introduced myself to " + si.getPublicUrl() + ": " + response.getStatusLine().getReasonPhrase());
+			}
 		}
 
 		peerListsChecked = true;
 	}
 
-	private void collectNanopubs(ServerInfo si) {
+	private boolean collectNanopubs(ServerInfo si) {
 		stillAlive();
+		if (!canCollectFrom(si)) return true;
+		logger.info("Collecting nanopubs...");
+		CollectNanopubs r = new CollectNanopubs(si, this);
+		r.run();
+		return r.isFinished();
+	}
+
+	private boolean canCollectFrom(ServerInfo si) {
 		logger.info("Check if we are interested in more nanopubs...");
 		if (!ServerConf.get().isCollectNanopubsEnabled()) {
 			logger.info("This server doesn't collect nanopubs. Aborting nanopub collection.");
-			isFinished = true;
-			return;
+			return false;
 		}
 		if (NanopubStorageFactory.getInstance().isFull()) {
 			logger.info("This server is full. Aborting nanopub collection.");
-			isFinished = true;
-			return;
+			return false;
 		}
 		logger.info("Check if other server's nanopub subset overlaps with ours...");
 		if (!ServerConf.getInfo().getNanopubSurfacePattern().overlapsWith(si.getNanopubSurfacePattern())) {
 			logger.info("Patters of this and other server don't overlap. Aborting nanopub collection.");
-			isFinished = true;
-			return;
-		}
-		logger.info("Collecting nanopubs...");
-		CollectNanopubs r = new CollectNanopubs(si, this);
-		r.run();
-		if (!r.isFinished()) {
-			isFinished = false;
+			return false;
 		}
+		return true;
 	}
 
 	protected void stillAlive() {
 		aliveAtTime = System.currentTimeMillis();
 	}
 
+	@Override
+	public long getAliveAtTime() {
+		return aliveAtTime;
+	}
+
 
 	private static final FastFirstSorter fastFirstSorter = new FastFirstSorter();
 
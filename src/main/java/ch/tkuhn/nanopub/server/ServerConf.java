@@ -120,7 +120,9 @@ public class ServerConf {
 	}
 
 	public int getWaitMsBeforeFileLoad() {
-		return Integer.parseInt(conf.getProperty("wait.ms.before.file.load"));
+		String s = conf.getProperty("wait.ms.before.file.load");
+		if (Strings.isNullOrEmpty(s)) return 30000;
+		return Integer.parseInt(s.trim());
 	}
 
 	public boolean isLogNanopubLoadingEnabled() {
@@ -154,6 +156,18 @@ public class ServerConf {
 		return postUrls;
 	}
 
+	public int getPostBatchSize() {
+		String s = conf.getProperty("post.new.nanopubs.batch.size");
+		if (Strings.isNullOrEmpty(s)) return 1;
+		return Math.max(1, Integer.parseInt(s.trim()));
+	}
+
+	public String getPostQueueDir() {
+		String dir = conf.getProperty("post.new.nanopubs.queue.dir");
+		if (Strings.isNullOrEmpty(dir)) return "/tmp/nps/post-queue";
+		return dir;
+	}
+
 
 	public String getStorageType() {
 		return conf.getProperty("storage.type").toLowerCase();
@@ -182,6 +196,186 @@ public class ServerConf {
 	}
 
 
+	public int getIpfsMappingFlushCount() {
+		String s = conf.getProperty("ipfs.mapping.flush.count");
+		if (Strings.isNullOrEmpty(s)) return 1000;
+		return Integer.parseInt(s.trim());
+	}
+
+	public long getIpfsMappingFlushInterval() {
+		String s = conf.getProperty("ipfs.mapping.flush.interval.ms");
+		if (Strings.isNullOrEmpty(s)) return 10000;
+		return Long.parseLong(s.trim());
+	}
+
+	public long getChampCacheMaxNodes() {
+		String s = conf.getProperty("champ.cache.max.nodes");
+		if (Strings.isNullOrEmpty(s)) return 50000;
+		return Long.parseLong(s.trim());
+	}
+
+	public long getNanopubCacheMaxWeight() {
+		String s = conf.getProperty("nanopub.cache.max.weight");
+		if (Strings.isNullOrEmpty(s)) return 0;
+		return Long.parseLong(s.trim());
+	}
+
+	public String getPackageBuildDir() {
+		String s = conf.getProperty("package.build.dir");
+		if (Strings.isNullOrEmpty(s)) return "/tmp/nps/package-build";
+		return s.trim();
+	}
+
+	public String getPackageFileCacheDir() {
+		String s = conf.getProperty("package.file.cache.dir");
+		if (Strings.isNullOrEmpty(s)) return "/tmp/nps/package-cache";
+		return s.trim();
+	}
+
+	public long getPackageFileCacheMaxBytes() {
+		String s = conf.getProperty("package.file.cache.max.bytes");
+		if (Strings.isNullOrEmpty(s)) return 0;
+		return Long.parseLong(s.trim());
+	}
+
+	public int getPackagePopulateParallelism() {
+		String s = conf.getProperty("package.populate.parallelism");
+		if (Strings.isNullOrEmpty(s) || Integer.parseInt(s.trim()) <= 0) return Runtime.getRuntime().availableProcessors();
+		return Integer.parseInt(s.trim());
+	}
+
+	public String getPackagePopulateCheckpoint() {
+		String s = conf.getProperty("package.populate.checkpoint");
+		if (Strings.isNullOrEmpty(s)) return "/tmp/nps/populate-package-cache.done";
+		return s.trim();
+	}
+
+	public long getPackageWarmInterval() {
+		String s = conf.getProperty("package.warm.interval.ms");
+		if (Strings.isNullOrEmpty(s)) return 0;
+		return Long.parseLong(s.trim());
+	}
+
+	public String getRenditionCacheDir() {
+		String dir = conf.getProperty("rendition.cache.dir");
+		if (dir != null && dir.isEmpty()) dir = null;
+		return dir;
+	}
+
+	public long getRenditionCacheMaxBytes() {
+		String s = conf.getProperty("rendition.cache.max.bytes");
+		if (Strings.isNullOrEmpty(s)) return 1048576;
+		return Long.parseLong(s.trim());
+	}
+
+	public String getArtifactIndexPath() {
+		String path = conf.getProperty("artifact.index.path");
+		if (Strings.isNullOrEmpty(path)) return "/tmp/nps/artifact-codes.idx";
+		return path;
+	}
+
+	public String getLocalStorageDir() {
+		String dir = conf.getProperty("local.storage.dir");
+		if (Strings.isNullOrEmpty(dir)) return "/tmp/nps/local";
+		return dir;
+	}
+
+	public long getLocalSegmentBytes() {
+		String s = conf.getProperty("local.segment.bytes");
+		if (Strings.isNullOrEmpty(s)) return 268435456L;
+		return Long.parseLong(s.trim());
+	}
+
+	public int getPeerScanParallelism() {
+		String s = conf.getProperty("peer.scan.parallelism");
+		if (Strings.isNullOrEmpty(s)) return 1;
+		return Integer.parseInt(s.trim());
+	}
+
+	public long getPeerScanBudgetMs() {
+		String s = conf.getProperty("peer.scan.budget.ms");
+		if (Strings.isNullOrEmpty(s)) return 600000;
+		return Long.parseLong(s.trim());
+	}
+
+	public int getPeerCatchUpMinPages() {
+		String s = conf.getProperty("peer.catchup.min.pages");
+		if (Strings.isNullOrEmpty(s)) return 0;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getPeerHttpMaxConnectionsPerHost() {
+		String s = conf.getProperty("peer.http.max.connections.per.host");
+		if (Strings.isNullOrEmpty(s)) return 4;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getPeerHttpMaxConnections() {
+		String s = conf.getProperty("peer.http.max.connections");
+		if (Strings.isNullOrEmpty(s)) return 50;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getPeerHttpConnectTimeout() {
+		String s = conf.getProperty("peer.http.connect.timeout.ms");
+		if (Strings.isNullOrEmpty(s)) return 5000;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getPeerHttpSocketTimeout() {
+		String s = conf.getProperty("peer.http.socket.timeout.ms");
+		if (Strings.isNullOrEmpty(s)) return 60000;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getIngestWorkers() {
+		String s = conf.getProperty("ingest.workers");
+		if (Strings.isNullOrEmpty(s) || Integer.parseInt(s.trim()) <= 0) return Runtime.getRuntime().availableProcessors();
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getIngestQueueSize() {
+		String s = conf.getProperty("ingest.queue.size");
+		if (Strings.isNullOrEmpty(s)) return 1000;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getIngestCommitBatchSize() {
+		String s = conf.getProperty("ingest.commit.batch.size");
+		if (Strings.isNullOrEmpty(s)) return 1000;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getAsyncWorkers() {
+		String s = conf.getProperty("async.workers");
+		if (Strings.isNullOrEmpty(s)) return 8;
+		return Integer.parseInt(s.trim());
+	}
+
+	public int getAsyncQueueSize() {
+		String s = conf.getProperty("async.queue.size");
+		if (Strings.isNullOrEmpty(s)) return 100;
+		return Integer.parseInt(s.trim());
+	}
+
+	public long getAsyncMinBytes() {
+		String s = conf.getProperty("async.min.bytes");
+		if (Strings.isNullOrEmpty(s)) return 1048576;
+		return Long.parseLong(s.trim());
+	}
+
+	public long getAsyncTimeout() {
+		String s = conf.getProperty("async.timeout.ms");
+		if (Strings.isNullOrEmpty(s)) return 3600000;
+		return Long.parseLong(s.trim());
+	}
+
+	public long getHealthProbeInterval() {
+		String s = conf.getProperty("health.probe.interval.ms");
+		if (Strings.isNullOrEmpty(s)) return 5000;
+		return Long.parseLong(s.trim());
+	}
+
 	public int getIpfsRetryDelay() {
 		return 1;
 	}
@@ -1,9 +1,18 @@
 package ch.tkuhn.nanopub.server;
 
-import ch.tkuhn.nanopub.server.storage.Journal;
+import ch.tkuhn.nanopub.server.storage.JournalSnapshot;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import ch.tkuhn.nanopub.server.http.PeerHttpClient;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.inject.Singleton;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 
 @Singleton
@@ -12,7 +21,24 @@ public class ServerInfo extends org.nanopub.extra.server.ServerInfo {
 	private static final long serialVersionUID = 3460590224836603269L;
 
 	public static ServerInfo load(String serverUrl) throws ServerInfoException {
-		return (ServerInfo) load(serverUrl, ServerInfo.class);
+		HttpGet get = new HttpGet(serverUrl);
+		get.setHeader("Accept", "application/json");
+		ServerInfo si;
+		try (CloseableHttpResponse resp = PeerHttpClient.get().execute(get)) {
+			int c = resp.getStatusLine().getStatusCode();
+			if (c < 200 || c >= 300) {
+				EntityUtils.consumeQuietly(resp.getEntity());
+				throw new ServerInfoException(serverUrl);
+			}
+			si = new Gson().fromJson(new InputStreamReader(resp.getEntity().getContent(), StandardCharsets.UTF_8), ServerInfo.class);
+			EntityUtils.consumeQuietly(resp.getEntity());
+		} catch (IOException | JsonParseException ex) {
+			throw new ServerInfoException(serverUrl);
+		}
+		if (si == null || !serverUrl.equals(si.getPublicUrl())) {
+			throw new ServerInfoException(serverUrl);
+		}
+		return si;
 	}
 
 	private transient boolean loadFromDb = false;
@@ -37,10 +63,15 @@ public class ServerInfo extends org.nanopub.extra.server.ServerInfo {
 		loadFromDb = true;
 	}
 
+	// Reads the snapshot of the last commit, so the values don't need locks or storage access:
+	private JournalSnapshot getSnapshot() {
+		return NanopubStorageFactory.getInstance().getJournal().getSnapshot();
+	}
+
 	@Override
 	public int getPageSize() {
 		if (loadFromDb) {
-			pageSize = NanopubStorageFactory.getInstance().getJournal().getPageSize();
+			pageSize = getSnapshot().getPageSize();
 		}
 		return super.getPageSize();
 	}
@@ -48,7 +79,7 @@ public class ServerInfo extends org.nanopub.extra.server.ServerInfo {
 	@Override
 	public long getNextNanopubNo() {
 		if (loadFromDb) {
-			nextNanopubNo = NanopubStorageFactory.getInstance().getNextNanopubNo();
+			nextNanopubNo = getSnapshot().getNextNanopubNo();
 		}
 		return super.getNextNanopubNo();
 	}
@@ -56,7 +87,7 @@ public class ServerInfo extends org.nanopub.extra.server.ServerInfo {
 	@Override
 	public long getJournalId() {
 		if (loadFromDb) {
-			journalId = NanopubStorageFactory.getInstance().getJournal().getJournalId();
+			journalId = getSnapshot().getJournalId();
 		}
 		return super.getJournalId();
 	}
@@ -64,7 +95,7 @@ public class ServerInfo extends org.nanopub.extra.server.ServerInfo {
 	@Override
 	public String getUriPattern() {
 		if (loadFromDb) {
-			uriPattern = NanopubStorageFactory.getInstance().getJournal().getUriPattern();
+			uriPattern = getSnapshot().getUriPattern();
 		}
 		return super.getUriPattern();
 	}
@@ -72,7 +103,7 @@ public class ServerInfo extends org.nanopub.extra.server.ServerInfo {
 	@Override
 	public String getHashPattern() {
 		if (loadFromDb) {
-			hashPattern = NanopubStorageFactory.getInstance().getJournal().getHashPattern();
+			hashPattern = getSnapshot().getHashPattern();
 		}
 		return super.getHashPattern();
 	}
@@ -80,12 +111,12 @@ public class ServerInfo extends org.nanopub.extra.server.ServerInfo {
 	@Override
 	public String asJson() {
 		if (loadFromDb) {
-			Journal j = NanopubStorageFactory.getInstance().getJournal();
-			nextNanopubNo = j.getNextNanopubNo();
-			pageSize = j.getPageSize();
-			journalId = j.getJournalId();
-			uriPattern = j.getUriPattern();
-			hashPattern = j.getHashPattern();
+			JournalSnapshot s = getSnapshot();
+			nextNanopubNo = s.getNextNanopubNo();
+			pageSize = s.getPageSize();
+			journalId = s.getJournalId();
+			uriPattern = s.getUriPattern();
+			hashPattern = s.getHashPattern();
 		}
 		return super.asJson();
 	}
@@ -1,8 +1,12 @@
 package ch.tkuhn.nanopub.server.config;
 
+import ch.tkuhn.nanopub.server.BackgroundTasks;
 import ch.tkuhn.nanopub.server.ServerConf;
 import ch.tkuhn.nanopub.server.modules.IpfsInjectModule;
+import ch.tkuhn.nanopub.server.modules.LocalInjectModule;
 import ch.tkuhn.nanopub.server.modules.MongoInjectModule;
+import ch.tkuhn.nanopub.server.modules.PeerHttpModule;
+import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
@@ -21,10 +25,13 @@ public class GuiceServletConfig extends GuiceServletContextListener {
         Injector injector;
         if (ServerConf.get().getStorageType().equalsIgnoreCase("mongodb")) {
             injector = Guice
-                    .createInjector(new MongoInjectModule());
+                    .createInjector(new MongoInjectModule(), new PeerHttpModule());
         } else if (ServerConf.get().getStorageType().equalsIgnoreCase("ipfs")) {
             injector = Guice
-                    .createInjector(new IpfsInjectModule());
+                    .createInjector(new IpfsInjectModule(), new PeerHttpModule());
+        } else if (ServerConf.get().getStorageType().equalsIgnoreCase("local")) {
+            injector = Guice
+                    .createInjector(new LocalInjectModule(), new PeerHttpModule());
         } else {
             throw new NotImplementedException();
         }
@@ -35,10 +42,13 @@ public class GuiceServletConfig extends GuiceServletContextListener {
     public void contextInitialized(final ServletContextEvent sce) {
         super.contextInitialized(sce);
         logger.info("contextInitialized");
+        BackgroundTasks.get().start();
     }
 
     @Override
     public void contextDestroyed(final ServletContextEvent sce) {
+        BackgroundTasks.get().stop();
+        NanopubStorageFactory.getInstance().close();
         super.contextDestroyed(sce);
         logger.info("contextDestroyed");
     }
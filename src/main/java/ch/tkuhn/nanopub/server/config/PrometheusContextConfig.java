@@ -2,6 +2,7 @@ package ch.tkuhn.nanopub.server.config;
 
 import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.binder.jvm.*;
 import io.micrometer.core.instrument.binder.system.FileDescriptorMetrics;
 import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
@@ -39,6 +40,8 @@ public class PrometheusContextConfig implements ServletContextListener {
 
         new FileDescriptorMetrics().bindTo(meterRegistry);
         new ProcessorMetrics().bindTo(meterRegistry);
+        // Metrics registered by other components on the global registry are published too:
+        Metrics.addRegistry(meterRegistry);
         servletContext.setAttribute("meterRegistry", meterRegistry);
     }
 }
\ No newline at end of file
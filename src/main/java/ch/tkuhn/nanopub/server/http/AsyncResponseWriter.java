@@ -0,0 +1,299 @@
+package ch.tkuhn.nanopub.server.http;
+
+import ch.tkuhn.nanopub.server.ServerConf;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a response body with Servlet 3.1 non-blocking I/O, so that slow clients don't hold a
+ * container thread for the whole download. Content that is not available yet (like a package) is
+ * produced on a bounded executor and spooled to a temporary file, from which a WriteListener
+ * sends it whenever the connection can take more data. Content that is already on local disk is
+ * sent from there without spooling.
+ */
+public class AsyncResponseWriter implements WriteListener, AsyncListener {
+
+    /**
+     * Writes the response body, e.g. the package of a page.
+     */
+    public interface Producer {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static ThreadPoolExecutor executor;
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int workers = ServerConf.get().getAsyncWorkers();
+            executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(ServerConf.get().getAsyncQueueSize()),
+                    new ThreadFactoryBuilder().setNameFormat("async-response-%d").setDaemon(true).build());
+        }
+        return executor;
+    }
+
+    /**
+     * Returns true if the response to the given request can be sent asynchronously.
+     */
+    public static boolean isAvailable(HttpServletRequest req) {
+        return ServerConf.get().getAsyncWorkers() > 0 && req.isAsyncSupported();
+    }
+
+    /**
+     * Returns true if content of the given length should be sent asynchronously.
+     */
+    public static boolean isAvailable(HttpServletRequest req, long length) {
+        return length >= ServerConf.get().getAsyncMinBytes() && isAvailable(req);
+    }
+
+    /**
+     * Sends the given number of bytes from the stream, which has to be readable without blocking
+     * (e.g. a byte array or a local file), and closes it. The response headers have to be set
+     * already.
+     */
+    public static void write(HttpServletRequest req, HttpServletResponse resp, InputStream in, long length) throws IOException {
+        AsyncResponseWriter w = new AsyncResponseWriter(req, resp, null);
+        w.reader = in;
+        w.available.set(length);
+        w.producerDone = true;
+        w.start();
+    }
+
+    /**
+     * Sends the content of the stream up to its end, for content of unknown length that is
+     * readable without blocking (e.g. a local file that is decompressed on the fly), and closes
+     * it. The response headers have to be set already.
+     */
+    public static void write(HttpServletRequest req, HttpServletResponse resp, InputStream in) throws IOException {
+        AsyncResponseWriter w = new AsyncResponseWriter(req, resp, null);
+        w.reader = in;
+        w.available.set(Long.MAX_VALUE);
+        w.untilEnd = true;
+        w.producerDone = true;
+        w.start();
+    }
+
+    /**
+     * Sends what the producer writes. The producer runs on the executor, and the response is
+     * rejected with 503 if too many responses are waiting for it.
+     */
+    public static void write(HttpServletRequest req, HttpServletResponse resp, Producer producer) throws IOException {
+        AsyncResponseWriter w = new AsyncResponseWriter(req, resp, File.createTempFile("response-", ".tmp"));
+        w.reader = new FileInputStream(w.spoolFile);
+        try {
+            getExecutor().execute(() -> w.produce(producer));
+        } catch (RejectedExecutionException ex) {
+            w.reject();
+            return;
+        }
+        w.start();
+    }
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final AsyncContext ctx;
+    private final HttpServletResponse resp;
+    private final File spoolFile;
+    private ServletOutputStream out;
+    private InputStream reader;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    // Number of bytes that can be read from the reader but have not been sent yet:
+    private final AtomicLong available = new AtomicLong();
+    private volatile boolean producerDone;
+    // Set if the reader is read up to its end, as the length is not known:
+    private boolean untilEnd;
+    private volatile IOException producerError;
+    // Set if the producer rejected the request, e.g. for a page that has no package (yet):
+    private volatile IllegalArgumentException producerRejection;
+    // Set when the listener ran out of data while the connection could take more:
+    private volatile boolean waiting;
+    private volatile boolean finished;
+
+    private AsyncResponseWriter(HttpServletRequest req, HttpServletResponse resp, File spoolFile) {
+        this.ctx = req.startAsync();
+        this.resp = resp;
+        this.spoolFile = spoolFile;
+        ctx.setTimeout(ServerConf.get().getAsyncTimeout());
+        ctx.addListener(this);
+    }
+
+    private void start() throws IOException {
+        out = resp.getOutputStream();
+        // The container calls onWritePossible as soon as the listener is set:
+        out.setWriteListener(this);
+    }
+
+    private void produce(Producer producer) {
+        try (OutputStream spoolOut = new BufferedOutputStream(new SpoolOutputStream(new FileOutputStream(spoolFile)), buffer.length)) {
+            producer.writeTo(spoolOut);
+        } catch (IOException ex) {
+            if (!finished) producerError = ex;
+        } catch (IllegalArgumentException ex) {
+            if (!finished) producerRejection = ex;
+        } catch (RuntimeException ex) {
+            if (!finished) producerError = new IOException(ex);
+        }
+        producerDone = true;
+        resume();
+        if (finished) spoolFile.delete();
+    }
+
+    private void resume() {
+        if (!waiting) return;
+        try {
+            drain();
+        } catch (IOException ex) {
+            logger.debug("Async response failed: " + ex.getMessage());
+            abort();
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        drain();
+    }
+
+    private synchronized void drain() throws IOException {
+        if (finished) return;
+        while (out.isReady()) {
+            if (available.get() == 0) {
+                // The producer checks this flag after spooling more data, so the amount is read again:
+                waiting = true;
+                boolean done = producerDone;
+                if (available.get() == 0) {
+                    if (done) finish();
+                    return;
+                }
+                waiting = false;
+            }
+            int n = reader.read(buffer, 0, (int) Math.min(buffer.length, available.get()));
+            if (n < 0 && untilEnd) {
+                finish();
+                return;
+            }
+            if (n < 0) throw new IOException("Unexpected end of response content");
+            available.addAndGet(-n);
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private void finish() throws IOException {
+        cleanUp();
+        if (producerRejection != null) {
+            if (!resp.isCommitted()) sendError(400, "Invalid argument: " + producerRejection.getMessage());
+        } else if (producerError != null) {
+            logger.error("Failed to produce response", producerError);
+            if (!resp.isCommitted()) sendError(500, "Internal error: " + producerError.getMessage());
+        }
+        ctx.complete();
+    }
+
+    private synchronized void reject() throws IOException {
+        cleanUp();
+        sendError(503, "Server busy");
+        ctx.complete();
+    }
+
+    // Drops the headers of the content that could not be sent:
+    private void sendError(int code, String message) throws IOException {
+        resp.reset();
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        if (code == 503) resp.setHeader("Retry-After", "10");
+        resp.sendError(code, message);
+    }
+
+    private synchronized void cleanUp() {
+        if (finished) return;
+        finished = true;
+        try {
+            reader.close();
+        } catch (IOException ex) {
+            logger.debug("Failed to close response content", ex);
+        }
+        if (spoolFile != null) spoolFile.delete();
+    }
+
+    private synchronized void abort() {
+        if (finished) return;
+        cleanUp();
+        ctx.complete();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // Usually the client has gone away; the producer stops at its next write:
+        logger.debug("Async response failed: " + t.getMessage());
+        abort();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        cleanUp();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        logger.info("Async response timed out");
+        abort();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        cleanUp();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private class SpoolOutputStream extends OutputStream {
+
+        private final OutputStream fileOut;
+
+        SpoolOutputStream(OutputStream fileOut) {
+            this.fileOut = fileOut;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) throw new IOException("Response has been closed");
+            fileOut.write(b, off, len);
+            available.addAndGet(len);
+            resume();
+        }
+
+        @Override
+        public void close() throws IOException {
+            fileOut.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,74 @@
+package ch.tkuhn.nanopub.server.http;
+
+/**
+ * Single byte range of a Range request header ("bytes=first-last", "bytes=first-" or
+ * "bytes=-suffixLength"), resolved against the length of the representation.
+ */
+public class ByteRange {
+
+    /**
+     * Returns the requested range, or null if the header is missing, malformed, or asks for
+     * several ranges, in which case the whole representation is sent. The returned range is not
+     * satisfiable if it starts after the end of the representation.
+     */
+    public static ByteRange parse(String header, long length) {
+        if (header == null || !header.startsWith("bytes=")) return null;
+        String spec = header.substring(6).trim();
+        if (spec.contains(",")) return null;
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String firstString = spec.substring(0, dash).trim();
+            String lastString = spec.substring(dash + 1).trim();
+            if (firstString.isEmpty()) {
+                if (lastString.isEmpty()) return null;
+                long suffixLength = Long.parseLong(lastString);
+                if (suffixLength <= 0) return new ByteRange(length, length - 1, length);
+                return new ByteRange(Math.max(0, length - suffixLength), length - 1, length);
+            }
+            long first = Long.parseLong(firstString);
+            if (first < 0) return null;
+            if (lastString.isEmpty()) return new ByteRange(first, length - 1, length);
+            long last = Long.parseLong(lastString);
+            if (last < first) return null;
+            return new ByteRange(first, Math.min(last, length - 1), length);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private final long first;
+    private final long last;
+    private final long length;
+
+    private ByteRange(long first, long last, long length) {
+        this.first = first;
+        this.last = last;
+        this.length = length;
+    }
+
+    public boolean isSatisfiable() {
+        return first < length && first <= last;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getSize() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header for the response.
+     */
+    public String getContentRange() {
+        if (!isSatisfiable()) return "bytes */" + length;
+        return "bytes " + first + "-" + last + "/" + length;
+    }
+
+}
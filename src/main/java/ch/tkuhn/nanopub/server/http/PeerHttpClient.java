@@ -0,0 +1,136 @@
+package ch.tkuhn.nanopub.server.http;
+
+import ch.tkuhn.nanopub.server.ServerConf;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client for all outbound requests to peers (and other servers), backed by one connection
+ * pool, so that connections are kept alive and reused across requests. Requests are timed per
+ * peer host and outcome.
+ *
+ * The response entity of each request has to be consumed or closed, so that its connection is
+ * returned to the pool.
+ *
+ * Requests made by a thread that has joined a {@link RequestGroup} can be aborted together, also
+ * while their response is being read, which interrupting the thread doesn't do.
+ */
+@Singleton
+public class PeerHttpClient {
+
+    @Inject
+    static Provider<PeerHttpClient> provider;
+
+    public static PeerHttpClient get() {
+        return provider.get();
+    }
+
+    private static final ThreadLocal<RequestGroup> requestGroup = new ThreadLocal<>();
+
+    /**
+     * Lets the requests of the current thread belong to the given group, or to no group if null.
+     */
+    public static void setRequestGroup(RequestGroup group) {
+        if (group == null) {
+            requestGroup.remove();
+        } else {
+            requestGroup.set(group);
+        }
+    }
+
+    public static RequestGroup getRequestGroup() {
+        return requestGroup.get();
+    }
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    public PeerHttpClient() {
+        ServerConf conf = ServerConf.get();
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(conf.getPeerHttpMaxConnectionsPerHost());
+        connectionManager.setMaxTotal(conf.getPeerHttpMaxConnections());
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(conf.getPeerHttpConnectTimeout())
+                .setSocketTimeout(conf.getPeerHttpSocketTimeout())
+                .setConnectionRequestTimeout(conf.getPeerHttpSocketTimeout())
+                .build();
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        Metrics.gauge("nanopub.peer.http.connections.leased", connectionManager, m -> m.getTotalStats().getLeased());
+        Metrics.gauge("nanopub.peer.http.connections.available", connectionManager, m -> m.getTotalStats().getAvailable());
+    }
+
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        String peer = request.getURI().getHost();
+        long start = System.nanoTime();
+        String outcome = "error";
+        RequestGroup group = requestGroup.get();
+        try {
+            if (group != null) group.add(request);
+            CloseableHttpResponse response = client.execute(request);
+            outcome = Integer.toString(response.getStatusLine().getStatusCode());
+            return response;
+        } finally {
+            Timer.builder("nanopub.peer.requests")
+                    .tag("peer", peer == null ? "unknown" : peer)
+                    .tag("method", request.getMethod())
+                    .tag("status", outcome)
+                    .register(Metrics.globalRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    /**
+     * Requests that can be aborted together, such as those of a single peer scan. Requests stay
+     * in the group until it is discarded, as their responses can still be read after they return.
+     */
+    public static class RequestGroup {
+
+        private final Set<HttpUriRequest> requests = ConcurrentHashMap.newKeySet();
+        private volatile boolean aborted = false;
+
+        private void add(HttpUriRequest request) throws InterruptedIOException {
+            requests.add(request);
+            // Check afterwards, so that no request escapes a concurrent abort:
+            if (aborted) {
+                request.abort();
+                throw new InterruptedIOException("Request group aborted");
+            }
+        }
+
+        /**
+         * Aborts all current requests of the group and makes new ones fail.
+         */
+        public void abort() {
+            aborted = true;
+            for (HttpUriRequest r : requests) {
+                r.abort();
+            }
+        }
+
+        public boolean isAborted() {
+            return aborted;
+        }
+
+    }
+
+}
@@ -1,16 +1,25 @@
 package ch.tkuhn.nanopub.server.modules;
 
+import ch.tkuhn.nanopub.server.storage.CachingNanopubStorage;
 import ch.tkuhn.nanopub.server.storage.NanopubStorage;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
 import ch.tkuhn.nanopub.server.storage.ipfs.NanopubStorageIpfsImpl;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
 
 public class IpfsInjectModule extends AbstractModule {
 
     @Override
     protected void configure() {
-        bind(NanopubStorage.class).to(NanopubStorageIpfsImpl.class).asEagerSingleton();
+        bind(NanopubStorageIpfsImpl.class).asEagerSingleton();
         requestStaticInjection(NanopubStorageFactory.class);
     }
 
+    @Provides
+    @Singleton
+    NanopubStorage provideNanopubStorage(NanopubStorageIpfsImpl storage) {
+        return CachingNanopubStorage.wrap(storage);
+    }
+
 }
@@ -0,0 +1,25 @@
+package ch.tkuhn.nanopub.server.modules;
+
+import ch.tkuhn.nanopub.server.storage.CachingNanopubStorage;
+import ch.tkuhn.nanopub.server.storage.NanopubStorage;
+import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
+import ch.tkuhn.nanopub.server.storage.local.NanopubStorageLocalImpl;
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+public class LocalInjectModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(NanopubStorageLocalImpl.class).asEagerSingleton();
+        requestStaticInjection(NanopubStorageFactory.class);
+    }
+
+    @Provides
+    @Singleton
+    NanopubStorage provideNanopubStorage(NanopubStorageLocalImpl storage) {
+        return CachingNanopubStorage.wrap(storage);
+    }
+
+}
@@ -1,14 +1,25 @@
 package ch.tkuhn.nanopub.server.modules;
 
+import ch.tkuhn.nanopub.server.storage.CachingNanopubStorage;
 import ch.tkuhn.nanopub.server.storage.NanopubStorage;
 import ch.tkuhn.nanopub.server.storage.NanopubStorageFactory;
 import ch.tkuhn.nanopub.server.storage.mongodb.NanopubStorageMongoImpl;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
 
 public class MongoInjectModule extends AbstractModule {
+
     @Override
     protected void configure() {
-        bind(NanopubStorage.class).to(NanopubStorageMongoImpl.class).asEagerSingleton();
+        bind(NanopubStorageMongoImpl.class).asEagerSingleton();
         requestStaticInjection(NanopubStorageFactory.class);
     }
+
+    @Provides
+    @Singleton
+    NanopubStorage provideNanopubStorage(NanopubStorageMongoImpl storage) {
+        return CachingNanopubStorage.wrap(storage);
+    }
+
 }
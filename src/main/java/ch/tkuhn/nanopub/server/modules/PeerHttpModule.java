@@ -0,0 +1,14 @@
+package ch.tkuhn.nanopub.server.modules;
+
+import ch.tkuhn.nanopub.server.http.PeerHttpClient;
+import com.google.inject.AbstractModule;
+
+public class PeerHttpModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(PeerHttpClient.class).asEagerSingleton();
+        requestStaticInjection(PeerHttpClient.class);
+    }
+
+}
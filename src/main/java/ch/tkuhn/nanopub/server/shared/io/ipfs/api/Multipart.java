@@ -31,6 +31,8 @@ public class Multipart {
         httpConn.setUseCaches(false);
         httpConn.setDoOutput(true);
         httpConn.setDoInput(true);
+        // Stream the parts instead of buffering the whole request body in memory:
+        httpConn.setChunkedStreamingMode(4096);
         for (Map.Entry<String, String> e : headers.entrySet()) {
             httpConn.setRequestProperty(e.getKey(), e.getValue());
         }
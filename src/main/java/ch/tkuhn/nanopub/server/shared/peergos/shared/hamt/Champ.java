@@ -155,8 +155,12 @@ public class Champ<V extends Cborable> implements Cborable {
         int bitpos = mask(hash, depth, bitWidth);
         int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
         Multihash childHash = contents[index].link.get();
-        return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(storage.get(childHash.toBase58().getBytes(StandardCharsets.UTF_8)))))
-                .thenApply(x -> new Pair<>(childHash, x.map(y -> Champ.fromCbor(y, fromCbor))));
+        return CompletableFuture.completedFuture(new Pair<>(childHash, Optional.of(storage.getChamp(childHash, depth + 1, fromCbor))));
+    }
+
+    private static <V extends Cborable> CompletableFuture<Pair<Champ<V>, Multihash>> store(Champ<V> champ, ContentAddressedStorage storage) {
+        Multihash hash = storage.putChamp(champ);
+        return CompletableFuture.completedFuture(new Pair<>(champ, hash));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
@@ -169,8 +173,8 @@ public class Champ<V extends Cborable> implements Cborable {
             HashPrefixPayload<V> pointer = contents[i];
             if (!pointer.isShard())
                 break; // we reach the key section
-            childCounts.add(CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(storage.get(pointer.link.get().toBase58().getBytes(StandardCharsets.UTF_8)))))
-                    .thenApply(x -> new Pair<>(pointer.link, x.map(y -> Champ.fromCbor(y, fromCbor))))
+            childCounts.add(CompletableFuture.completedFuture(Optional.of(storage.getChamp(pointer.link.get(), depth + 1, fromCbor)))
+                    .thenApply(x -> new Pair<>(pointer.link, x))
                     .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
                             .orElse(CompletableFuture.completedFuture(0L)))
             );
@@ -258,19 +262,19 @@ public class Champ<V extends Cborable> implements Cborable {
 
                     // update mapping
                     Champ<V> champ = copyAndSetValue(index, payloadIndex, value);
-                    return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                    return store(champ, storage);
                 }
             }
             if (mappings.length < maxCollisions) {
                 Champ<V> champ = insertIntoPrefix(index, key, value);
-                return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                return store(champ, storage);
             }
 
             return pushMappingsDownALevel(mappings,
                     key, hash, value, depth + 1, bitWidth, maxCollisions, storage)
                     .thenCompose(p -> {
                         Champ<V> champ = copyAndMigrateFromInlineToNode(bitpos, p);
-                        return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                        return store(champ, storage);
                     });
         } else if (nodeMap.get(bitpos)) { // child node
             return getChild(hash, depth, bitWidth, storage)
@@ -280,12 +284,12 @@ public class Champ<V extends Cborable> implements Cborable {
                                 if (newChild.right.equals(child.left))
                                     return CompletableFuture.completedFuture(new Pair<>(this, ourHash));
                                 Champ<V> champ = overwriteChildLink(bitpos, newChild);
-                                return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                                return store(champ, storage);
                             }));
         } else {
             // no value
             Champ<V> champ = addNewPrefix(bitpos, key, value);
-            return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+            return store(champ, storage);
         }
     }
 
@@ -302,8 +306,7 @@ public class Champ<V extends Cborable> implements Cborable {
         }
 
         Champ<V> empty = empty(fromCbor);
-        return CompletableFuture.completedFuture(storage.put(empty.serialize()))
-                .thenApply(h -> new Pair<>(empty, Multihash.fromBase58(new String(h))))
+        return store(empty, storage)
                 .thenCompose(p -> p.left.put(key1, hash1, depth, val1,
                         bitWidth, maxCollisions, storage, p.right))
                 .thenCompose(one -> Futures.reduceAll(
@@ -478,10 +481,10 @@ public class Champ<V extends Cborable> implements Cborable {
 
                             champ = new Champ(newDataMap, new BitSet(), dst, fromCbor);
                         }
-                        return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                        return store(champ, storage);
                     } else {
                         Champ<V> champ = removeMapping(bitpos, payloadIndex);
-                        return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                        return store(champ, storage);
                     }
                 }
             }
@@ -503,12 +506,12 @@ public class Champ<V extends Cborable> implements Cborable {
                                     } else {
                                         // inline value (move to front)
                                         Champ<V> champ = copyAndMigrateFromNodeToInline(bitpos, newChild.left);
-                                        return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                                        return store(champ, storage);
                                     }
                                 } else {
                                     // modify current node (set replacement node)
                                     Champ<V> champ = overwriteChildLink(bitpos, newChild);
-                                    return CompletableFuture.completedFuture(storage.put(champ.serialize())).thenApply(h -> new Pair<>(champ, Multihash.fromBase58(new String(h))));
+                                    return store(champ, storage);
                                 }
                             }));
         }
@@ -0,0 +1,470 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import net.trustyuri.TrustyUriUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Memory-mapped open-addressing hash table from artifact codes to a location value (e.g. the
+ * nanopub number in the journal, or a pointer into a local segment file). Keys are stored as the
+ * 32-byte binary hash of the artifact code, so lookups need neither a storage round trip nor
+ * on-heap objects. The file header keeps a watermark that tells up to where the index has been
+ * filled, so it can be caught up or rebuilt from the journal on startup. A lock file makes sure
+ * that only one process uses the index file at a time.
+ * <p>
+ * A Bloom filter held in memory is consulted first, so that definite misses (which dominate
+ * while a new server catches up with its peers) don't touch the mapped file at all. This only pays
+ * off once the index is larger than the page cache and misses would read from disk; the observed
+ * false positives are counted to show how often the filter fails to rule out a miss.
+ */
+public class ArtifactCodeIndex {
+
+    private static final int MAGIC = 0x4e504143;  // "NPAC"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 64;
+    private static final int KEY_LENGTH = 32;
+    private static final int SLOT_LENGTH = KEY_LENGTH + 8;
+    private static final int MAX_SLOTS_PER_CHUNK = 1 << 24;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    private static final double MAX_LOAD = 0.7;
+    private static final double BLOOM_FILTER_FPP = 0.01;
+    private static final int CATCH_UP_BATCH_SIZE = 1000;
+
+    private static final int POS_MAGIC = 0;
+    private static final int POS_VERSION = 4;
+    private static final int POS_CAPACITY = 8;
+    private static final int POS_SIZE = 16;
+    private static final int POS_WATERMARK = 24;
+    private static final int POS_JOURNAL_ID = 32;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File file;
+    private final int initialCapacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final FileChannel lockChannel;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] chunks;
+    private long capacity;
+    private int slotsPerChunk;
+    private long size;
+    private ScalableBloomFilter bloomFilter;
+    private final Counter bloomNegatives;
+    private final Counter bloomTruePositives;
+    private final Counter bloomFalsePositives;
+
+    public ArtifactCodeIndex(File file) throws IOException {
+        this(file, INITIAL_CAPACITY);
+    }
+
+    ArtifactCodeIndex(File file, int initialCapacity) throws IOException {
+        this(file, initialCapacity, lockOrFail(file));
+    }
+
+    private ArtifactCodeIndex(File file, int initialCapacity, FileChannel lockChannel) throws IOException {
+        this.file = file;
+        this.initialCapacity = initialCapacity;
+        this.lockChannel = lockChannel;
+        open(file, initialCapacity);
+        loadBloomFilter();
+        bloomNegatives = Metrics.counter("nanopub.index.bloom.checks", "result", "negative");
+        bloomTruePositives = Metrics.counter("nanopub.index.bloom.checks", "result", "true_positive");
+        bloomFalsePositives = Metrics.counter("nanopub.index.bloom.checks", "result", "false_positive");
+        Gauge.builder("nanopub.index.bloom.fpp", this, ArtifactCodeIndex::getObservedFpp)
+                .description("Share of artifact codes not in the index that the Bloom filter didn't rule out")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("nanopub.index.entries", this, ArtifactCodeIndex::size)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Opens the index in the given file. If another process (e.g. the package cache populator next
+     * to the running server) uses that file already, a temporary index of this process is opened
+     * instead, which has to be filled from scratch.
+     */
+    public static ArtifactCodeIndex open(File file) throws IOException {
+        FileChannel lockChannel = tryLock(file);
+        if (lockChannel == null) {
+            LoggerFactory.getLogger(ArtifactCodeIndex.class).warn("Artifact code index is used by another process: " + file
+                    + "; use a temporary index");
+            file = File.createTempFile("artifact-codes-", ".idx");
+            file.deleteOnExit();
+            new File(file.getPath() + ".lock").deleteOnExit();
+            lockChannel = tryLock(file);
+        }
+        return new ArtifactCodeIndex(file, INITIAL_CAPACITY, lockChannel);
+    }
+
+    private static FileChannel lockOrFail(File file) throws IOException {
+        FileChannel lockChannel = tryLock(file);
+        if (lockChannel == null) throw new IOException("Artifact code index is used by another process: " + file);
+        return lockChannel;
+    }
+
+    // The lock is held on a file of its own, as the index file is replaced when it grows:
+    private static FileChannel tryLock(File file) throws IOException {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        FileChannel lockChannel = FileChannel.open(new File(file.getPath() + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            lockChannel.close();
+            return null;
+        }
+        return lockChannel;
+    }
+
+    /**
+     * Returns the value stored for the given artifact code, or -1 if the artifact code is not in
+     * the index.
+     */
+    public long get(String artifactCode) {
+        byte[] key = toKey(artifactCode);
+        if (!bloomFilter.mightContain(key)) {
+            bloomNegatives.increment();
+            return -1;
+        }
+        long v;
+        lock.readLock().lock();
+        try {
+            v = getValue(findSlot(key));
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (v == 0) {
+            // The filter said present, so this is an actual false positive:
+            bloomFalsePositives.increment();
+            return -1;
+        }
+        bloomTruePositives.increment();
+        return v - 1;
+    }
+
+    private double getObservedFpp() {
+        double misses = bloomNegatives.count() + bloomFalsePositives.count();
+        return misses == 0 ? 0 : bloomFalsePositives.count() / misses;
+    }
+
+    public boolean contains(String artifactCode) {
+        return get(artifactCode) >= 0;
+    }
+
+    /**
+     * Stores the given (non-negative) value for the artifact code, replacing any existing value.
+     */
+    public void put(String artifactCode, long value) {
+        if (value < 0) throw new IllegalArgumentException("Negative index value: " + value);
+        byte[] key = toKey(artifactCode);
+        lock.writeLock().lock();
+        try {
+            if (size + 1 > capacity * MAX_LOAD) {
+                resize(capacity * 2);
+            }
+            long slot = findSlot(key);
+            if (getValue(slot) == 0) {
+                writeKey(slot, key);
+                size++;
+                header.putLong(POS_SIZE, size);
+                bloomFilter.put(key);
+            }
+            setValue(slot, value + 1);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to grow artifact code index: " + file, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getWatermark() {
+        lock.readLock().lock();
+        try {
+            return header.getLong(POS_WATERMARK);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void setWatermark(long watermark) {
+        lock.writeLock().lock();
+        try {
+            header.putLong(POS_WATERMARK, watermark);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getJournalId() {
+        lock.readLock().lock();
+        try {
+            return header.getLong(POS_JOURNAL_ID);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the index if it was built for a different journal than the given one.
+     */
+    public void checkJournalId(long journalId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long indexJournalId = header.getLong(POS_JOURNAL_ID);
+            if (indexJournalId == journalId) return;
+            if (indexJournalId != 0 || size > 0) {
+                logger.info("Artifact code index belongs to other journal: rebuild");
+                channel.close();
+                Files.delete(file.toPath());
+                open(file, initialCapacity);
+                loadBloomFilter();
+            }
+            header.putLong(POS_JOURNAL_ID, journalId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds all nanopubs of the journal starting from the watermark, so that the index covers the
+     * whole journal. The values are the nanopub numbers in the journal. As the journal can list
+     * nanopubs whose storing was interrupted, each batch of artifact codes is given to the given
+     * function, which returns the ones that are actually stored. The others are left out, so
+     * that they can be loaded again.
+     */
+    public void catchUp(Journal journal, Function<List<String>, Set<String>> storedFilter) throws IOException {
+        checkJournalId(journal.getJournalId());
+        long from = getWatermark();
+        long to = journal.getNextNanopubNo();
+        if (from >= to) return;
+        logger.info("Index artifact codes of nanopubs " + from + " to " + to);
+        List<String> batch = new ArrayList<>();
+        long[] batchStart = new long[] {from};
+        journal.forEachNanopubUri(from, to, (npNo, uri) -> {
+            if (batch.isEmpty()) batchStart[0] = npNo;
+            batch.add(TrustyUriUtils.getArtifactCode(uri));
+            if (batch.size() >= CATCH_UP_BATCH_SIZE) {
+                putStored(batch, batchStart[0], storedFilter);
+                batch.clear();
+            }
+        });
+        putStored(batch, batchStart[0], storedFilter);
+        setWatermark(to);
+        flush();
+        logger.info("Artifact code index contains " + size() + " entries");
+    }
+
+    // The artifact codes are consecutive in the journal, starting at the given nanopub number:
+    private void putStored(List<String> artifactCodes, long firstNpNo, Function<List<String>, Set<String>> storedFilter) {
+        List<String> codes = new ArrayList<>();
+        for (String ac : artifactCodes) {
+            if (ac != null) codes.add(ac);
+        }
+        if (codes.isEmpty()) return;
+        Set<String> stored = storedFilter.apply(codes);
+        long npNo = firstNpNo;
+        for (String ac : artifactCodes) {
+            if (ac != null && stored.contains(ac)) {
+                put(ac, npNo);
+            } else if (ac != null) {
+                logger.info("Nanopub " + npNo + " is in the journal but not stored: " + ac);
+            }
+            npNo++;
+        }
+    }
+
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            header.force();
+            for (MappedByteBuffer c : chunks) {
+                c.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (channel == null) return;
+            flush();
+            channel.close();
+            channel = null;
+            // Releases the lock:
+            lockChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void open(File f, long minCapacity) throws IOException {
+        channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+        if (header.getInt(POS_MAGIC) == MAGIC) {
+            if (header.getInt(POS_VERSION) != VERSION) {
+                throw new IOException("Unsupported artifact code index version: " + f);
+            }
+            capacity = header.getLong(POS_CAPACITY);
+            size = header.getLong(POS_SIZE);
+        } else {
+            capacity = minCapacity;
+            size = 0;
+            header.putInt(POS_MAGIC, MAGIC);
+            header.putInt(POS_VERSION, VERSION);
+            header.putLong(POS_CAPACITY, capacity);
+            header.putLong(POS_SIZE, 0);
+            header.putLong(POS_WATERMARK, 0);
+            header.putLong(POS_JOURNAL_ID, 0);
+        }
+        slotsPerChunk = (int) Math.min(capacity, MAX_SLOTS_PER_CHUNK);
+        int chunkCount = (int) (capacity / slotsPerChunk);
+        chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long position = HEADER_LENGTH + (long) i * slotsPerChunk * SLOT_LENGTH;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) slotsPerChunk * SLOT_LENGTH);
+        }
+    }
+
+    private void loadBloomFilter() {
+        long bloomCapacity = Math.max(size * 2, INITIAL_CAPACITY);
+        if (bloomFilter == null) {
+            bloomFilter = new ScalableBloomFilter(bloomCapacity, BLOOM_FILTER_FPP);
+        } else {
+            bloomFilter.clear(bloomCapacity);
+        }
+        if (size == 0) return;
+        byte[] key = new byte[KEY_LENGTH];
+        for (MappedByteBuffer c : chunks) {
+            for (int p = 0; p < slotsPerChunk * SLOT_LENGTH; p += SLOT_LENGTH) {
+                if (c.getLong(p + KEY_LENGTH) == 0) continue;
+                for (int i = 0; i < KEY_LENGTH; i++) key[i] = c.get(p + i);
+                bloomFilter.put(key);
+            }
+        }
+        logger.info("Bloom filter loaded with " + bloomFilter.getCount() + " artifact codes");
+    }
+
+    private void resize(long newCapacity) throws IOException {
+        logger.info("Grow artifact code index to " + newCapacity + " slots");
+        File tempFile = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tempFile.toPath());
+        FileChannel oldChannel = channel;
+        MappedByteBuffer oldHeader = header;
+        MappedByteBuffer[] oldChunks = chunks;
+        long oldCapacity = capacity;
+        int oldSlotsPerChunk = slotsPerChunk;
+        open(tempFile, newCapacity);
+        header.putLong(POS_WATERMARK, oldHeader.getLong(POS_WATERMARK));
+        header.putLong(POS_JOURNAL_ID, oldHeader.getLong(POS_JOURNAL_ID));
+        byte[] key = new byte[KEY_LENGTH];
+        for (long s = 0; s < oldCapacity; s++) {
+            ByteBuffer c = oldChunks[(int) (s / oldSlotsPerChunk)];
+            int p = (int) (s % oldSlotsPerChunk) * SLOT_LENGTH;
+            long v = c.getLong(p + KEY_LENGTH);
+            if (v == 0) continue;
+            for (int i = 0; i < KEY_LENGTH; i++) key[i] = c.get(p + i);
+            long slot = findSlot(key);
+            writeKey(slot, key);
+            setValue(slot, v);
+            size++;
+        }
+        header.putLong(POS_SIZE, size);
+        flush();
+        oldChannel.close();
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Linear probing: returns the slot that holds the key, or the first empty slot
+    private long findSlot(byte[] key) {
+        long slot = (ByteBuffer.wrap(key).getLong() & Long.MAX_VALUE) % capacity;
+        while (true) {
+            if (getValue(slot) == 0 || keyEquals(slot, key)) return slot;
+            slot = (slot + 1) % capacity;
+        }
+    }
+
+    private long getValue(long slot) {
+        return chunks[(int) (slot / slotsPerChunk)].getLong(offsetInChunk(slot) + KEY_LENGTH);
+    }
+
+    private void setValue(long slot, long value) {
+        chunks[(int) (slot / slotsPerChunk)].putLong(offsetInChunk(slot) + KEY_LENGTH, value);
+    }
+
+    private boolean keyEquals(long slot, byte[] key) {
+        ByteBuffer c = chunks[(int) (slot / slotsPerChunk)];
+        int p = offsetInChunk(slot);
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            if (c.get(p + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private void writeKey(long slot, byte[] key) {
+        ByteBuffer c = chunks[(int) (slot / slotsPerChunk)];
+        int p = offsetInChunk(slot);
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            c.put(p + i, key[i]);
+        }
+    }
+
+    private int offsetInChunk(long slot) {
+        return (int) (slot % slotsPerChunk) * SLOT_LENGTH;
+    }
+
+    static byte[] toKey(String artifactCode) {
+        if (artifactCode.length() == 45 && artifactCode.startsWith("RA")) {
+            try {
+                // RA artifact codes are the base64url encoding of a SHA-256 hash:
+                return Base64.getUrlDecoder().decode(artifactCode.substring(2));
+            } catch (IllegalArgumentException ex) {
+                // fall through
+            }
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(artifactCode.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import ch.tkuhn.nanopub.server.ServerConf;
+import ch.tkuhn.nanopub.server.ServerInfo;
+import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
+import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.commons.lang3.tuple.Pair;
+import org.nanopub.Nanopub;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Storage wrapper that keeps parsed nanopubs in a size-bounded cache (weighted by triple count,
+ * with frequency-based admission), so that popular nanopubs are not fetched and parsed again for
+ * every request. Nanopubs are immutable, so entries never need to be invalidated.
+ */
+public class CachingNanopubStorage implements NanopubStorage {
+
+    private final NanopubStorage storage;
+    private final Cache<String, Nanopub> cache;
+
+    public CachingNanopubStorage(NanopubStorage storage, long maxWeight) {
+        this.storage = storage;
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String ac, Nanopub np) -> np.getTripleCount())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache, "nanopubs");
+    }
+
+    /**
+     * Wraps the given storage in a cache, unless caching is disabled in the configuration.
+     */
+    public static NanopubStorage wrap(NanopubStorage storage) {
+        long maxWeight = ServerConf.get().getNanopubCacheMaxWeight();
+        if (maxWeight <= 0) return storage;
+        return new CachingNanopubStorage(storage, maxWeight);
+    }
+
+    @Override
+    public Nanopub getNanopub(String artifactCode) {
+        Nanopub np = cache.getIfPresent(artifactCode);
+        if (np == null) {
+            np = storage.getNanopub(artifactCode);
+            if (np != null) cache.put(artifactCode, np);
+        }
+        return np;
+    }
+
+    @Override
+    public RawNanopub getRawNanopub(String artifactCode) {
+        return storage.getRawNanopub(artifactCode);
+    }
+
+    @Override
+    public boolean hasNanopub(String artifactCode) {
+        return storage.hasNanopub(artifactCode);
+    }
+
+    @Override
+    public boolean isFull() {
+        return storage.isFull();
+    }
+
+    @Override
+    public boolean isAccessible() {
+        return storage.isAccessible();
+    }
+
+    @Override
+    public long getNextNanopubNo() {
+        return storage.getNextNanopubNo();
+    }
+
+    @Override
+    public void addPeer(String peerUrl) throws org.nanopub.extra.server.ServerInfo.ServerInfoException {
+        storage.addPeer(peerUrl);
+    }
+
+    @Override
+    public void updatePeerState(ServerInfo peerInfo, long npno) {
+        storage.updatePeerState(peerInfo, npno);
+    }
+
+    @Override
+    public void populatePackageCache() throws IOException {
+        storage.populatePackageCache();
+    }
+
+    @Override
+    public boolean isPackageCached(long pageNo) {
+        return storage.isPackageCached(pageNo);
+    }
+
+    @Override
+    public FileInputStream openPackageFile(long pageNo) throws IOException {
+        return storage.openPackageFile(pageNo);
+    }
+
+    @Override
+    public void writePackageToStream(long pageNo, boolean gzipped, OutputStream out) throws IOException {
+        storage.writePackageToStream(pageNo, gzipped, out);
+    }
+
+    @Override
+    public PreparedNanopub prepareNanopub(Nanopub np) throws NotTrustyNanopubException,
+            OversizedNanopubException, ProtectedNanopubException {
+        return storage.prepareNanopub(np);
+    }
+
+    @Override
+    public List<PreparedNanopub> commitNanopubs(List<PreparedNanopub> nanopubs) throws NanopubDbException {
+        return storage.commitNanopubs(nanopubs);
+    }
+
+    @Override
+    public List<String> getPeerUris() {
+        return storage.getPeerUris();
+    }
+
+    @Override
+    public Pair<Long, Long> getLastSeenPeerState(String peerUrl) {
+        return storage.getLastSeenPeerState(peerUrl);
+    }
+
+    @Override
+    public Journal getJournal() {
+        return storage.getJournal();
+    }
+
+    @Override
+    public String getCid(String artifactCode) {
+        return storage.getCid(artifactCode);
+    }
+
+    @Override
+    public String testPublish(Nanopub np) {
+        return storage.testPublish(np);
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+    }
+
+}
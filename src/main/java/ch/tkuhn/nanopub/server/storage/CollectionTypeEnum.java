@@ -5,6 +5,9 @@ import java.util.Optional;
 
 public enum CollectionTypeEnum {
     Journal("journal"),
+    JournalPage("journalPage"),
+    JournalPages("journalPages"),
+    JournalNextNanopubNo("journalNextNanopubNo"),
     Peers("peers"),
     Nanopubs("nanopubs"),
     PackagedFile("packagedFile");
@@ -0,0 +1,11 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import java.util.List;
+
+/**
+ * Gets notified about the nanopubs that were newly added to the storage, in the order of their
+ * journal numbers.
+ */
+public interface CommitListener {
+    void committed(List<PreparedNanopub> nanopubs);
+}
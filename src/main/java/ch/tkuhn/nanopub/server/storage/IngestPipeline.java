@@ -0,0 +1,227 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import ch.tkuhn.nanopub.server.ServerConf;
+import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
+import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.nanopub.Nanopub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads nanopubs into the storage in two stages: checking and serializing the nanopubs (the
+ * CPU-heavy part) runs on a pool of worker threads, and the prepared nanopubs are then handed via
+ * a bounded queue to a single commit thread, which assigns the journal numbers and writes them in
+ * batches. Commit listeners are notified on a separate thread, in commit order.
+ */
+public class IngestPipeline {
+
+    private static IngestPipeline obj;
+
+    public static synchronized IngestPipeline get() {
+        if (obj == null) {
+            ServerConf conf = ServerConf.get();
+            obj = new IngestPipeline(NanopubStorageFactory.getInstance(), conf.getIngestWorkers(),
+                    conf.getIngestQueueSize(), conf.getIngestCommitBatchSize());
+            obj.addCommitListener(NanopubStorageUtils::notifyCommitted);
+        }
+        return obj;
+    }
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final NanopubStorage storage;
+    private final int commitBatchSize;
+    private final ThreadPoolExecutor workers;
+    private final BlockingQueue<Pending> commitQueue;
+    private final ExecutorService notifier;
+    private final List<CommitListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Timer prepareTimer = Metrics.timer("nanopub.ingest", "stage", "prepare");
+    private final Timer queueTimer = Metrics.timer("nanopub.ingest", "stage", "queue");
+    private final Timer commitTimer = Metrics.timer("nanopub.ingest", "stage", "commit");
+    private final Timer notifyTimer = Metrics.timer("nanopub.ingest", "stage", "notify");
+
+    public IngestPipeline(NanopubStorage storage, int workerCount, int queueSize, int commitBatchSize) {
+        this.storage = storage;
+        this.commitBatchSize = commitBatchSize;
+        // When all workers are busy and their queue is full, the submitting thread prepares the
+        // nanopub itself, which slows down the producer:
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("ingest-worker-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        commitQueue = new ArrayBlockingQueue<>(queueSize);
+        notifier = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("ingest-notifier").setDaemon(true).build());
+        Metrics.gauge("nanopub.ingest.queue", Tags.of("stage", "prepare"), workers, w -> w.getQueue().size());
+        Metrics.gauge("nanopub.ingest.queue", Tags.of("stage", "commit"), commitQueue, BlockingQueue::size);
+        Thread committer = new Thread(this::runCommits, "ingest-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public void addCommitListener(CommitListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Submits a nanopub for loading. The returned future completes with true if the nanopub was
+     * new, and false if it was already stored. This blocks if the queues are full.
+     */
+    public CompletableFuture<Boolean> submit(Nanopub np) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        workers.execute(() -> {
+            try {
+                PreparedNanopub prepared = prepareTimer.recordCallable(() -> storage.prepareNanopub(np));
+                commitQueue.put(new Pending(prepared, future));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(ex);
+            } catch (Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Loads the given nanopubs and waits until they are committed. Returns the number of nanopubs
+     * that were new. The nanopubs are committed in the batches of the commit thread, possibly
+     * together with nanopubs of other callers, and not all at once: if one of them cannot be
+     * loaded, its exception is thrown, but the others can still be stored.
+     */
+    public int load(Collection<Nanopub> nanopubs) throws NotTrustyNanopubException,
+            OversizedNanopubException, NanopubDbException, ProtectedNanopubException {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (Nanopub np : nanopubs) {
+            futures.add(submit(np));
+        }
+        int count = 0;
+        for (CompletableFuture<Boolean> f : futures) {
+            if (await(f)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Waits for a submitted nanopub to be committed, and throws the exception that prevented it
+     * from being loaded, if any.
+     */
+    public static boolean await(CompletableFuture<Boolean> future) throws NotTrustyNanopubException,
+            OversizedNanopubException, NanopubDbException, ProtectedNanopubException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof NotTrustyNanopubException) throw (NotTrustyNanopubException) cause;
+            if (cause instanceof OversizedNanopubException) throw (OversizedNanopubException) cause;
+            if (cause instanceof NanopubDbException) throw (NanopubDbException) cause;
+            if (cause instanceof ProtectedNanopubException) throw (ProtectedNanopubException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void runCommits() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(commitQueue.take());
+                commitQueue.drainTo(batch, commitBatchSize - 1);
+                long now = System.nanoTime();
+                for (Pending p : batch) {
+                    queueTimer.record(now - p.queuedAt, TimeUnit.NANOSECONDS);
+                }
+                commit(batch);
+            } catch (InterruptedException ex) {
+                logger.info("Commit thread interrupted");
+                return;
+            } catch (Throwable th) {
+                logger.error("Unexpected error in commit thread", th);
+                for (Pending p : batch) {
+                    p.future.completeExceptionally(th);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        List<PreparedNanopub> prepared = new ArrayList<>();
+        for (Pending p : batch) {
+            prepared.add(p.nanopub);
+        }
+        List<PreparedNanopub> committed;
+        try {
+            committed = commitTimer.recordCallable(() -> storage.commitNanopubs(prepared));
+        } catch (Exception ex) {
+            if (batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(ex);
+            } else {
+                // Commit the nanopubs one by one, so that only the ones that cannot be stored fail:
+                for (Pending p : batch) {
+                    commit(Collections.singletonList(p));
+                }
+            }
+            return;
+        }
+        Set<String> newCodes = new HashSet<>();
+        for (PreparedNanopub np : committed) {
+            newCodes.add(np.getArtifactCode());
+        }
+        for (Pending p : batch) {
+            // If the same nanopub was submitted twice, only the first one counts as new:
+            p.future.complete(newCodes.remove(p.nanopub.getArtifactCode()));
+        }
+        if (!committed.isEmpty()) {
+            notifier.execute(() -> notifyTimer.record(() -> {
+                for (CommitListener l : listeners) {
+                    try {
+                        l.committed(committed);
+                    } catch (Exception ex) {
+                        logger.error("Error in commit listener", ex);
+                    }
+                }
+            }));
+        }
+    }
+
+
+    private static class Pending {
+
+        final PreparedNanopub nanopub;
+        final CompletableFuture<Boolean> future;
+        final long queuedAt = System.nanoTime();
+
+        Pending(PreparedNanopub nanopub, CompletableFuture<Boolean> future) {
+            this.nanopub = nanopub;
+            this.future = future;
+        }
+
+    }
+
+}
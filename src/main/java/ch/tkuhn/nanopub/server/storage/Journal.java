@@ -1,14 +1,60 @@
 package ch.tkuhn.nanopub.server.storage;
 
+import java.util.function.BiConsumer;
+
 public interface Journal {
-    long getJournalId();
-    long getNextNanopubNo();
-    long getCurrentPageNo();
-    int getPageSize();
+
+    /**
+     * Returns the state after the last commit. It is replaced as a whole with each commit, and
+     * can be read without locks or storage access.
+     */
+    JournalSnapshot getSnapshot();
+
+    default long getJournalId() {
+        return getSnapshot().getJournalId();
+    }
+
+    default long getNextNanopubNo() {
+        return getSnapshot().getNextNanopubNo();
+    }
+
+    default long getCurrentPageNo() {
+        return getSnapshot().getCurrentPageNo();
+    }
+
+    default int getPageSize() {
+        return getSnapshot().getPageSize();
+    }
+
+    default String getUriPattern() {
+        return getSnapshot().getUriPattern();
+    }
+
+    default String getHashPattern() {
+        return getSnapshot().getHashPattern();
+    }
+
+    default String getStateId() {
+        return getSnapshot().getStateId();
+    }
+
     int getVersionValue();
-    String getUriPattern();
-    String getHashPattern();
     String getPageContent(long pageNo);
-    String getStateId();
     void checkNextNanopubNo();
+
+    /**
+     * Calls the consumer with the number and URI of each nanopub in the journal from number
+     * 'from' (inclusive) to 'to' (exclusive), reading the journal page by page.
+     */
+    default void forEachNanopubUri(long from, long to, BiConsumer<Long, String> consumer) {
+        int pageSize = getPageSize();
+        for (long pageNo = from / pageSize + 1; (pageNo - 1) * pageSize < to; pageNo++) {
+            long npNo = (pageNo - 1) * pageSize;
+            for (String uri : getPageContent(pageNo).split("\\n")) {
+                if (uri.isEmpty()) continue;
+                if (npNo >= from && npNo < to) consumer.accept(npNo, uri);
+                npNo++;
+            }
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package ch.tkuhn.nanopub.server.storage;
+
+/**
+ * Immutable state of the journal after a commit. The journal publishes a new snapshot once per
+ * commit, so that readers get consistent values without locks or storage access.
+ */
+public class JournalSnapshot {
+
+    private final long journalId;
+    private final long nextNanopubNo;
+    private final int pageSize;
+    private final String uriPattern;
+    private final String hashPattern;
+
+    public JournalSnapshot(long journalId, long nextNanopubNo, int pageSize, String uriPattern, String hashPattern) {
+        this.journalId = journalId;
+        this.nextNanopubNo = nextNanopubNo;
+        this.pageSize = pageSize;
+        this.uriPattern = uriPattern;
+        this.hashPattern = hashPattern;
+    }
+
+    /**
+     * Returns a snapshot of the same journal with a different number of nanopubs.
+     */
+    public JournalSnapshot withNextNanopubNo(long nextNanopubNo) {
+        return new JournalSnapshot(journalId, nextNanopubNo, pageSize, uriPattern, hashPattern);
+    }
+
+    public long getJournalId() {
+        return journalId;
+    }
+
+    public long getNextNanopubNo() {
+        return nextNanopubNo;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public String getUriPattern() {
+        return uriPattern;
+    }
+
+    public String getHashPattern() {
+        return hashPattern;
+    }
+
+    public long getCurrentPageNo() {
+        return nextNanopubNo / pageSize + 1;
+    }
+
+    public String getStateId() {
+        return journalId + "/" + nextNanopubNo;
+    }
+
+}
@@ -8,8 +8,12 @@ import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
 import org.apache.commons.lang3.tuple.Pair;
 import org.nanopub.Nanopub;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public interface NanopubStorage {
@@ -20,13 +24,58 @@ public interface NanopubStorage {
     void addPeer(String peerUrl) throws org.nanopub.extra.server.ServerInfo.ServerInfoException;
     void updatePeerState(ServerInfo peerInfo, long npno);
     void populatePackageCache() throws IOException;
+    boolean isPackageCached(long pageNo);
     void writePackageToStream(long pageNo, boolean gzipped, OutputStream out) throws IOException;
-    void loadNanopub(Nanopub np) throws NotTrustyNanopubException,
-            OversizedNanopubException, NanopubDbException, ProtectedNanopubException;
+    /**
+     * Opens the gzipped package of the given complete page if it is available as a local file, so
+     * that it can be sent without being produced first. Returns null otherwise.
+     */
+    default FileInputStream openPackageFile(long pageNo) throws IOException {
+        return null;
+    }
+    /**
+     * Checks the nanopub and serializes it for storing. This doesn't access the stored data and
+     * can be called concurrently.
+     */
+    PreparedNanopub prepareNanopub(Nanopub np) throws NotTrustyNanopubException,
+            OversizedNanopubException, ProtectedNanopubException;
+    /**
+     * Assigns journal numbers to the prepared nanopubs that are not yet stored and writes them.
+     * Returns the nanopubs that were new. If the new ones don't all fit within the maximum number
+     * of nanopubs, none of them is stored and an exception is thrown.
+     */
+    List<PreparedNanopub> commitNanopubs(List<PreparedNanopub> nanopubs) throws NanopubDbException;
+    default void loadNanopub(Nanopub np) throws NotTrustyNanopubException,
+            OversizedNanopubException, NanopubDbException, ProtectedNanopubException {
+        loadNanopubs(Collections.singletonList(np));
+    }
+    /**
+     * Loads a batch of nanopubs with a single commit. All of them are checked first, so that
+     * nothing is loaded if one of them cannot be loaded. Returns the number of nanopubs that were
+     * new. Note that {@link IngestPipeline#load} doesn't work like this: it commits the nanopubs
+     * in the batches of its commit thread.
+     */
+    default int loadNanopubs(Collection<Nanopub> nanopubs) throws NotTrustyNanopubException,
+            OversizedNanopubException, NanopubDbException, ProtectedNanopubException {
+        List<PreparedNanopub> prepared = new ArrayList<>();
+        for (Nanopub np : nanopubs) {
+            prepared.add(prepareNanopub(np));
+        }
+        List<PreparedNanopub> committed = commitNanopubs(prepared);
+        NanopubStorageUtils.notifyCommitted(committed);
+        return committed.size();
+    }
     List<String> getPeerUris();
     Pair<Long,Long> getLastSeenPeerState(String peerUrl);
     Journal getJournal();
     Nanopub getNanopub(String artifactCode);
+    RawNanopub getRawNanopub(String artifactCode);
     String getCid(String artifactCode);
     String testPublish(Nanopub np);
+    /**
+     * Finishes the work of the storage that runs in the background. Called when the server or
+     * process shuts down.
+     */
+    default void close() {
+    }
 }
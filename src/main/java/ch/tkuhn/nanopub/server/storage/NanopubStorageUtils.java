@@ -0,0 +1,74 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import ch.tkuhn.nanopub.server.PostNotifier;
+import ch.tkuhn.nanopub.server.ServerConf;
+import ch.tkuhn.nanopub.server.ServerInfo;
+import ch.tkuhn.nanopub.server.Utils;
+import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
+import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubWithNs;
+import org.nanopub.trusty.TrustyNanopubUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Checks and notifications shared by the storage implementations when loading nanopubs.
+ */
+public class NanopubStorageUtils {
+
+    private static Logger logger = LoggerFactory.getLogger(NanopubStorageUtils.class);
+
+    /**
+     * Removes unused prefixes and throws an exception if the nanopub is not trusty, protected, or
+     * too large for this server.
+     */
+    public static void checkNanopub(Nanopub np) throws NotTrustyNanopubException,
+            OversizedNanopubException, ProtectedNanopubException {
+        if (np instanceof NanopubWithNs) {
+            ((NanopubWithNs) np).removeUnusedPrefixes();
+        }
+        if (!TrustyNanopubUtils.isValidTrustyNanopub(np)) {
+            throw new NotTrustyNanopubException(np);
+        }
+        if (!ServerConf.get().isRunAsLocalServerEnabled() && Utils.isProtectedNanopub(np)) {
+            throw new ProtectedNanopubException(np);
+        }
+        ServerInfo info = ServerConf.getInfo();
+        if (info.getMaxNanopubTriples() != null && np.getTripleCount() > info.getMaxNanopubTriples()) {
+            throw new OversizedNanopubException(np);
+        }
+        if (info.getMaxNanopubBytes() != null && np.getByteCount() > info.getMaxNanopubBytes()) {
+            throw new OversizedNanopubException(np);
+        }
+    }
+
+    /**
+     * Throws an exception if the given number of new nanopubs would take the server beyond its
+     * maximum number of nanopubs, given the number of nanopubs stored so far. Nothing of such a
+     * batch is stored, so that the nanopubs that don't fit are not taken for duplicates.
+     */
+    public static void checkCapacity(int newCount, long nextNanopubNo) throws NanopubDbException {
+        Long max = ServerConf.getInfo().getMaxNanopubs();
+        if (max == null || newCount <= max - nextNanopubNo) return;
+        long room = Math.max(0, max - nextNanopubNo);
+        throw new NanopubDbException("Server is full: " + newCount + " new nanopubs but room for only " + room);
+    }
+
+    /**
+     * Queues the given new nanopubs for notifying the configured URLs and logs them if enabled.
+     */
+    public static void notifyCommitted(List<PreparedNanopub> nanopubs) {
+        PostNotifier.get().committed(nanopubs);
+        if (ServerConf.get().isLogNanopubLoadingEnabled()) {
+            for (PreparedNanopub np : nanopubs) {
+                logger.info("Nanopub loaded: " + np.getUri());
+            }
+        }
+    }
+
+}
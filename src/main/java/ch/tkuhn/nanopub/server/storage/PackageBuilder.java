@@ -0,0 +1,246 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.nanopub.NanopubUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds the package of the current journal page while the page fills up. The TriG of each
+ * committed batch is appended to a file as a separate gzip member, so that the package is ready
+ * as soon as the page is complete, and the current page can be served as a partial package. After
+ * a restart in the middle of a page, the builder waits for the next page to start. Complete
+ * packages are handed to the package store by a thread of their own, so that storing them doesn't
+ * hold up the commits.
+ *
+ * Each builder works in its own subdirectory, which it keeps locked, so that several processes
+ * (such as the server and PopulatePackageCache) can share the configured directory. Subdirectories
+ * of earlier runs are deleted once their lock is free.
+ */
+public class PackageBuilder {
+
+    /**
+     * Takes over the package file of a page that has just been completed.
+     */
+    public interface PackageStore {
+        void storePackage(long pageNo, File packageFile) throws IOException;
+    }
+
+    private static final String lockFileName = "lock";
+    // Directories that are younger than this might not be locked yet by the process creating them:
+    private static final long minAbandonedAgeMs = 60 * 1000;
+    private static final long closeTimeoutMs = 60 * 1000;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File dir;
+    private final PackageStore store;
+    // Held as long as the process runs:
+    private final FileChannel lockChannel;
+    private final ExecutorService storeExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("package-store").setDaemon(true).build());
+
+    private long currentPageNo = -1;
+    private int count;
+    private File currentFile;
+    // Length of the file up to the last complete gzip member:
+    private long currentLength;
+
+    public PackageBuilder(File baseDir, PackageStore store) {
+        this.store = store;
+        baseDir.mkdirs();
+        // Partial packages of an earlier run cannot be continued:
+        deleteAbandoned(baseDir);
+        try {
+            dir = Files.createTempDirectory(baseDir.toPath(), "build-").toFile();
+            lockChannel = FileChannel.open(new File(dir, lockFileName).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lockChannel.lock();
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot create package build directory in " + baseDir, ex);
+        }
+    }
+
+    private void deleteAbandoned(File baseDir) {
+        File[] subDirs = baseDir.listFiles(f -> f.isDirectory() && f.getName().startsWith("build-"));
+        if (subDirs == null) return;
+        for (File d : subDirs) {
+            if (System.currentTimeMillis() - d.lastModified() < minAbandonedAgeMs) continue;
+            File lockFile = new File(d, lockFileName);
+            if (!lockFile.exists()) continue;
+            try (FileChannel c = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+                FileLock lock = c.tryLock();
+                if (lock == null) continue;
+                File[] files = d.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (!f.getName().equals(lockFileName)) f.delete();
+                    }
+                }
+                lockFile.delete();
+                lock.release();
+            } catch (OverlappingFileLockException ex) {
+                // Locked by this process
+                continue;
+            } catch (IOException ex) {
+                logger.warn("Cannot check package build directory " + d + ": " + ex.getMessage());
+                continue;
+            }
+            d.delete();
+        }
+    }
+
+    /**
+     * Appends the given nanopubs, which have just been committed with consecutive numbers
+     * starting at the given one. Has to be called in commit order. Errors are logged, and
+     * building starts again at the next page.
+     */
+    public synchronized void append(long firstNanopubNo, int pageSize, List<PreparedNanopub> nanopubs) {
+        long npNo = firstNanopubNo;
+        int i = 0;
+        while (i < nanopubs.size()) {
+            long pageNo = npNo / pageSize + 1;
+            int pos = (int) (npNo % pageSize);
+            int n = Math.min(nanopubs.size() - i, pageSize - pos);
+            try {
+                if (pageNo != currentPageNo || pos != count) {
+                    reset();
+                    if (pos == 0) {
+                        currentPageNo = pageNo;
+                        currentFile = new File(dir, pageNo + ".partial.trig.gz");
+                        currentFile.delete();
+                    }
+                }
+                if (currentFile != null) {
+                    appendMember(nanopubs.subList(i, i + n));
+                    count += n;
+                    if (count == pageSize) {
+                        if (currentFile.length() != currentLength) {
+                            throw new IOException("Package file changed while building: " + currentFile);
+                        }
+                        File completeFile = currentFile;
+                        // Not deleted on reset, as it is deleted once stored:
+                        currentFile = null;
+                        reset();
+                        long completePageNo = pageNo;
+                        storeExecutor.execute(() -> storePackage(completePageNo, completeFile));
+                        currentPageNo = pageNo + 1;
+                        currentFile = new File(dir, currentPageNo + ".partial.trig.gz");
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                // Runtime exceptions are caught too, as the nanopubs are already committed:
+                logger.error("Failed to build package of page " + pageNo, ex);
+                reset();
+            }
+            i += n;
+            npNo += n;
+        }
+    }
+
+    private void storePackage(long pageNo, File packageFile) {
+        try {
+            store.storePackage(pageNo, packageFile);
+            logger.info("Package of page " + pageNo + " is ready");
+        } catch (IOException | RuntimeException ex) {
+            // Built again when requested:
+            logger.error("Failed to store package of page " + pageNo, ex);
+        } finally {
+            packageFile.delete();
+        }
+    }
+
+    private void appendMember(List<PreparedNanopub> nanopubs) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(currentFile, true);
+        if (fileOut.getChannel().position() != currentLength) {
+            fileOut.close();
+            throw new IOException("Package file changed while building: " + currentFile);
+        }
+        try (OutputStream out = new GZIPOutputStream(fileOut)) {
+            for (PreparedNanopub np : nanopubs) {
+                String s;
+                if (RDFFormat.TRIG.equals(np.getFormat())) {
+                    s = np.getContent();
+                } else {
+                    try {
+                        s = NanopubUtils.writeToString(np.getNanopub(), RDFFormat.TRIG);
+                    } catch (RDFHandlerException ex) {
+                        throw new RuntimeException("Unexpected RDF handler exception", ex);
+                    }
+                }
+                out.write((s + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        currentLength = currentFile.length();
+    }
+
+    private void reset() {
+        if (currentFile != null) currentFile.delete();
+        currentPageNo = -1;
+        count = 0;
+        currentFile = null;
+        currentLength = 0;
+    }
+
+    /**
+     * Writes the package of the given page as far as it is built, if this is the page that is
+     * being built. Returns false otherwise.
+     */
+    public boolean writePartialPackage(long pageNo, boolean gzipped, OutputStream out) throws IOException {
+        InputStream in;
+        synchronized (this) {
+            if (pageNo != currentPageNo || count == 0) return false;
+            // Opened here, so it can still be read if the page gets completed in the meantime:
+            in = new BoundedInputStream(new FileInputStream(currentFile), currentLength);
+        }
+        try {
+            if (!gzipped) {
+                // Reads all the gzip members one after the other:
+                in = new GZIPInputStream(in);
+            }
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the complete packages that are still being stored, and stops the store thread.
+     */
+    public void close() {
+        storeExecutor.shutdown();
+        try {
+            if (!storeExecutor.awaitTermination(closeTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("Packages are still being stored; giving up");
+                storeExecutor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            storeExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the packages of all complete journal pages that are not yet cached, several pages at a
+ * time. Finished pages are recorded in a checkpoint file, so that it can be interrupted at any
+ * time and continues where it stopped when run again. The checkpoint file is locked while
+ * running, so that the command line tool and the background task of the server don't write it at
+ * the same time; the one that comes second doesn't run.
+ */
+public class PackageCachePopulator {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final NanopubStorage storage;
+    private final int parallelism;
+    private final File checkpointFile;
+
+    private final AtomicInteger donePages = new AtomicInteger();
+    private Writer checkpointWriter;
+
+    public PackageCachePopulator(NanopubStorage storage, int parallelism, File checkpointFile) {
+        this.storage = storage;
+        this.parallelism = parallelism;
+        this.checkpointFile = checkpointFile;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        checkpointFile.getParentFile().mkdirs();
+        // Closing the channel releases the lock:
+        try (FileChannel lockChannel = FileChannel.open(new File(checkpointFile.getPath() + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                lock = null;
+            }
+            if (lock == null) {
+                logger.info("Package cache is being populated already (checkpoint " + checkpointFile + " is locked); skipping");
+                return;
+            }
+            populateAll();
+        }
+    }
+
+    private void populateAll() throws IOException, InterruptedException {
+        Journal journal = storage.getJournal();
+        long journalId = journal.getJournalId();
+        Set<Long> checkpointed = readCheckpoint(journalId);
+        List<Long> pages = new ArrayList<>();
+        for (long page = 1; page < journal.getCurrentPageNo(); page++) {
+            if (!checkpointed.contains(page)) pages.add(page);
+        }
+        logger.info("Populate package cache: " + pages.size() + " pages left, " + checkpointed.size() + " done before, " + parallelism + " threads");
+
+        boolean newCheckpoint = checkpointed.isEmpty();
+        checkpointWriter = new FileWriter(checkpointFile, !newCheckpoint);
+        // The last line might have been cut off when interrupted:
+        checkpointWriter.write(newCheckpoint ? "journal " + journalId + "\n" : "\n");
+        checkpointWriter.flush();
+        int pageSize = journal.getPageSize();
+        long startTime = System.currentTimeMillis();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("package-cache-progress").setDaemon(true).build());
+        reporter.scheduleAtFixedRate(() -> {
+            double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+            int done = donePages.get();
+            logger.info(String.format("Populated %d of %d pages (%.2f pages/s, %.0f nanopubs/s)",
+                    done, pages.size(), done / seconds, done * pageSize / seconds));
+        }, 30, 30, TimeUnit.SECONDS);
+        int priority = Thread.currentThread().getPriority();
+        ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            // Same priority as the caller, e.g. lower when warming packages in the background:
+            t.setPriority(priority);
+            return t;
+        }, null, false);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (long page : pages) {
+                results.add(pool.submit(() -> populate(page)));
+            }
+            for (Future<?> f : results) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    logger.error(ex.getMessage(), ex.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            reporter.shutdownNow();
+            checkpointWriter.close();
+        }
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        logger.info(String.format("Done populating package cache: %d of %d pages in %.0f s", donePages.get(), pages.size(), seconds));
+    }
+
+    private void populate(long page) {
+        if (Thread.currentThread().isInterrupted()) return;
+        try {
+            if (!storage.isPackageCached(page)) {
+                storage.writePackageToStream(page, false, new NullOutputStream());
+            }
+            checkpoint(page);
+            donePages.incrementAndGet();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to populate package of page " + page, ex);
+        }
+    }
+
+    private synchronized void checkpoint(long page) throws IOException {
+        checkpointWriter.write(page + "\n");
+        checkpointWriter.flush();
+    }
+
+    // Returns the pages that are recorded as done, unless the checkpoint is from another journal:
+    private Set<Long> readCheckpoint(long journalId) throws IOException {
+        Set<Long> pages = new HashSet<>();
+        if (!checkpointFile.exists()) return pages;
+        List<String> lines = Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals("journal " + journalId)) {
+            logger.info("Ignoring checkpoint of another journal: " + checkpointFile);
+            return pages;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            try {
+                pages.add(Long.parseLong(line.trim()));
+            } catch (NumberFormatException ex) {
+                // line cut off when interrupted
+            }
+        }
+        return pages;
+    }
+
+}
@@ -0,0 +1,231 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import ch.tkuhn.nanopub.server.ServerConf;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local copies of the gzipped packages of the MongoDB and IPFS storages, so that they don't have
+ * to be fetched again for every request. The files are sent with FileChannel.transferTo, and only
+ * decompressed on the fly for plain TriG requests. The least recently used files are removed when
+ * the configured disk budget is exceeded.
+ * <p>
+ * The files are kept in a subdirectory named after the journal ID, and files of other journals
+ * are removed. Only one process uses the cache directory at a time, so that the budget is not
+ * tracked separately by several processes evicting each other's files.
+ */
+public class PackageFileCache {
+
+    /**
+     * Opens the gzipped package in the storage.
+     */
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Returns a cache for the given journal with the configured directory and budget, or null if
+     * it is disabled or used by another process (e.g. the running server next to the package
+     * cache populator).
+     */
+    public static PackageFileCache create(long journalId) {
+        long maxBytes = ServerConf.get().getPackageFileCacheMaxBytes();
+        if (maxBytes <= 0) return null;
+        return create(new File(ServerConf.get().getPackageFileCacheDir()), journalId, maxBytes);
+    }
+
+    static PackageFileCache create(File baseDir, long journalId, long maxBytes) {
+        Logger logger = LoggerFactory.getLogger(PackageFileCache.class);
+        FileChannel lockChannel;
+        try {
+            lockChannel = tryLock(baseDir);
+        } catch (IOException ex) {
+            logger.error("Cannot lock package file cache: " + baseDir, ex);
+            return null;
+        }
+        if (lockChannel == null) {
+            logger.warn("Package file cache is used by another process: " + baseDir + "; don't cache package files");
+            return null;
+        }
+        return new PackageFileCache(baseDir, journalId, maxBytes, lockChannel);
+    }
+
+    private static final String LOCK_FILE_NAME = "cache.lock";
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File dir;
+    private final long maxBytes;
+    // Held as long as the cache is used:
+    private final FileChannel lockChannel;
+    // File sizes by page number, least recently used first:
+    private final LinkedHashMap<Long, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final Counter hits = Metrics.counter("nanopub.package.file.cache", "result", "hit");
+    private final Counter misses = Metrics.counter("nanopub.package.file.cache", "result", "miss");
+
+    private PackageFileCache(File baseDir, long journalId, long maxBytes, FileChannel lockChannel) {
+        this.dir = new File(baseDir, journalId + "");
+        this.maxBytes = maxBytes;
+        this.lockChannel = lockChannel;
+        File[] entries = baseDir.listFiles();
+        if (entries != null) {
+            for (File f : entries) {
+                // Files of other journals, or from before the files were kept per journal:
+                if (f.getName().equals(LOCK_FILE_NAME) || f.equals(dir)) continue;
+                logger.info("Remove package file cache entry of another journal: " + f);
+                FileUtils.deleteQuietly(f);
+            }
+        }
+        dir.mkdirs();
+        File[] existing = dir.listFiles();
+        if (existing == null) return;
+        Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+        for (File f : existing) {
+            if (!f.getName().endsWith(".trig.gz")) {
+                f.delete();
+                continue;
+            }
+            try {
+                long pageNo = Long.parseLong(f.getName().substring(0, f.getName().indexOf('.')));
+                files.put(pageNo, f.length());
+                totalBytes += f.length();
+            } catch (NumberFormatException ex) {
+                f.delete();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Writes the package of the given page, copying it from the source to the cache first if
+     * needed.
+     */
+    public void writePackage(long pageNo, boolean gzipped, OutputStream out, Source source) throws IOException {
+        FileInputStream in = open(pageNo);
+        if (in == null) {
+            misses.increment();
+            File tempFile = File.createTempFile("page" + pageNo + "-", ".tmp", dir);
+            try {
+                try (InputStream sourceIn = source.open()) {
+                    Files.copy(sourceIn, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                in = add(pageNo, tempFile);
+            } finally {
+                tempFile.delete();
+            }
+        } else {
+            hits.increment();
+        }
+        writeTo(in, gzipped, out);
+    }
+
+    /**
+     * Opens the cached file of the given page, or returns null if it is not cached.
+     */
+    public FileInputStream openCached(long pageNo) throws IOException {
+        FileInputStream in = open(pageNo);
+        if (in != null) hits.increment();
+        return in;
+    }
+
+    // Opened while holding the lock, so the file can still be read if it gets evicted:
+    private synchronized FileInputStream open(long pageNo) throws IOException {
+        if (files.get(pageNo) == null) return null;
+        return new FileInputStream(getFile(pageNo));
+    }
+
+    private synchronized FileInputStream add(long pageNo, File tempFile) throws IOException {
+        File file = getFile(pageNo);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Long previous = files.put(pageNo, file.length());
+        if (previous != null) totalBytes -= previous;
+        totalBytes += file.length();
+        FileInputStream in = new FileInputStream(file);
+        evict();
+        return in;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Long, Long>> it = files.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Long, Long> e = it.next();
+            getFile(e.getKey()).delete();
+            totalBytes -= e.getValue();
+            it.remove();
+            logger.debug("Evicted package of page " + e.getKey());
+        }
+    }
+
+    private static FileChannel tryLock(File baseDir) throws IOException {
+        baseDir.mkdirs();
+        FileChannel channel = FileChannel.open(new File(baseDir, LOCK_FILE_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            channel.close();
+            return null;
+        }
+        return channel;
+    }
+
+    private File getFile(long pageNo) {
+        return new File(dir, pageNo + ".trig.gz");
+    }
+
+    /**
+     * Writes the given gzipped package file to the stream, decompressing it if not gzipped.
+     */
+    public static void writeTo(File file, boolean gzipped, OutputStream out) throws IOException {
+        writeTo(new FileInputStream(file), gzipped, out);
+    }
+
+    private static void writeTo(FileInputStream in, boolean gzipped, OutputStream out) throws IOException {
+        try {
+            if (gzipped) {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                long size = channel.size();
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+            } else {
+                IOUtils.copy(new GZIPInputStream(in, 64 * 1024), out);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import net.trustyuri.TrustyUriUtils;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.nanopub.Nanopub;
+
+/**
+ * Nanopub that has been checked and serialized in the internal format of the storage, so that it
+ * only needs to be written when it is committed.
+ */
+public class PreparedNanopub {
+
+    private final Nanopub nanopub;
+    private final String artifactCode;
+    private final String content;
+    private final RDFFormat format;
+
+    public PreparedNanopub(Nanopub nanopub, String content, RDFFormat format) {
+        this.nanopub = nanopub;
+        this.artifactCode = TrustyUriUtils.getArtifactCode(nanopub.getUri().toString());
+        this.content = content;
+        this.format = format;
+    }
+
+    public Nanopub getNanopub() {
+        return nanopub;
+    }
+
+    public String getUri() {
+        return nanopub.getUri().toString();
+    }
+
+    public String getArtifactCode() {
+        return artifactCode;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public RDFFormat getFormat() {
+        return format;
+    }
+
+}
@@ -0,0 +1,26 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import org.eclipse.rdf4j.rio.RDFFormat;
+
+/**
+ * Serialized nanopub as it is stored, together with its RDF format.
+ */
+public class RawNanopub {
+
+    private final byte[] bytes;
+    private final RDFFormat format;
+
+    public RawNanopub(byte[] bytes, RDFFormat format) {
+        this.bytes = bytes;
+        this.format = format;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public RDFFormat getFormat() {
+        return format;
+    }
+
+}
@@ -0,0 +1,65 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bloom filter that grows with the number of inserted elements by adding further filters of
+ * increasing capacity and decreasing false-positive probability, so that the overall
+ * false-positive probability stays bounded without knowing the final size in advance.
+ */
+public class ScalableBloomFilter {
+
+    private static final int GROWTH_FACTOR = 2;
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    private final double fpp;
+    private volatile List<BloomFilter<byte[]>> filters;
+    private long currentCapacity;
+    private long currentCount;
+    private long count;
+
+    public ScalableBloomFilter(long initialCapacity, double fpp) {
+        this.fpp = fpp;
+        clear(initialCapacity);
+    }
+
+    public boolean mightContain(byte[] element) {
+        for (BloomFilter<byte[]> f : filters) {
+            if (f.mightContain(element)) return true;
+        }
+        return false;
+    }
+
+    public synchronized void put(byte[] element) {
+        if (mightContain(element)) return;
+        if (currentCount >= currentCapacity) {
+            List<BloomFilter<byte[]>> newFilters = new ArrayList<>(filters);
+            currentCapacity = currentCapacity * GROWTH_FACTOR;
+            double newFpp = fpp * Math.pow(TIGHTENING_RATIO, newFilters.size());
+            newFilters.add(BloomFilter.create(Funnels.byteArrayFunnel(), currentCapacity, newFpp));
+            filters = newFilters;
+            currentCount = 0;
+        }
+        filters.get(filters.size() - 1).put(element);
+        currentCount++;
+        count++;
+    }
+
+    public synchronized void clear(long initialCapacity) {
+        List<BloomFilter<byte[]>> newFilters = new ArrayList<>();
+        newFilters.add(BloomFilter.create(Funnels.byteArrayFunnel(), initialCapacity, fpp));
+        filters = newFilters;
+        currentCapacity = initialCapacity;
+        currentCount = 0;
+        count = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+}
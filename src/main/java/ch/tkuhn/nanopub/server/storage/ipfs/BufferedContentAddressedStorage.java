@@ -0,0 +1,147 @@
+package ch.tkuhn.nanopub.server.storage.ipfs;
+
+import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.CborObject;
+import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.Cborable;
+import ch.tkuhn.nanopub.server.shared.io.ipfs.multihash.Multihash;
+import ch.tkuhn.nanopub.server.shared.peergos.shared.hamt.Champ;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Keeps new blocks in memory and writes them to IPFS only on {@link #flush(Multihash)}, so that
+ * many updates of a Champ cost a single add request. The hashes are computed locally the same way
+ * as "ipfs add" does for a file of a single chunk, and checked against the returned ones on flush.
+ * Decoded Champ nodes are kept in a {@link ChampNodeCache}.
+ */
+public class BufferedContentAddressedStorage implements ContentAddressedStorage {
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // Larger files are split into several chunks by IPFS, so their hash can't be computed here:
+    private static final int maxChunkSize = 262144;
+
+    private final IPFSStorageImpl target;
+    private final ChampNodeCache nodeCache;
+    private final Map<String, byte[]> dirty = new HashMap<>();
+
+    public BufferedContentAddressedStorage(IPFSStorageImpl target, ChampNodeCache nodeCache) {
+        this.target = target;
+        this.nodeCache = nodeCache;
+    }
+
+    @Override
+    public byte[] put(byte[] value) {
+        if (value.length == 0 || value.length > maxChunkSize) {
+            return target.put(value);
+        }
+        String hash = getFileHash(value).toBase58();
+        synchronized (this) {
+            dirty.put(hash, value);
+        }
+        return hash.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        synchronized (this) {
+            byte[] value = dirty.get(new String(key, StandardCharsets.UTF_8));
+            if (value != null) return value;
+        }
+        return target.get(key);
+    }
+
+    @Override
+    public void remove(byte[] key) {
+        synchronized (this) {
+            if (dirty.remove(new String(key, StandardCharsets.UTF_8)) != null) return;
+        }
+        target.remove(key);
+    }
+
+    @Override
+    public <V extends Cborable> Champ<V> getChamp(Multihash hash, int depth, Function<Cborable, V> fromCbor) {
+        return nodeCache.get(hash, depth, h -> Champ.fromCbor(CborObject.fromByteArray(get(h.toBase58().getBytes(StandardCharsets.UTF_8))), fromCbor));
+    }
+
+    @Override
+    public Multihash putChamp(Champ<?> champ) {
+        Multihash hash = Multihash.fromBase58(new String(put(champ.serialize())));
+        // Likely to be read soon:
+        nodeCache.put(hash, champ);
+        return hash;
+    }
+
+    /**
+     * Writes the blocks that can be reached from the given root with a single request and drops
+     * all other blocks in memory, as they belong to intermediate states that nobody refers to.
+     * Returns the number of written blocks.
+     */
+    public synchronized int flush(Multihash root) {
+        List<String> hashes = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Deque<Multihash> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            String hash = toVisit.pop().toBase58();
+            // Blocks that are not in memory are stored already, and so are all blocks below them:
+            byte[] value = dirty.get(hash);
+            if (value == null || !visited.add(hash)) continue;
+            hashes.add(hash);
+            values.add(value);
+            for (Multihash link : CborObject.fromByteArray(value).links()) {
+                toVisit.push(link);
+            }
+        }
+        if (!values.isEmpty()) {
+            // Blocks stay in memory if this fails, so that the next flush can write them. They are
+            // pinned like the blocks that are written one by one:
+            List<String> cids = target.putAll(values, false);
+            for (int i = 0; i < cids.size(); i++) {
+                if (!cids.get(i).equals(hashes.get(i))) {
+                    throw new RuntimeException("IPFS returned " + cids.get(i) + " instead of " + hashes.get(i));
+                }
+            }
+        }
+        int dropped = dirty.size() - values.size();
+        dirty.clear();
+        logger.debug("Flushed {} blocks, dropped {} intermediate blocks", values.size(), dropped);
+        return values.size();
+    }
+
+    /**
+     * Returns the hash that "ipfs add" gives a file with the given content if it fits into a
+     * single chunk, i.e. the hash of a dag-pb node holding the content as UnixFS file data.
+     */
+    static Multihash getFileHash(byte[] value) {
+        try {
+            ByteArrayOutputStream unixFs = new ByteArrayOutputStream();
+            unixFs.write(new byte[] {0x08, 0x02, 0x12}); // type: file, data:
+            Multihash.putUvarint(unixFs, value.length);
+            unixFs.write(value);
+            unixFs.write(0x18); // file size:
+            Multihash.putUvarint(unixFs, value.length);
+            ByteArrayOutputStream node = new ByteArrayOutputStream();
+            node.write(0x0a); // data:
+            Multihash.putUvarint(node, unixFs.size());
+            unixFs.writeTo(node);
+            return new Multihash(Multihash.Type.sha2_256, Hashing.sha256().hashBytes(node.toByteArray()).asBytes());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package ch.tkuhn.nanopub.server.storage.ipfs;
+
+import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.Cborable;
+import ch.tkuhn.nanopub.server.shared.io.ipfs.multihash.Multihash;
+import ch.tkuhn.nanopub.server.shared.peergos.shared.hamt.Champ;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Decoded Champ nodes, shared by all traversals. Nodes are immutable and addressed by their hash,
+ * so a cached node never gets stale. Frequently used nodes, i.e. the top levels of the tree, are
+ * the last to be evicted. Hits and misses are counted per depth of the node in the tree. Used by
+ * {@link BufferedContentAddressedStorage} for the nodes of the nanopub map.
+ */
+public class ChampNodeCache {
+
+    private final Cache<Multihash, Champ<?>> cache;
+    private final Map<Integer, DepthStats> stats = new ConcurrentHashMap<>();
+
+    public ChampNodeCache(long maxNodes) {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxNodes)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache, "champ-nodes");
+    }
+
+    /**
+     * Returns the node with the given hash, from the cache or else from the given loader.
+     */
+    @SuppressWarnings("unchecked")
+    public <V extends Cborable> Champ<V> get(Multihash hash, int depth, Function<Multihash, Champ<V>> loader) {
+        Multihash key = getKey(hash);
+        DepthStats s = stats.computeIfAbsent(depth, DepthStats::new);
+        Champ<?> node = cache.getIfPresent(key);
+        if (node != null) {
+            s.hits.increment();
+            return (Champ<V>) node;
+        }
+        s.misses.increment();
+        Champ<V> champ = loader.apply(hash);
+        cache.put(key, champ);
+        return champ;
+    }
+
+    /**
+     * Adds a node that was just created, as it is likely to be read soon.
+     */
+    public void put(Multihash hash, Champ<?> node) {
+        cache.put(getKey(hash), node);
+    }
+
+    // CIDs with the same hash have to be the same key:
+    private static Multihash getKey(Multihash hash) {
+        if (hash.getClass() == Multihash.class) return hash;
+        return new Multihash(hash.type, hash.getHash());
+    }
+
+    private static class DepthStats {
+
+        final Counter hits;
+        final Counter misses;
+
+        DepthStats(int depth) {
+            Tags tags = Tags.of("depth", String.valueOf(depth));
+            hits = Metrics.counter("nanopub.champ.cache.requests", tags.and("result", "hit"));
+            misses = Metrics.counter("nanopub.champ.cache.requests", tags.and("result", "miss"));
+            Metrics.gauge("nanopub.champ.cache.hit.ratio", tags, this, DepthStats::getHitRatio);
+        }
+
+        double getHitRatio() {
+            double total = hits.count() + misses.count();
+            return total == 0 ? 0 : hits.count() / total;
+        }
+
+    }
+
+}
@@ -1,5 +1,13 @@
 package ch.tkuhn.nanopub.server.storage.ipfs;
 
+import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.CborObject;
+import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.Cborable;
+import ch.tkuhn.nanopub.server.shared.io.ipfs.multihash.Multihash;
+import ch.tkuhn.nanopub.server.shared.peergos.shared.hamt.Champ;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
 public interface ContentAddressedStorage {
 
     /**
@@ -21,4 +29,19 @@ public interface ContentAddressedStorage {
      * @param key the hash of a value previously stored
      */
     void remove(byte[] key);
+
+    /**
+     * Returns the decoded Champ node with the given hash, which is at the given depth of its tree.
+     * Implementations can keep decoded nodes, as they never change.
+     */
+    default <V extends Cborable> Champ<V> getChamp(Multihash hash, int depth, Function<Cborable, V> fromCbor) {
+        return Champ.fromCbor(CborObject.fromByteArray(get(hash.toBase58().getBytes(StandardCharsets.UTF_8))), fromCbor);
+    }
+
+    /**
+     * Stores the given Champ node and returns its hash.
+     */
+    default Multihash putChamp(Champ<?> champ) {
+        return Multihash.fromBase58(new String(put(champ.serialize())));
+    }
 }
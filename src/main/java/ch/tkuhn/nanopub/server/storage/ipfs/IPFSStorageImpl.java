@@ -13,9 +13,13 @@ import org.apache.commons.lang.NotImplementedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 public class IPFSStorageImpl implements ContentAddressedStorage {
     private Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -93,6 +97,74 @@ public class IPFSStorageImpl implements ContentAddressedStorage {
                 });
     }
 
+    /**
+     * Adds several files with a single request and returns their CIDs in the same order. The files
+     * are pinned by the same request, unless noPin is set.
+     */
+    public List<String> putAll(List<byte[]> values, boolean noPin) {
+        return Failsafe.with(retryPolicy)
+                .onFailure(event -> logger.error("Exception writing {} files on IPFS after {} attemps.", values.size(), event.getAttemptCount()))
+                .get(() -> {
+                    try {
+                        List<NamedStreamable> files = new ArrayList<>();
+                        for (byte[] value : values) {
+                            files.add(new NamedStreamable.ByteArrayWrapper(value));
+                        }
+                        // No separate pin request is needed per file:
+                        List<MerkleNode> response = this.getIPFS().add(files, false, false, !noPin);
+                        if (response.size() != values.size()) {
+                            throw new IOException("Unexpected number of added files: " + response.size());
+                        }
+                        List<String> cids = new ArrayList<>();
+                        for (MerkleNode node : response) {
+                            cids.add(node.hash.toBase58());
+                        }
+                        return cids;
+                    } catch (RuntimeException ex) {
+                        if (ex.getMessage().contains("timeout")) { //TODO find something more elegant
+                            throw new RuntimeException("Exception while writing files on IPFS", ex);
+                        } else {
+                            throw ex;
+                        }
+                    } catch (IOException ex) {
+                        throw new RuntimeException("Exception while writing files on IPFS", ex);
+                    }
+                });
+    }
+
+    /**
+     * Adds the content of the given file without reading it into memory, and returns its CID.
+     */
+    public String putFile(File file) {
+        return Failsafe.with(retryPolicy)
+                .onFailure(event -> logger.error("Exception writing file {} on IPFS after {} attemps.", file, event.getAttemptCount()))
+                .get(() -> {
+                    try {
+                        MerkleNode response = this.getIPFS().add(new NamedStreamable.FileWrapper(file), false).get(0);
+                        this.getIPFS().pin.add(response.hash);
+                        return response.hash.toBase58();
+                    } catch (IOException ex) {
+                        throw new RuntimeException("Exception while writing file on IPFS", ex);
+                    }
+                });
+    }
+
+    /**
+     * Opens a stream on the content with the given CID, so that it can be read without holding it
+     * in memory as a whole. The caller has to close the stream.
+     */
+    public InputStream getStream(String cid) {
+        return Failsafe.with(retryPolicy)
+                .onFailure(event -> logger.error("Exception reading file [id: {}] on IPFS after {} attempts.", cid, event.getAttemptCount(), event.getFailure()))
+                .get(() -> {
+                    try {
+                        return this.getIPFS().catStream(Cid.decode(cid));
+                    } catch (IOException ex) {
+                        throw new RuntimeException("Exception while fetching file from IPFS " + cid, ex);
+                    }
+                });
+    }
+
     @Override
     public byte[] get(byte[] hash) {
         return Failsafe.with(retryPolicy)
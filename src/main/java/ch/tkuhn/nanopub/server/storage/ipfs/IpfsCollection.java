@@ -6,13 +6,18 @@ import ch.tkuhn.nanopub.server.shared.io.ipfs.api.MerkleNode;
 import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.CborObject;
 import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.Cborable;
 import ch.tkuhn.nanopub.server.shared.io.ipfs.cid.Cid;
+import ch.tkuhn.nanopub.server.shared.io.ipfs.multihash.Multihash;
 import ch.tkuhn.nanopub.server.storage.CollectionTypeEnum;
 import ch.tkuhn.nanopub.server.storage.ipfs.entities.JournalT;
 import ch.tkuhn.nanopub.server.storage.ipfs.entities.PeersT;
 import ch.tkuhn.nanopub.server.utils.CaselessProperties;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -22,9 +27,17 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 //inspired by https://github.com/aditsachde/hamt-rs/tree/5365d8e36ad20d7ff2d466001731322587b03e73
 //TODO: IPLD Modeling
@@ -34,10 +47,17 @@ public class IpfsCollection {
     static CollectionMap<String, PeersT> peerList;
     static CollectionMap<String, JournalT> journalList;
     static CollectionMap<String, CborObject.CborString> packagedList;
+    // CIDs of the blocks holding the complete journal pages, by page number:
+    static CollectionMap<String, CborObject.CborString> journalPageList;
     static NanopubMappingCollection nanopubs;
     private IPFS ipfs;
     private boolean noPin;
     private Properties properties;
+    private int flushCount;
+    // Keys of the nanopub map that were added since the last flush, in the order of adding:
+    private final List<String> unflushedKeys = new ArrayList<>();
+    private Consumer<List<String>> flushListener;
+    private final ScheduledExecutorService flushScheduler;
 
     public IpfsCollection(IPFSStorageImpl ipfsImpl, boolean noPin) {
         Objects.requireNonNull(ipfsImpl);
@@ -47,7 +67,25 @@ public class IpfsCollection {
         peerList = this.<PeersT>init("peers", PeersT.class);
         journalList = this.<JournalT>init("journal", JournalT.class);
         packagedList = this.<CborObject.CborString>init("packagedFile", CborObject.CborString.class);
-        nanopubs = new NanopubMappingCollection(0, ipfsImpl);
+        journalPageList = this.<CborObject.CborString>init("journalPages", CborObject.CborString.class);
+        // Continues with the map as it was last flushed:
+        String nanopubsRoot = getRootCid(CollectionTypeEnum.Nanopubs.toString());
+        nanopubs = new NanopubMappingCollection(Strings.isNullOrEmpty(nanopubsRoot) ? null : Multihash.fromBase58(nanopubsRoot),
+                new BufferedContentAddressedStorage(ipfsImpl, new ChampNodeCache(ServerConf.get().getChampCacheMaxNodes())));
+        flushCount = ServerConf.get().getIpfsMappingFlushCount();
+        long flushInterval = ServerConf.get().getIpfsMappingFlushInterval();
+        flushScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ipfs-mapping-flush").setDaemon(true).build());
+        flushScheduler.scheduleWithFixedDelay(this::flushNanopubCollection, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the scheduled flushes and writes the entries of the nanopub map that are still only
+     * held in memory. Has to be called before the IPFS client is closed.
+     */
+    public void close() {
+        flushScheduler.shutdownNow();
+        flushNanopubCollection();
     }
 
 
@@ -67,6 +105,10 @@ public class IpfsCollection {
     }
 
 
+    public boolean isNoPin() {
+        return noPin;
+    }
+
     synchronized public CollectionMap<String, PeersT> getPeerCollection() {
         if (peerList == null) {
             peerList = new CollectionMap<>();
@@ -74,6 +116,13 @@ public class IpfsCollection {
         return peerList;
     }
 
+    /**
+     * Returns a copy of the peers, which can be iterated while peers are updated.
+     */
+    synchronized public List<PeersT> getPeers() {
+        return new ArrayList<>(getPeerCollection().values());
+    }
+
     synchronized public CollectionMap<String, JournalT> getJournalCollection() {
         if (journalList == null) {
             journalList = new CollectionMap<>();
@@ -115,31 +164,183 @@ public class IpfsCollection {
     }
 
 
-    public PeersT setPeerCollection(String key, PeersT value) {
+    synchronized public PeersT setPeerCollection(String key, PeersT value) {
         peerList.put(key, value);
         resolve(CollectionTypeEnum.Peers.toString(), peerList);
         return value;
     }
 
-    public JournalT setJournalCollection(String key, JournalT value) {
+    synchronized public JournalT setJournalCollection(String key, JournalT value) {
         journalList.put(key, value);
         resolve(CollectionTypeEnum.Journal.toString(), journalList);
         return value;
     }
 
-    public String setPackagedListCollection(String key, String value) {
+    synchronized public String setPackagedListCollection(String key, String value) {
         packagedList.put(key, new CborObject.CborString(value));
         resolve(CollectionTypeEnum.PackagedFile.toString(), packagedList);
         return value;
     }
 
-    public String setNanopubCollection(String key, String value) {
-        String hash = nanopubs.put(key, new CborObject.CborString(value)).toBase58();
-        updatePin(properties.getProperty(CollectionTypeEnum.Nanopubs.toString()), hash, true);
-        setRootCid(CollectionTypeEnum.Nanopubs.toString(), hash);
+    synchronized public String setNanopubCollection(String key, String value) {
+        nanopubs.put(key, new CborObject.CborString(value));
+        unflushedKeys.add(key);
+        if (nanopubs.getUnflushedCount() >= flushCount) flushNanopubCollection();
         return value;
     }
 
+    /**
+     * Adds several entries to the nanopub map. The changed nodes of the map are kept in memory
+     * until enough entries were added or the flush interval is over.
+     */
+    synchronized public void setNanopubCollections(Map<String, String> values) {
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            nanopubs.put(e.getKey(), new CborObject.CborString(e.getValue()));
+            unflushedKeys.add(e.getKey());
+        }
+        if (nanopubs.getUnflushedCount() >= flushCount) flushNanopubCollection();
+    }
+
+    /**
+     * Sets the listener that gets the keys of the nanopub map after they have been flushed, i.e.
+     * once they would survive a restart.
+     */
+    synchronized public void setFlushListener(Consumer<List<String>> flushListener) {
+        this.flushListener = flushListener;
+    }
+
+    /**
+     * Writes the nodes of the nanopub map that are only held in memory with a single request, and
+     * then updates the pin and the root CID once.
+     */
+    synchronized public void flushNanopubCollection() {
+        try {
+            if (nanopubs.getUnflushedCount() == 0) return;
+            String hash = nanopubs.flush().toBase58();
+            updatePin(getRootCid(CollectionTypeEnum.Nanopubs.toString()), hash, true);
+            setRootCid(CollectionTypeEnum.Nanopubs.toString(), hash);
+            List<String> flushedKeys = new ArrayList<>(unflushedKeys);
+            unflushedKeys.clear();
+            if (flushListener != null) flushListener.accept(flushedKeys);
+        } catch (Exception e) {
+            // Also has to catch runtime exceptions, as they would stop the scheduled flushes:
+            logger.error("Cannot flush nanopub map", e);
+        }
+    }
+
+    /**
+     * Stores journal entries as their own block that links to the previous entries of the same
+     * page, and makes it the new head of the entries of the current page.
+     */
+    public String appendJournalEntries(long pageNo, List<String> uris, String previousCid) {
+        Map<String, Cborable> entry = new TreeMap<>();
+        entry.put("page", new CborObject.CborLong(pageNo));
+        entry.put("uris", CborObject.CborList.build(uris, CborObject.CborString::new));
+        if (previousCid != null) {
+            entry.put("prev", new CborObject.CborMerkleLink(Cid.decode(previousCid)));
+        }
+        try {
+            MerkleNode merkleNode = ipfs.dag.put("dag-cbor", CborObject.CborMap.build(entry).toByteArray());
+            String cid = merkleNode.hash.toString();
+            String existing = getRootCid(CollectionTypeEnum.JournalPage.toString());
+            if (previousCid != null && previousCid.equals(existing)) {
+                updatePin(existing, cid, true);
+            } else {
+                if (!noPin) ipfs.pin.add(merkleNode.hash);
+                if (!Strings.isNullOrEmpty(existing)) ipfs.pin.rm(Cid.decode(existing));
+            }
+            setRootCid(CollectionTypeEnum.JournalPage.toString(), cid);
+            return cid;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot store journal entry", e);
+        }
+    }
+
+    /**
+     * Returns the next nanopub number of the journal, or null if it is not stored on its own yet
+     * (older versions kept it in the journal collection).
+     */
+    public Long getJournalNextNanopubNo() {
+        String s = getRootCid(CollectionTypeEnum.JournalNextNanopubNo.toString());
+        if (Strings.isNullOrEmpty(s)) return null;
+        return Long.parseLong(s.trim());
+    }
+
+    /**
+     * Stores the next nanopub number of the journal next to the root CIDs, so that a commit
+     * doesn't rewrite the journal collection.
+     */
+    public void setJournalNextNanopubNo(long nextNanopubNo) {
+        setRootCid(CollectionTypeEnum.JournalNextNanopubNo.toString(), String.valueOf(nextNanopubNo));
+    }
+
+    /**
+     * Returns the content of the given complete journal page, or null if it is not stored on its
+     * own (older versions kept complete pages in the journal collection).
+     */
+    synchronized public String getJournalPage(long pageNo) {
+        CborObject.CborString cid = journalPageList.get(pageNo + "");
+        if (cid == null) return null;
+        try {
+            JsonObject page = JsonParser.parseString(new String(ipfs.dag.get(Cid.decode(cid.value)), StandardCharsets.UTF_8)).getAsJsonObject();
+            return page.get("content").getAsString();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read journal page: " + pageNo, e);
+        }
+    }
+
+    /**
+     * Stores a complete journal page as its own block. Only the small list of page CIDs is
+     * rewritten, once per page.
+     */
+    synchronized public void setJournalPage(long pageNo, String content) {
+        Map<String, Cborable> page = new TreeMap<>();
+        page.put("page", new CborObject.CborLong(pageNo));
+        page.put("content", new CborObject.CborString(content));
+        try {
+            MerkleNode merkleNode = ipfs.dag.put("dag-cbor", CborObject.CborMap.build(page).toByteArray());
+            if (!noPin) ipfs.pin.add(merkleNode.hash);
+            journalPageList.put(pageNo + "", new CborObject.CborString(merkleNode.hash.toString()));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot store journal page: " + pageNo, e);
+        }
+        resolve(CollectionTypeEnum.JournalPages.toString(), journalPageList);
+    }
+
+    /**
+     * Returns the head of the entries of the current journal page, or null if there is none.
+     */
+    public String getJournalPageHead() {
+        String cid = getRootCid(CollectionTypeEnum.JournalPage.toString());
+        if (Strings.isNullOrEmpty(cid)) return null;
+        return cid;
+    }
+
+    /**
+     * Follows the links from the given head entry and returns the URIs of all entries of the given
+     * page, in the order they were appended.
+     */
+    public List<String> getJournalEntries(String headCid, long pageNo) {
+        List<JsonArray> blocks = new ArrayList<>();
+        String cid = headCid;
+        try {
+            while (cid != null) {
+                JsonObject entry = JsonParser.parseString(new String(ipfs.dag.get(Cid.decode(cid)), StandardCharsets.UTF_8)).getAsJsonObject();
+                if (entry.get("page").getAsLong() != pageNo) break;
+                blocks.add(entry.getAsJsonArray("uris"));
+                cid = entry.has("prev") ? entry.getAsJsonObject("prev").get("/").getAsString() : null;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read journal entry: " + cid, e);
+        }
+        Collections.reverse(blocks);
+        List<String> uris = new ArrayList<>();
+        for (JsonArray block : blocks) {
+            block.forEach(uri -> uris.add(uri.getAsString()));
+        }
+        return uris;
+    }
+
     private <V> CollectionMap<String, V> init(String key, Class<V> clazz) {
         try {
             String cidString = getRootCid(key);
@@ -3,18 +3,51 @@ package ch.tkuhn.nanopub.server.storage.ipfs;
 import ch.tkuhn.nanopub.server.NanopubServerUtils;
 import ch.tkuhn.nanopub.server.ServerConf;
 import ch.tkuhn.nanopub.server.storage.Journal;
+import ch.tkuhn.nanopub.server.storage.JournalSnapshot;
 import ch.tkuhn.nanopub.server.storage.ipfs.entities.JournalT;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class JournalIpfsImpl implements Journal {
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     private IpfsCollection collection;
+    private final AtomicReference<JournalSnapshot> snapshot = new AtomicReference<>();
+    private long nextNanopubNo;
+    // The current page is kept in memory; its entries are stored as linked blocks in IPFS:
+    private long openPageNo;
+    private StringBuilder openPageContent;
+    private String openPageHead;
+
     public JournalIpfsImpl(IpfsCollection collection) {
         this.collection = collection;
         init();
+        nextNanopubNo = loadNextNanopubNo();
+        snapshot.set(new JournalSnapshot(Long.parseLong(getField("journal-id")), nextNanopubNo,
+                Integer.parseInt(getField("page-size")), getField("uri-pattern"), getField("hash-pattern")));
+        loadOpenPage();
+    }
+
+    private String getField(String field) {
+        return collection.getJournalCollection().get(field).getValue();
+    }
+
+    private long loadNextNanopubNo() {
+        Long n = collection.getJournalNextNanopubNo();
+        if (n != null) return n;
+        return Long.parseLong(getField("next-nanopub-no"));
+    }
+
+    // Complete pages are stored on their own, or in the journal collection by older versions:
+    private String getStoredPage(long pageNo) {
+        String content = collection.getJournalPage(pageNo);
+        if (content != null) return content;
+        JournalT page = collection.getJournalCollection().get("page" + pageNo);
+        return page == null ? null : page.getValue();
     }
 
     private void init() {
@@ -52,7 +85,7 @@ public class JournalIpfsImpl implements Journal {
         collection.setJournalCollection("journal-version", new JournalT("journal-version", NanopubServerUtils.journalVersion));
         logger.info("Journal upgraded to version " + NanopubServerUtils.journalVersion);
 
-        long j = getJournalId();
+        long j = Long.parseLong(getField("journal-id"));
         if (j == 0) {
             // Prebuilt DB from a downloaded package that doesn't have a journal ID yet
             j = Math.abs(new Random().nextLong());
@@ -60,46 +93,71 @@ public class JournalIpfsImpl implements Journal {
         }
     }
 
-    @Override
-    public long getJournalId() {
-        return Long.parseLong(collection.getJournalCollection().get("journal-id").getValue());
+    private void loadOpenPage() {
+        openPageNo = nextNanopubNo / getPageSize() + 1;
+        openPageContent = new StringBuilder();
+        openPageHead = null;
+        restoreLastPage();
+        String pageName = "page" + openPageNo;
+        if (collection.getJournalCollection().containsKey(pageName)) {
+            // Partial page written by an older version as a single string
+            openPageContent.append(collection.getJournalCollection().get(pageName).getValue());
+        }
+        String head = collection.getJournalPageHead();
+        if (head != null) {
+            List<String> uris = collection.getJournalEntries(head, openPageNo);
+            if (!uris.isEmpty()) {
+                openPageHead = head;
+                for (String uri : uris) {
+                    openPageContent.append(uri).append("\n");
+                }
+            }
+        }
     }
 
-    @Override
-    public int getPageSize() {
-        return Integer.parseInt(collection.getJournalCollection().get("page-size").getValue());
+    // If the process stopped after the last entries of a page were stored but before the complete
+    // page was, the page is rebuilt from its entries:
+    private void restoreLastPage() {
+        long pageNo = openPageNo - 1;
+        String head = collection.getJournalPageHead();
+        if (pageNo < 1 || head == null || getStoredPage(pageNo) != null) return;
+        List<String> uris = collection.getJournalEntries(head, pageNo);
+        if (uris.isEmpty()) return;
+        if (uris.size() != getPageSize()) {
+            logger.warn("Journal page " + pageNo + " has only " + uris.size() + " entries");
+        }
+        logger.info("Restore journal page " + pageNo + " from its entries");
+        StringBuilder content = new StringBuilder();
+        for (String uri : uris) {
+            content.append(uri).append("\n");
+        }
+        collection.setJournalPage(pageNo, content.toString());
     }
 
     @Override
-    public long getNextNanopubNo() {
-
-        return Long.parseLong(collection.getJournalCollection().get("next-nanopub-no").getValue());
+    public JournalSnapshot getSnapshot() {
+        return snapshot.get();
     }
 
-    @Override
-    public long getCurrentPageNo() {
-        return getNextNanopubNo() / getPageSize() + 1;
+    // Number for the next nanopub, which is ahead of the snapshot while a commit is in progress:
+    synchronized long getNextFreeNanopubNo() {
+        return nextNanopubNo;
     }
 
-    @Override
-    public String getUriPattern() {
-        return collection.getJournalCollection().get("uri-pattern").getValue();
+    // Makes the nanopubs of the finished commit visible to readers:
+    synchronized void publishSnapshot() {
+        snapshot.set(snapshot.get().withNextNanopubNo(nextNanopubNo));
     }
 
     @Override
-    public String getHashPattern() {
-        return collection.getJournalCollection().get("hash-pattern").getValue();
-    }
-
-    @Override
-    public String getPageContent(long pageNo) {
-        String pageName = "page" + pageNo;
-        String pageContent = null;
-        if (collection.getJournalCollection().containsKey(pageName)) {
-            pageContent = collection.getJournalCollection().get(pageName).getValue();
+    public synchronized String getPageContent(long pageNo) {
+        if (pageNo == openPageNo) {
+            return openPageContent.toString();
         }
+        String pageName = "page" + pageNo;
+        String pageContent = getStoredPage(pageNo);
         if (pageContent == null) {
-            if (getNextNanopubNo() % getPageSize() > 0) {
+            if (nextNanopubNo % getPageSize() > 0) {
                 throw new RuntimeException("Cannot find journal page: " + pageName);
             }
             // Make new page
@@ -109,15 +167,10 @@ public class JournalIpfsImpl implements Journal {
         return pageContent;
     }
 
-    @Override
-    public synchronized String getStateId() {
-        return getJournalId() + "/" + getNextNanopubNo();
-    }
-
     @Override
     public synchronized int getVersionValue() {
         try {
-            return NanopubServerUtils.getVersionValue(collection.getJournalCollection().get("journal-version").getValue());
+            return NanopubServerUtils.getVersionValue(getField("journal-version"));
         } catch (Exception ex) {
             logger.error("getVersionValue :" + ex.getMessage());
             return 0;
@@ -127,19 +180,55 @@ public class JournalIpfsImpl implements Journal {
     @Override
     // Raise error if there is evidence of two parallel processes accessing the database:
     public synchronized void checkNextNanopubNo() {
-        long loadedNextNanopubNo = Long.parseLong(collection.getJournalCollection().get("next-nanopub-no").getValue());
-        if (loadedNextNanopubNo != getNextNanopubNo()) {
-            if (loadedNextNanopubNo > getNextNanopubNo()) { collection.setJournalCollection("next-nanopub-no", new JournalT("next-nanopub-no", loadedNextNanopubNo + "")); }
+        long loadedNextNanopubNo = loadNextNanopubNo();
+        if (loadedNextNanopubNo != nextNanopubNo) {
+            if (loadedNextNanopubNo > nextNanopubNo) nextNanopubNo = loadedNextNanopubNo;
             throw new RuntimeException("ERROR. Mismatch of nanopub count from MongoDB: several parallel processes?");
         }
     }
 
     synchronized void increaseNextNanopubNo() {
-        collection.setJournalCollection("next-nanopub-no", new JournalT("next-nanopub-no", String.valueOf(getNextNanopubNo() + 1)));
+        increaseNextNanopubNo(1);
+    }
+
+    synchronized void increaseNextNanopubNo(int count) {
+        nextNanopubNo += count;
+        // Not in the journal collection, which would be rewritten as a whole:
+        collection.setJournalNextNanopubNo(nextNanopubNo);
+    }
+
+    synchronized void appendToPage(long pageNo, String npUri) {
+        appendEntries(pageNo, Collections.singletonList(npUri));
     }
 
-    synchronized void setPageContent(long pageNo, String pageContent) {
-        collection.setJournalCollection("page" + pageNo, new JournalT("page" + pageNo, pageContent));
+    // Appends the URIs of nanopubs with consecutive numbers starting at firstNanopubNo, with one
+    // entry block per affected page:
+    synchronized void appendToPages(long firstNanopubNo, List<String> npUris) {
+        int pageSize = getPageSize();
+        int i = 0;
+        while (i < npUris.size()) {
+            long npNo = firstNanopubNo + i;
+            int n = (int) Math.min(npUris.size() - i, pageSize - npNo % pageSize);
+            appendEntries(npNo / pageSize + 1, npUris.subList(i, i + n));
+            i += n;
+        }
+    }
+
+    // Stores the entries on their own instead of rewriting the whole page. Only when the page is
+    // complete, its full content is stored as a block of its own.
+    private void appendEntries(long pageNo, List<String> npUris) {
+        if (pageNo != openPageNo) {
+            openPageNo = pageNo;
+            openPageContent = new StringBuilder();
+            openPageHead = null;
+        }
+        openPageHead = collection.appendJournalEntries(pageNo, npUris, openPageHead);
+        for (String npUri : npUris) {
+            openPageContent.append(npUri).append("\n");
+        }
+        if (pageNo < nextNanopubNo / getPageSize() + 1) {
+            collection.setJournalPage(pageNo, openPageContent.toString());
+        }
     }
 
 }
@@ -17,11 +17,20 @@ public class NanopubMappingCollection {
     private Champ<CborObject.CborString> current;
     private Pair<Champ<CborObject.CborString>, Multihash> updated;
     private Multihash currentHash;
+    private int unflushedCount = 0;
 
-    public NanopubMappingCollection(long count, ContentAddressedStorage storage) {
+    /**
+     * Opens the map with the given root, or an empty map if the root is null.
+     */
+    public NanopubMappingCollection(Multihash root, ContentAddressedStorage storage) {
         this.storage = storage;
-        current = Champ.empty(c -> (CborObject.CborString) c);
-        currentHash = Multihash.fromBase58(new String(storage.put(current.serialize())));
+        if (root == null) {
+            current = Champ.empty(c -> (CborObject.CborString) c);
+            currentHash = Multihash.fromBase58(new String(storage.put(current.serialize())));
+        } else {
+            current = storage.getChamp(root, 0, c -> (CborObject.CborString) c);
+            currentHash = root;
+        }
         updated = new Pair<>(current, currentHash);
     }
 
@@ -30,11 +39,14 @@ public class NanopubMappingCollection {
     }
 
 
+    /**
+     * Returns the value for the given key, or null if there is none.
+     */
     public String get(String key) {
         ByteArrayWrapper byteKey = new ByteArrayWrapper(key.getBytes(StandardCharsets.UTF_8));
         return updated.left.get(byteKey, Hashing.sha256()
-                .hashString(byteKey.toString(), StandardCharsets.UTF_8).asBytes(), 0, BIT_WIDTH, storage).join().get().value;
-
+                .hashString(byteKey.toString(), StandardCharsets.UTF_8).asBytes(), 0, BIT_WIDTH, storage).join()
+                .map(v -> v.value).orElse(null);
     }
 
     public Multihash put(String key, CborObject.CborString value) {
@@ -44,8 +56,28 @@ public class NanopubMappingCollection {
                 .hashString(bKey.toString(), StandardCharsets.UTF_8).asBytes(), 0, Optional.of(value), BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, storage, currentHash).join();
         current = updated.left;
         currentHash = updated.right;
+        unflushedCount++;
         return updated.right;
     }
 
+    /**
+     * Returns the number of entries added since the last flush.
+     */
+    public int getUnflushedCount() {
+        return unflushedCount;
+    }
+
+    /**
+     * Writes the nodes of the current root that are only held in memory, if the storage buffers
+     * them, and returns the root.
+     */
+    public Multihash flush() {
+        if (storage instanceof BufferedContentAddressedStorage) {
+            ((BufferedContentAddressedStorage) storage).flush(currentHash);
+        }
+        unflushedCount = 0;
+        return currentHash;
+    }
+
 
 }
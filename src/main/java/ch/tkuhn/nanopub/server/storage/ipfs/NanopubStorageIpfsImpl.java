@@ -1,27 +1,28 @@
 package ch.tkuhn.nanopub.server.storage.ipfs;
 
+import ch.tkuhn.nanopub.server.HealthMonitor;
 import ch.tkuhn.nanopub.server.ServerConf;
-import ch.tkuhn.nanopub.server.Utils;
+import ch.tkuhn.nanopub.server.storage.ArtifactCodeIndex;
 import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
 import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
 import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
 import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
 import ch.tkuhn.nanopub.server.storage.Journal;
 import ch.tkuhn.nanopub.server.storage.NanopubStorage;
+import ch.tkuhn.nanopub.server.storage.NanopubStorageUtils;
+import ch.tkuhn.nanopub.server.storage.PackageBuilder;
+import ch.tkuhn.nanopub.server.storage.PackageFileCache;
+import ch.tkuhn.nanopub.server.storage.PreparedNanopub;
+import ch.tkuhn.nanopub.server.storage.RawNanopub;
+import ch.tkuhn.nanopub.server.shared.io.ipfs.cbor.CborObject;
 import ch.tkuhn.nanopub.server.storage.ipfs.entities.PeersT;
 import com.google.common.base.Strings;
 import com.google.inject.Singleton;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import net.trustyuri.TrustyUriUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.eclipse.rdf4j.RDF4JException;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFHandlerException;
@@ -34,7 +35,12 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -49,103 +55,106 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
     private JournalIpfsImpl journalIpfsImpl;
     private IPFSStorageImpl ipfs;
     private IpfsCollection collection;
+    private ArtifactCodeIndex artifactIndex;
+    private PackageBuilder packageBuilder;
+    private PackageFileCache packageFileCache;
+    // New nanopubs that are not flushed to the nanopub map yet, with their numbers; they are only
+    // added to the index once flushed, so that the index has no entries that a crash would lose:
+    private final Map<String, Long> unindexed = new ConcurrentHashMap<>();
 
     public NanopubStorageIpfsImpl() {
         ipfs = new IPFSStorageImpl();
+        HealthMonitor.get().watchFreeSpace(new File(ServerConf.get().getIpfsRootCidPropertiesPath()).getAbsoluteFile().getParentFile());
         collection = new IpfsCollection(this.ipfs, false);
         for (String s : ServerConf.get().getInitialPeers()) {
             addPeerToCollection(s);
         }
         journalIpfsImpl = new JournalIpfsImpl(collection);
+        try {
+            artifactIndex = ArtifactCodeIndex.open(new File(ServerConf.get().getArtifactIndexPath()));
+            artifactIndex.catchUp(journalIpfsImpl, codes -> codes.stream()
+                    .filter(collection::containsNanopubCollection).collect(Collectors.toSet()));
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot open artifact code index", ex);
+        }
+        collection.setFlushListener(this::indexFlushed);
+        packageBuilder = new PackageBuilder(new File(ServerConf.get().getPackageBuildDir()), this::storePackage);
+        packageFileCache = PackageFileCache.create(journalIpfsImpl.getJournalId());
     }
 
 
     @Override
-    public void loadNanopub(Nanopub np) throws NotTrustyNanopubException, OversizedNanopubException, NanopubDbException, ProtectedNanopubException {
-        if (np instanceof NanopubWithNs) {
-            ((NanopubWithNs) np).removeUnusedPrefixes();
-        }
-        if (!TrustyNanopubUtils.isValidTrustyNanopub(np)) {
-            throw new NotTrustyNanopubException(np);
-        }
-        if (!ServerConf.get().isRunAsLocalServerEnabled() && Utils.isProtectedNanopub(np)) {
-            throw new ProtectedNanopubException(np);
-        }
-        ch.tkuhn.nanopub.server.ServerInfo info = ServerConf.getInfo();
-        if (info.getMaxNanopubTriples() != null && np.getTripleCount() > info.getMaxNanopubTriples()) {
-            throw new OversizedNanopubException(np);
-        }
-        if (info.getMaxNanopubBytes() != null && np.getByteCount() > info.getMaxNanopubBytes()) {
-            throw new OversizedNanopubException(np);
-        }
-        if (isFull()) {
-            throw new NanopubDbException("Server is full (maximum number of nanopubs reached)");
-        }
-
-        String artifactCode = TrustyUriUtils.getArtifactCode(np.getUri().toString());
-        String npString = null;
+    public PreparedNanopub prepareNanopub(Nanopub np) throws NotTrustyNanopubException, OversizedNanopubException, ProtectedNanopubException {
+        NanopubStorageUtils.checkNanopub(np);
         try {
-            npString = NanopubUtils.writeToString(np, internalFormat);
+            return new PreparedNanopub(np, NanopubUtils.writeToString(np, internalFormat), internalFormat);
         } catch (RDFHandlerException ex) {
             throw new RuntimeException("Unexpected exception when processing nanopub", ex);
         }
+    }
 
-        if (!collection.containsNanopubCollection(artifactCode)) {
-            journalIpfsImpl.checkNextNanopubNo();
-            long currentPageNo = journalIpfsImpl.getCurrentPageNo();
-            String pageContent = journalIpfsImpl.getPageContent(currentPageNo);
-            pageContent += np.getUri() + "\n";
-            // TODO Implement proper transactions, rollback, etc.
-            // The following three lines of code are critical. If Java gets interrupted
-            // in between, the data will remain in a slightly inconsistent state (but, I
-            // think, without serious consequences).
-            journalIpfsImpl.increaseNextNanopubNo();
-            // If interrupted here, the current page of the journal will miss one entry
-            // (e.g. contain only 999 instead of 1000 entries).
-            journalIpfsImpl.setPageContent(currentPageNo, pageContent);
-            // If interrupted here, journal will contain an entry that cannot be found in
-            // the database. This entry might be loaded later and then appear twice in the
-            // journal.
-//            String document = new Gson().(new NanoPubT(artifactCode, npString, np.getUri().toString()));
-            String hash = write(npString.getBytes(StandardCharsets.UTF_8), false);
-            if(!Strings.isNullOrEmpty(hash)) {
-                collection.setNanopubCollection(artifactCode, hash);
-                this.ipfs.pin(hash);
-            }
+    @Override
+    public synchronized List<PreparedNanopub> commitNanopubs(List<PreparedNanopub> nanopubs) throws NanopubDbException {
+        if (isFull()) {
+            throw new NanopubDbException("Server is full (maximum number of nanopubs reached)");
         }
-        String[] postUrls = ServerConf.get().getPostUrls();
-        for (String postUrl : postUrls) {
-            if (!Strings.isNullOrEmpty(postUrl)) {
-                int failedTries = 0;
-                boolean success = false;
-                while (!success && failedTries < 3) {
-                    try {
-                        HttpPost post = new HttpPost(postUrl);
-                        post.setHeader("Content-Type", internalFormat.getDefaultMIMEType());
-                        post.setEntity(new StringEntity(npString, "UTF-8"));
-                        HttpResponse response = HttpClientBuilder.create().build().execute(post);
-                        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                            success = true;
-                        } else {
-                            logger.error("Failed to post nanopub to " + postUrl + ": " + response.getStatusLine().getReasonPhrase());
-                            failedTries++;
-                        }
-                    } catch (Exception ex) {
-                        logger.error("Error while posting nanopub", ex);
-                        failedTries++;
-                    }
-                    if (!success) {
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException ex) {
-                        }
-                    }
-                }
+        Map<String, PreparedNanopub> newNanopubs = new LinkedHashMap<>();
+        for (PreparedNanopub np : nanopubs) {
+            if (!newNanopubs.containsKey(np.getArtifactCode()) && !hasNanopub(np.getArtifactCode())) {
+                newNanopubs.put(np.getArtifactCode(), np);
             }
         }
-        if (ServerConf.get().isLogNanopubLoadingEnabled()) {
-            logger.info("Nanopub loaded: " + np.getUri());
+        NanopubStorageUtils.checkCapacity(newNanopubs.size(), journalIpfsImpl.getNextFreeNanopubNo());
+        if (newNanopubs.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // The content is added (and pinned unless disabled) first with a single request, so that a failure
+        // here leaves no trace in the journal:
+        List<byte[]> contents = new ArrayList<>();
+        List<String> uris = new ArrayList<>();
+        for (PreparedNanopub np : newNanopubs.values()) {
+            contents.add(np.getContent().getBytes(StandardCharsets.UTF_8));
+            uris.add(np.getUri());
+        }
+        List<String> hashes = ipfs.putAll(contents, collection.isNoPin());
+        journalIpfsImpl.checkNextNanopubNo();
+        long firstNpNo = journalIpfsImpl.getNextFreeNanopubNo();
+        // TODO Implement proper transactions, rollback, etc.
+        // The following three lines of code are critical. If Java gets interrupted
+        // in between, the data will remain in a slightly inconsistent state (but, I
+        // think, without serious consequences).
+        journalIpfsImpl.increaseNextNanopubNo(uris.size());
+        // If interrupted here, the pages of the journal will miss the entries of this
+        // batch (e.g. contain only 999 instead of 1000 entries).
+        journalIpfsImpl.appendToPages(firstNpNo, uris);
+        // If interrupted here, journal will contain entries that cannot be found in the
+        // nanopub map. These entries might be loaded later and then appear twice in the
+        // journal.
+        Map<String, String> mapping = new LinkedHashMap<>();
+        int i = 0;
+        for (String artifactCode : newNanopubs.keySet()) {
+            mapping.put(artifactCode, hashes.get(i++));
         }
+        // Holding the lock of the collection, so that no flush happens before all entries are
+        // known here:
+        synchronized (collection) {
+            long npNo = firstNpNo;
+            for (String artifactCode : newNanopubs.keySet()) {
+                unindexed.put(artifactCode, npNo);
+                npNo++;
+            }
+            try {
+                collection.setNanopubCollections(mapping);
+            } catch (RuntimeException ex) {
+                unindexed.keySet().removeAll(newNanopubs.keySet());
+                throw ex;
+            }
+        }
+        journalIpfsImpl.publishSnapshot();
+        List<PreparedNanopub> committed = new ArrayList<>(newNanopubs.values());
+        packageBuilder.append(firstNpNo, journalIpfsImpl.getPageSize(), committed);
+        return committed;
     }
 
     private void addPeerToCollection(String peerUrl) {
@@ -167,9 +176,25 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
     }
 
 
+    // Adds the nanopubs to the index whose entries of the nanopub map have just been flushed, and
+    // moves the watermark past them:
+    private void indexFlushed(List<String> artifactCodes) {
+        long watermark = -1;
+        for (String artifactCode : artifactCodes) {
+            Long npNo = unindexed.get(artifactCode);
+            if (npNo == null) continue;
+            artifactIndex.put(artifactCode, npNo);
+            unindexed.remove(artifactCode);
+            watermark = Math.max(watermark, npNo + 1);
+        }
+        if (watermark > artifactIndex.getWatermark()) {
+            artifactIndex.setWatermark(watermark);
+        }
+    }
+
     @Override
     public boolean hasNanopub(String artifactCode) {
-        return collection.containsNanopubCollection(artifactCode);
+        return artifactIndex.contains(artifactCode) || unindexed.containsKey(artifactCode);
     }
 
     @Override
@@ -180,6 +205,9 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
 
     @Override
     public Nanopub getNanopub(String artifactCode) {
+        if (!hasNanopub(artifactCode)) {
+            return null;
+        }
         String hash = collection.getNanopubCollection(artifactCode);
         if (Strings.isNullOrEmpty(hash)) {
             return null;
@@ -201,6 +229,19 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
         return np;
     }
 
+    @Override
+    public RawNanopub getRawNanopub(String artifactCode) {
+        if (!hasNanopub(artifactCode)) {
+            return null;
+        }
+        String hash = collection.getNanopubCollection(artifactCode);
+        if (Strings.isNullOrEmpty(hash)) {
+            return null;
+        }
+        ByteArrayOutputStream stream = (ByteArrayOutputStream) read(hash);
+        return new RawNanopub(stream.toByteArray(), internalFormat);
+    }
+
     @Override
     public long getNextNanopubNo() {
         return journalIpfsImpl.getNextNanopubNo();
@@ -208,7 +249,7 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
 
     @Override
     public List<String> getPeerUris() {
-        return collection.getPeerCollection().values().stream().map(p -> p.get_id()).collect(Collectors.toList());
+        return collection.getPeers().stream().map(p -> p.get_id()).collect(Collectors.toList());
     }
 
     @Override
@@ -243,70 +284,80 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
         logger.info("done populatePackageCache");
     }
 
-    private boolean isPackageCached(long pageNo) {
+    @Override
+    public boolean isPackageCached(long pageNo) {
         return collection.getPackagedListCollection().get(pageNo + "") != null;
     }
 
+    @Override
+    public FileInputStream openPackageFile(long pageNo) throws IOException {
+        if (packageFileCache == null) return null;
+        return packageFileCache.openCached(pageNo);
+    }
+
+    private void storePackage(long pageNo, File file) {
+        //Original implements works like cache, gzip package on IPFS will not be pinned. Thus it will work like cache
+        String ipfsHash = ipfs.putFile(file);
+        if(!Strings.isNullOrEmpty(ipfsHash)) {
+            collection.setPackagedListCollection(pageNo + "", ipfsHash);
+            this.ipfs.remove(ipfsHash.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
 
     @Override
     public void writePackageToStream(long pageNo, boolean gzipped, OutputStream out) throws IOException {
+        if (pageNo == journalIpfsImpl.getCurrentPageNo() && packageBuilder.writePartialPackage(pageNo, gzipped, out)) {
+            out.close();
+            return;
+        }
         if (pageNo < 1 || pageNo >= journalIpfsImpl.getCurrentPageNo()) {
             throw new IllegalArgumentException("Not a complete page: " + pageNo);
         }
-        String hash = collection.getPackagedListCollection().get(pageNo + "").value;
-        OutputStream packageOut = null;
-        InputStream packageAsStream = null;
+        CborObject.CborString cached = collection.getPackagedListCollection().get(pageNo + "");
         try {
-            if (hash == null) {
+            if (cached == null) {
                 if (gzipped) {
                     out = new GZIPOutputStream(out);
                 }
-                ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-                packageOut = new GZIPOutputStream(bOut);
-                String pageContent = journalIpfsImpl.getPageContent(pageNo);
-                for (String uri : pageContent.split("\\n")) {
-                    Nanopub np = getNanopub(TrustyUriUtils.getArtifactCode(uri));
-                    String s;
-                    try {
-                        s = NanopubUtils.writeToString(np, RDFFormat.TRIG);
-                    } catch (RDFHandlerException ex) {
-                        throw new RuntimeException("Unexpected RDF handler exception", ex);
-                    }
-                    byte[] bytes = (s + "\n").getBytes();
-                    out.write(bytes);
-                    packageOut.write(bytes);
-                }
-                packageOut.close();
-                packageAsStream = new ByteArrayInputStream(bOut.toByteArray());
-                //Original implements works like cache, gzip package on IPFS will not be pinned. Thus it will work like cache
-                String ipfsHash = write(packageAsStream, true);
-                if(!Strings.isNullOrEmpty(ipfsHash)) {
-                    collection.setPackagedListCollection(pageNo + "", ipfsHash);
-                    this.ipfs.remove(ipfsHash.getBytes(StandardCharsets.UTF_8));
-                }
-
-            } else {
-                String packagedFileHash = collection.getPackagedListCollection().get(pageNo + "").value;
-                if (gzipped) {
-                    this.read(packagedFileHash, out);
-
-                } else {
-                    try (ByteArrayOutputStream stream = (ByteArrayOutputStream) read(packagedFileHash)) {
-                        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
-                            byte[] buffer = new byte[1024];
-                            int len;
-                            while ((len = in.read(buffer)) > 0) {
-                                out.write(buffer, 0, len);
+                // The package is written to a temporary file while it is sent, and then added to
+                // IPFS from there, so it is never held in memory as a whole:
+                File tempFile = File.createTempFile("package" + pageNo + "-", ".trig.gz");
+                try {
+                    try (OutputStream packageOut = new GZIPOutputStream(new FileOutputStream(tempFile))) {
+                        String pageContent = journalIpfsImpl.getPageContent(pageNo);
+                        for (String uri : pageContent.split("\\n")) {
+                            Nanopub np = getNanopub(TrustyUriUtils.getArtifactCode(uri));
+                            String s;
+                            try {
+                                s = NanopubUtils.writeToString(np, RDFFormat.TRIG);
+                            } catch (RDFHandlerException ex) {
+                                throw new RuntimeException("Unexpected RDF handler exception", ex);
                             }
+                            byte[] bytes = (s + "\n").getBytes();
+                            out.write(bytes);
+                            packageOut.write(bytes);
                         }
                     }
+                    storePackage(pageNo, tempFile);
+                } finally {
+                    tempFile.delete();
+                }
+            } else if (packageFileCache != null) {
+                packageFileCache.writePackage(pageNo, gzipped, out, () -> ipfs.getStream(cached.value));
+            } else {
+                InputStream in = ipfs.getStream(cached.value);
+                if (!gzipped) {
+                    in = new GZIPInputStream(in);
+                }
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    in.close();
                 }
             }
-
         } finally {
             if (out != null) out.close();
-            if (packageOut != null) packageOut.close();
-            if (packageAsStream != null) packageAsStream.close();
         }
     }
 
@@ -320,12 +371,7 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
     }
 
     public boolean isServerSpaceFull() {
-        File file = new File(ServerConf.get().getIpfsRootCidPropertiesPath());
-        if (file.getFreeSpace() < 1000000) //1MB
-        {
-            return true;
-        }
-        return false;
+        return HealthMonitor.get().isDiskFull();
     }
 
     @Override
@@ -379,6 +425,12 @@ public class NanopubStorageIpfsImpl implements NanopubStorage {
         return null;
     }
 
+    @Override
+    public void close() {
+        packageBuilder.close();
+        collection.close();
+    }
+
     @Override
     public String testPublish(Nanopub np) {
         String npString = null;
@@ -0,0 +1,243 @@
+package ch.tkuhn.nanopub.server.storage.local;
+
+import ch.tkuhn.nanopub.server.NanopubServerUtils;
+import ch.tkuhn.nanopub.server.ServerConf;
+import ch.tkuhn.nanopub.server.storage.Journal;
+import ch.tkuhn.nanopub.server.storage.JournalSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Journal kept as plain files: the journal fields in a properties file, and one append-only text
+ * file per page that holds the nanopub URIs of that page, one per line.
+ */
+public class JournalLocalImpl implements Journal {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File dir;
+    private final File fieldsFile;
+    private final Properties fields = new Properties();
+    private final AtomicReference<JournalSnapshot> snapshot = new AtomicReference<>();
+    private long nextNanopubNo;
+
+    public JournalLocalImpl(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+        fieldsFile = new File(dir, "journal.properties");
+        init();
+        long j = Long.parseLong(getField("journal-id"));
+        if (j == 0) {
+            // Prebuilt journal from a downloaded package that doesn't have a journal ID yet
+            j = Math.abs(new Random().nextLong());
+            setField("journal-id", j + "");
+        }
+        nextNanopubNo = Long.parseLong(getField("next-nanopub-no"));
+        snapshot.set(new JournalSnapshot(j, nextNanopubNo, Integer.parseInt(getField("page-size")),
+                getField("uri-pattern"), getField("hash-pattern")));
+    }
+
+    private void init() {
+        if (fieldsFile.exists()) {
+            try (InputStream in = new FileInputStream(fieldsFile)) {
+                fields.load(in);
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot read journal: " + fieldsFile, ex);
+            }
+        } else {
+            logger.info("No journal found: Create new one");
+            fields.setProperty("journal-version", NanopubServerUtils.journalVersion);
+            fields.setProperty("journal-id", Math.abs(new Random().nextLong()) + "");
+            fields.setProperty("next-nanopub-no", "0");
+            fields.setProperty("page-size", ServerConf.get().getInitPageSize() + "");
+            fields.setProperty("uri-pattern", ServerConf.get().getUriPattern());
+            fields.setProperty("hash-pattern", ServerConf.get().getHashPattern());
+            saveFields();
+        }
+        int v = getVersionValue();
+        if (v == NanopubServerUtils.journalVersionValue) {
+            logger.info("Journal version is up-to-date: " + getField("journal-version"));
+            return;
+        }
+        if (v > NanopubServerUtils.journalVersionValue) {
+            logger.error("Unknown (too new) journal version found");
+            throw new RuntimeException("Unknown (too new) journal version found");
+        }
+        // Local journals were introduced with the current journal version:
+        logger.error("Unsupported journal version found in " + dir);
+        throw new RuntimeException("Unsupported journal version found");
+    }
+
+    // The page files are written after the next nanopub number, so the number is ahead of them
+    // if a commit was interrupted in between. Only called by the process that writes the journal:
+    synchronized void repairNextNanopubNo() {
+        int pageSize = Integer.parseInt(getField("page-size"));
+        long lastPageNo = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("page[0-9]+\\.txt")) {
+                    lastPageNo = Math.max(lastPageNo, Long.parseLong(name.substring(4, name.length() - 4)));
+                }
+            }
+        }
+        long n = 0;
+        if (lastPageNo > 0) {
+            File pageFile = getPageFile(lastPageNo);
+            try {
+                byte[] content = Files.readAllBytes(pageFile.toPath());
+                int end = content.length;
+                while (end > 0 && content[end - 1] != '\n') end--;
+                if (end < content.length) {
+                    logger.warn("Truncating incomplete entry at end of journal page " + lastPageNo);
+                    try (FileChannel c = FileChannel.open(pageFile.toPath(), StandardOpenOption.WRITE)) {
+                        c.truncate(end);
+                    }
+                }
+                long lines = 0;
+                for (int i = 0; i < end; i++) {
+                    if (content[i] == '\n') lines++;
+                }
+                n = (lastPageNo - 1) * pageSize + lines;
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot read journal page: " + lastPageNo, ex);
+            }
+        }
+        if (n != nextNanopubNo) {
+            logger.warn("Next nanopub number " + nextNanopubNo + " doesn't match journal pages; set to " + n);
+            nextNanopubNo = n;
+            setField("next-nanopub-no", "" + nextNanopubNo);
+            publishSnapshot();
+        }
+    }
+
+    @Override
+    public JournalSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    // Number for the next nanopub, which is ahead of the snapshot while a commit is in progress:
+    synchronized long getNextFreeNanopubNo() {
+        return nextNanopubNo;
+    }
+
+    // Makes the nanopubs of the finished commit visible to readers:
+    synchronized void publishSnapshot() {
+        snapshot.set(snapshot.get().withNextNanopubNo(nextNanopubNo));
+    }
+
+    @Override
+    public synchronized int getVersionValue() {
+        try {
+            return NanopubServerUtils.getVersionValue(getField("journal-version"));
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void checkNextNanopubNo() {
+        // The journal files are only written by this process, so there is nothing to compare with.
+    }
+
+    synchronized void increaseNextNanopubNo() {
+        increaseNextNanopubNo(1);
+    }
+
+    synchronized void increaseNextNanopubNo(int count) {
+        nextNanopubNo += count;
+        setField("next-nanopub-no", "" + nextNanopubNo);
+    }
+
+    synchronized void appendToPage(long pageNo, String npUri) {
+        appendToPage(pageNo, Collections.singletonList(npUri));
+    }
+
+    // Appends the URIs of nanopubs with consecutive numbers starting at firstNanopubNo, with one
+    // write per affected page:
+    synchronized void appendToPages(long firstNanopubNo, List<String> npUris) {
+        int pageSize = getPageSize();
+        int i = 0;
+        while (i < npUris.size()) {
+            long npNo = firstNanopubNo + i;
+            int n = (int) Math.min(npUris.size() - i, pageSize - npNo % pageSize);
+            appendToPage(npNo / pageSize + 1, npUris.subList(i, i + n));
+            i += n;
+        }
+    }
+
+    private void appendToPage(long pageNo, List<String> npUris) {
+        StringBuilder sb = new StringBuilder();
+        for (String npUri : npUris) {
+            sb.append(npUri).append("\n");
+        }
+        try {
+            Files.write(getPageFile(pageNo).toPath(), sb.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot write journal page: " + pageNo, ex);
+        }
+    }
+
+    @Override
+    public synchronized String getPageContent(long pageNo) {
+        File pageFile = getPageFile(pageNo);
+        if (!pageFile.exists()) {
+            if (nextNanopubNo % getPageSize() > 0) {
+                throw new RuntimeException("Cannot find journal page: page" + pageNo);
+            }
+            // Make new page
+            return "";
+        }
+        try {
+            return new String(Files.readAllBytes(pageFile.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot read journal page: " + pageNo, ex);
+        }
+    }
+
+    private File getPageFile(long pageNo) {
+        return new File(dir, "page" + pageNo + ".txt");
+    }
+
+    private String getField(String field) {
+        return fields.getProperty(field);
+    }
+
+    private void setField(String field, String value) {
+        fields.setProperty(field, value);
+        saveFields();
+    }
+
+    private void saveFields() {
+        File tempFile = new File(dir, "journal.properties.tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            fields.store(out, null);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot write journal: " + fieldsFile, ex);
+        }
+        try {
+            Files.move(tempFile.toPath(), fieldsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot write journal: " + fieldsFile, ex);
+        }
+    }
+
+}
@@ -0,0 +1,459 @@
+package ch.tkuhn.nanopub.server.storage.local;
+
+import ch.tkuhn.nanopub.server.HealthMonitor;
+import ch.tkuhn.nanopub.server.ServerConf;
+import ch.tkuhn.nanopub.server.ServerInfo;
+import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
+import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
+import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
+import ch.tkuhn.nanopub.server.storage.ArtifactCodeIndex;
+import ch.tkuhn.nanopub.server.storage.NanopubStorage;
+import ch.tkuhn.nanopub.server.storage.NanopubStorageUtils;
+import ch.tkuhn.nanopub.server.storage.PackageBuilder;
+import ch.tkuhn.nanopub.server.storage.PackageFileCache;
+import ch.tkuhn.nanopub.server.storage.PreparedNanopub;
+import ch.tkuhn.nanopub.server.storage.RawNanopub;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.inject.Singleton;
+import net.trustyuri.TrustyUriUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.rdf4j.RDF4JException;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.nanopub.MalformedNanopubException;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubImpl;
+import org.nanopub.NanopubUtils;
+import org.nanopub.extra.server.ServerInfo.ServerInfoException;
+import org.nanopub.trusty.TrustyNanopubUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Storage that keeps everything in a local directory, without any external database: nanopubs in
+ * append-only segment files, an artifact code index pointing into them (caught up from the
+ * segments on startup), the journal pages, the peer list, and the cached packages.
+ */
+@Singleton
+public class NanopubStorageLocalImpl implements NanopubStorage {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // Use trig internally to keep namespaces:
+    private static RDFFormat internalFormat = RDFFormat.TRIG;
+
+    private File dir;
+    private File packageDir;
+    private File peersFile;
+    private SegmentStore segments;
+    private ArtifactCodeIndex index;
+    private JournalLocalImpl journalLocalImpl;
+    private PackageBuilder packageBuilder;
+    private Map<String, PeerState> peers;
+
+    public NanopubStorageLocalImpl() {
+        init();
+    }
+
+    private void init() {
+        dir = new File(ServerConf.get().getLocalStorageDir());
+        logger.info("Initialize local storage in " + dir);
+        dir.mkdirs();
+        HealthMonitor.get().watchFreeSpace(dir);
+        packageDir = new File(dir, "packages");
+        packageDir.mkdirs();
+        peersFile = new File(dir, "peers.json");
+        journalLocalImpl = new JournalLocalImpl(new File(dir, "journal"));
+        try {
+            segments = new SegmentStore(new File(dir, "segments"), ServerConf.get().getLocalSegmentBytes());
+            index = ArtifactCodeIndex.open(new File(dir, "artifact-codes.idx"));
+            // The watermark is one more than the last segment pointer that is in the journal:
+            List<Pair<String, Long>> records = new ArrayList<>();
+            segments.scanAfter(index.getWatermark() - 1, (ac, pointer) -> records.add(Pair.of(ac, pointer)));
+            if (segments.isReadOnly()) {
+                // The journal belongs to the other process:
+                for (Pair<String, Long> r : records) {
+                    index.put(r.getLeft(), r.getRight());
+                }
+            } else {
+                journalLocalImpl.repairNextNanopubNo();
+                if (!records.isEmpty()) recoverJournal(records);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot open local storage in " + dir, ex);
+        }
+        peers = loadPeers();
+        for (String s : ServerConf.get().getInitialPeers()) {
+            addPeerToCollection(s);
+        }
+        packageBuilder = new PackageBuilder(packageDir, this::storePackage);
+    }
+
+    // Adds the given segment records, which come after the watermark, to the index, and to the
+    // journal if a commit was interrupted before they were listed there. Listed ones can only be
+    // at the end of the journal, as the segments and the journal are written in the same order:
+    private void recoverJournal(List<Pair<String, Long>> records) throws IOException {
+        long next = journalLocalImpl.getNextFreeNanopubNo();
+        Set<String> listed = new HashSet<>();
+        journalLocalImpl.forEachNanopubUri(Math.max(0, next - records.size()), next,
+                (npNo, uri) -> listed.add(TrustyUriUtils.getArtifactCode(uri)));
+        List<String> uris = new ArrayList<>();
+        for (Pair<String, Long> r : records) {
+            index.put(r.getLeft(), r.getRight());
+            if (listed.contains(r.getLeft())) continue;
+            String content = new String(segments.read(r.getRight()), StandardCharsets.UTF_8);
+            try {
+                uris.add(new NanopubImpl(content, internalFormat).getUri().toString());
+            } catch (MalformedNanopubException | RDF4JException ex) {
+                throw new IOException("Stored nanopub is corrupted: " + r.getLeft(), ex);
+            }
+        }
+        index.flush();
+        if (!uris.isEmpty()) {
+            logger.warn("Adding " + uris.size() + " stored nanopubs to the journal after interrupted commit");
+            journalLocalImpl.increaseNextNanopubNo(uris.size());
+            journalLocalImpl.appendToPages(next, uris);
+            journalLocalImpl.publishSnapshot();
+        }
+        index.setWatermark(records.get(records.size() - 1).getRight() + 1);
+        index.flush();
+    }
+
+    @Override
+    public JournalLocalImpl getJournal() {
+        return journalLocalImpl;
+    }
+
+    @Override
+    public boolean isAccessible() {
+        return dir.isDirectory() && dir.canWrite();
+    }
+
+    @Override
+    public Nanopub getNanopub(String artifactCode) {
+        long pointer = index.get(artifactCode);
+        if (pointer < 0) {
+            return null;
+        }
+        String nanopubString;
+        try {
+            nanopubString = new String(segments.read(pointer), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot read stored nanopub", ex);
+        }
+        Nanopub np = null;
+        try {
+            np = new NanopubImpl(nanopubString, internalFormat);
+        } catch (MalformedNanopubException ex) {
+            throw new RuntimeException("Stored nanopub is not wellformed (this shouldn't happen)", ex);
+        } catch (RDF4JException ex) {
+            throw new RuntimeException("Stored nanopub is corrupted (this shouldn't happen)", ex);
+        }
+        if (ServerConf.get().isCheckNanopubsOnGetEnabled() && !TrustyNanopubUtils.isValidTrustyNanopub(np)) {
+            throw new RuntimeException("Stored nanopub is not trusty (this shouldn't happen)");
+        }
+        return np;
+    }
+
+    @Override
+    public RawNanopub getRawNanopub(String artifactCode) {
+        long pointer = index.get(artifactCode);
+        if (pointer < 0) {
+            return null;
+        }
+        try {
+            return new RawNanopub(segments.read(pointer), internalFormat);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot read stored nanopub", ex);
+        }
+    }
+
+    @Override
+    public boolean hasNanopub(String artifactCode) {
+        return index.contains(artifactCode);
+    }
+
+    @Override
+    public PreparedNanopub prepareNanopub(Nanopub np) throws NotTrustyNanopubException,
+            OversizedNanopubException, ProtectedNanopubException {
+        NanopubStorageUtils.checkNanopub(np);
+        try {
+            return new PreparedNanopub(np, NanopubUtils.writeToString(np, internalFormat), internalFormat);
+        } catch (RDFHandlerException ex) {
+            throw new RuntimeException("Unexpected exception when processing nanopub", ex);
+        }
+    }
+
+    @Override
+    public synchronized List<PreparedNanopub> commitNanopubs(List<PreparedNanopub> nanopubs) throws NanopubDbException {
+        if (isFull()) {
+            throw new NanopubDbException("Server is full (maximum number of nanopubs reached)");
+        }
+        if (segments.isReadOnly()) {
+            // Checked before the journal is touched:
+            throw new NanopubDbException("Local storage is used by another process");
+        }
+        Map<String, PreparedNanopub> newNanopubs = new LinkedHashMap<>();
+        for (PreparedNanopub np : nanopubs) {
+            if (!newNanopubs.containsKey(np.getArtifactCode()) && !index.contains(np.getArtifactCode())) {
+                newNanopubs.put(np.getArtifactCode(), np);
+            }
+        }
+        NanopubStorageUtils.checkCapacity(newNanopubs.size(), journalLocalImpl.getNextFreeNanopubNo());
+        if (newNanopubs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> uris = new ArrayList<>();
+        for (PreparedNanopub np : newNanopubs.values()) {
+            uris.add(np.getUri());
+        }
+        // The nanopubs are written and synced before the journal lists them, so that the journal
+        // never points to nanopubs that are not stored:
+        long endPointer = segments.getEndPointer();
+        List<Long> pointers = new ArrayList<>();
+        try {
+            for (PreparedNanopub np : newNanopubs.values()) {
+                pointers.add(segments.append(np.getArtifactCode(), np.getContent().getBytes(StandardCharsets.UTF_8)));
+            }
+            segments.flush();
+        } catch (IOException ex) {
+            try {
+                segments.truncate(endPointer);
+            } catch (IOException ex2) {
+                logger.error("Cannot remove incomplete batch from segments", ex2);
+            }
+            throw new NanopubDbException("Failed to write nanopub: " + ex.getMessage());
+        }
+        int i = 0;
+        for (PreparedNanopub np : newNanopubs.values()) {
+            index.put(np.getArtifactCode(), pointers.get(i++));
+        }
+        index.flush();
+        long firstNpNo = journalLocalImpl.getNextFreeNanopubNo();
+        // If interrupted here, the nanopubs of this batch are added to the journal on startup,
+        // as their segment records come after the watermark.
+        journalLocalImpl.increaseNextNanopubNo(uris.size());
+        journalLocalImpl.appendToPages(firstNpNo, uris);
+        // Segment records after the watermark are checked against the journal on startup:
+        index.setWatermark(pointers.get(pointers.size() - 1) + 1);
+        journalLocalImpl.publishSnapshot();
+        List<PreparedNanopub> committed = new ArrayList<>(newNanopubs.values());
+        packageBuilder.append(firstNpNo, journalLocalImpl.getPageSize(), committed);
+        return committed;
+    }
+
+    @Override
+    public synchronized List<String> getPeerUris() {
+        return new ArrayList<>(peers.keySet());
+    }
+
+    @Override
+    public void addPeer(String peerUrl) throws ServerInfoException {
+        ServerInfo.load(peerUrl);  // throw exception if something is wrong
+        addPeerToCollection(peerUrl);
+    }
+
+    private synchronized void addPeerToCollection(String peerUrl) {
+        if (peerUrl.equals(ServerConf.getInfo().getPublicUrl())) {
+            return;
+        }
+        if (!peers.containsKey(peerUrl)) {
+            peers.put(peerUrl, new PeerState());
+            savePeers();
+        }
+    }
+
+    @Override
+    public synchronized void updatePeerState(ServerInfo peerInfo, long npno) {
+        PeerState state = new PeerState();
+        state.journalId = peerInfo.getJournalId();
+        state.nextNanopubNo = npno;
+        peers.put(peerInfo.getPublicUrl(), state);
+        savePeers();
+    }
+
+    @Override
+    public synchronized Pair<Long, Long> getLastSeenPeerState(String peerUrl) {
+        PeerState state = peers.get(peerUrl);
+        if (state == null || state.journalId == null || state.nextNanopubNo == null) return null;
+        return Pair.of(state.journalId, state.nextNanopubNo);
+    }
+
+    private Map<String, PeerState> loadPeers() {
+        if (!peersFile.exists()) {
+            return new LinkedHashMap<>();
+        }
+        try (Reader r = Files.newBufferedReader(peersFile.toPath(), StandardCharsets.UTF_8)) {
+            Map<String, PeerState> loaded = new Gson().fromJson(r, new TypeToken<LinkedHashMap<String, PeerState>>() {}.getType());
+            if (loaded != null) return loaded;
+        } catch (Exception ex) {
+            logger.error("Cannot read peer list: " + peersFile, ex);
+        }
+        return new LinkedHashMap<>();
+    }
+
+    private void savePeers() {
+        File tempFile = new File(dir, "peers.json.tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                new Gson().toJson(peers, w);
+            }
+            Files.move(tempFile.toPath(), peersFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.error("Cannot write peer list: " + peersFile, ex);
+        }
+    }
+
+    @Override
+    public void populatePackageCache() throws IOException {
+        long c = journalLocalImpl.getCurrentPageNo();
+        for (long page = 1; page < c; page++) {
+            if (!isPackageCached(page)) {
+                writePackageToStream(page, false, new NullOutputStream());
+            }
+        }
+    }
+
+    @Override
+    public boolean isPackageCached(long pageNo) {
+        return getPackageFile(pageNo).exists();
+    }
+
+    @Override
+    public FileInputStream openPackageFile(long pageNo) throws IOException {
+        if (pageNo < 1 || pageNo >= journalLocalImpl.getCurrentPageNo()) return null;
+        try {
+            return new FileInputStream(getPackageFile(pageNo));
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+    }
+
+    private void storePackage(long pageNo, File file) throws IOException {
+        Files.move(file.toPath(), getPackageFile(pageNo).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File getPackageFile(long pageNo) {
+        return new File(packageDir, pageNo + ".trig.gz");
+    }
+
+    @Override
+    public void writePackageToStream(long pageNo, boolean gzipped, OutputStream out) throws IOException {
+        if (pageNo == journalLocalImpl.getCurrentPageNo() && packageBuilder.writePartialPackage(pageNo, gzipped, out)) {
+            out.close();
+            return;
+        }
+        if (pageNo < 1 || pageNo >= journalLocalImpl.getCurrentPageNo()) {
+            throw new IllegalArgumentException("Not a complete page: " + pageNo);
+        }
+        File packageFile = getPackageFile(pageNo);
+        try {
+            if (!packageFile.exists()) {
+                if (gzipped) {
+                    out = new GZIPOutputStream(out);
+                }
+                File tempFile = File.createTempFile("package" + pageNo + "-", ".tmp", packageDir);
+                try {
+                    try (OutputStream packageOut = new GZIPOutputStream(new FileOutputStream(tempFile))) {
+                        String pageContent = journalLocalImpl.getPageContent(pageNo);
+                        for (String uri : pageContent.split("\\n")) {
+                            Nanopub np = getNanopub(TrustyUriUtils.getArtifactCode(uri));
+                            String s;
+                            try {
+                                s = NanopubUtils.writeToString(np, RDFFormat.TRIG);
+                            } catch (RDFHandlerException ex) {
+                                throw new RuntimeException("Unexpected RDF handler exception", ex);
+                            }
+                            byte[] bytes = (s + "\n").getBytes();
+                            out.write(bytes);
+                            packageOut.write(bytes);
+                        }
+                    }
+                    storePackage(pageNo, tempFile);
+                } finally {
+                    tempFile.delete();
+                }
+            } else {
+                PackageFileCache.writeTo(packageFile, gzipped, out);
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+
+    @Override
+    public long getNextNanopubNo() {
+        return journalLocalImpl.getNextNanopubNo();
+    }
+
+    @Override
+    public boolean isFull() {
+        if (HealthMonitor.get().isDiskFull()) {
+            return true;
+        }
+        ServerInfo info = ServerConf.getInfo();
+        return (info.getMaxNanopubs() != null && journalLocalImpl.getNextNanopubNo() >= info.getMaxNanopubs());
+    }
+
+    @Override
+    public String getCid(String artifactCode) {
+        return null;
+    }
+
+    @Override
+    public String testPublish(Nanopub np) {
+        File testDir = new File(dir, "publish-test");
+        testDir.mkdirs();
+        try {
+            String npString = NanopubUtils.writeToString(np, internalFormat);
+            File f = new File(testDir, Instant.now().getEpochSecond() + ".trig");
+            Files.write(f.toPath(), npString.getBytes(StandardCharsets.UTF_8));
+        } catch (RDFHandlerException | IOException ex) {
+            throw new RuntimeException("Unexpected exception when processing nanopub", ex);
+        }
+        String[] files = testDir.list();
+        return String.valueOf(files == null ? 0 : files.length);
+    }
+
+    @Override
+    public void close() {
+        packageBuilder.close();
+        // Releases the locks, so that the storage can be opened again, e.g. after a redeploy:
+        try {
+            segments.close();
+            index.close();
+        } catch (IOException ex) {
+            logger.error("Failed to close local storage", ex);
+        }
+    }
+
+    private static class PeerState {
+        Long journalId;
+        Long nextNanopubNo;
+    }
+
+}
@@ -0,0 +1,288 @@
+package ch.tkuhn.nanopub.server.storage.local;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Append-only store of serialized nanopubs, split into segment files of bounded size. Each record
+ * starts with a header (payload length and artifact code), so the segments alone are enough to
+ * rebuild the artifact code index. Records are addressed by pointers that pack the segment number
+ * and the byte offset within the segment.
+ * <p>
+ * Only the process holding the lock on the directory appends (and repairs incomplete records left
+ * by an interrupted write). Other processes, like the package cache populator next to the running
+ * server, open the segments read-only.
+ */
+public class SegmentStore {
+
+    private static final int ARTIFACT_CODE_LENGTH = 45;
+    private static final int HEADER_LENGTH = 4 + ARTIFACT_CODE_LENGTH;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final Map<Integer, FileChannel> readChannels = new ConcurrentHashMap<>();
+    private final FileChannel lockChannel;
+    private FileChannel writeChannel;
+    private int writeSegmentNo;
+    private long writeOffset;
+
+    public SegmentStore(File dir, long maxSegmentBytes) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        dir.mkdirs();
+        lockChannel = tryLock(new File(dir, "segments.lock"));
+        writeSegmentNo = getLastSegmentNo();
+        if (lockChannel == null) {
+            logger.warn("Segments are used by another process: " + dir + "; open them read-only");
+            return;
+        }
+        openForWriting(writeSegmentNo);
+    }
+
+    public boolean isReadOnly() {
+        return lockChannel == null;
+    }
+
+    public static long toPointer(int segmentNo, long offset) {
+        return ((long) segmentNo << OFFSET_BITS) | offset;
+    }
+
+    public static int getSegmentNo(long pointer) {
+        return (int) (pointer >>> OFFSET_BITS);
+    }
+
+    public static long getOffset(long pointer) {
+        return pointer & OFFSET_MASK;
+    }
+
+    public synchronized long append(String artifactCode, byte[] data) throws IOException {
+        if (isReadOnly()) throw new IOException("Segments are used by another process: " + dir);
+        if (writeOffset > 0 && writeOffset + HEADER_LENGTH + data.length > maxSegmentBytes) {
+            writeChannel.force(false);
+            openForWriting(writeSegmentNo + 1);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + data.length);
+        buffer.putInt(data.length);
+        buffer.put(toHeaderBytes(artifactCode));
+        buffer.put(data);
+        buffer.flip();
+        long pointer = toPointer(writeSegmentNo, writeOffset);
+        while (buffer.hasRemaining()) {
+            writeChannel.write(buffer, writeOffset + buffer.position());
+        }
+        writeOffset += HEADER_LENGTH + data.length;
+        return pointer;
+    }
+
+    /**
+     * Returns the pointer at which the next record will be appended (unless a new segment is
+     * started for it).
+     */
+    public synchronized long getEndPointer() {
+        return toPointer(writeSegmentNo, writeOffset);
+    }
+
+    /**
+     * Removes all records appended after the given end pointer, such as the records of a batch
+     * that could not be completed.
+     */
+    public synchronized void truncate(long endPointer) throws IOException {
+        if (isReadOnly()) throw new IOException("Segments are used by another process: " + dir);
+        int segmentNo = getSegmentNo(endPointer);
+        for (int s = writeSegmentNo; s > segmentNo; s--) {
+            FileChannel c = readChannels.remove(s);
+            if (c != null) c.close();
+            if (s == writeSegmentNo) writeChannel.close();
+            writeChannel = null;
+            getSegmentFile(s).delete();
+        }
+        if (writeChannel == null) {
+            openForWriting(segmentNo);
+        }
+        writeOffset = Math.min(writeOffset, getOffset(endPointer));
+        writeChannel.truncate(writeOffset);
+        writeChannel.force(false);
+    }
+
+    public byte[] read(long pointer) throws IOException {
+        FileChannel channel = getReadChannel(getSegmentNo(pointer));
+        long offset = getOffset(pointer);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(channel, data, offset + HEADER_LENGTH);
+        return data.array();
+    }
+
+    /**
+     * Calls the consumer with the artifact code and pointer of every record that comes after the
+     * given pointer (or of all records if the pointer is negative), in the order of appending.
+     */
+    public void scanAfter(long pointer, BiConsumer<String, Long> consumer) throws IOException {
+        int startSegment = pointer < 0 ? 0 : getSegmentNo(pointer);
+        int lastSegment;
+        if (isReadOnly()) {
+            // The other process might have started new segments:
+            lastSegment = getLastSegmentNo();
+        } else {
+            synchronized (this) {
+                lastSegment = writeSegmentNo;
+            }
+        }
+        for (int s = startSegment; s <= lastSegment; s++) {
+            File f = getSegmentFile(s);
+            if (!f.exists()) continue;
+            FileChannel channel = getReadChannel(s);
+            long size = channel.size();
+            long offset = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (offset + HEADER_LENGTH <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                int length = header.getInt(0);
+                if (offset + HEADER_LENGTH + length > size) break;
+                long p = toPointer(s, offset);
+                if (pointer < 0 || p > pointer) {
+                    consumer.accept(new String(header.array(), 4, ARTIFACT_CODE_LENGTH, StandardCharsets.US_ASCII), p);
+                }
+                offset += HEADER_LENGTH + length;
+            }
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (isReadOnly()) return;
+        writeChannel.force(false);
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (File f : listSegmentFiles()) {
+            total += f.length();
+        }
+        return total;
+    }
+
+    public synchronized void close() throws IOException {
+        if (writeChannel != null) writeChannel.close();
+        for (FileChannel c : readChannels.values()) {
+            c.close();
+        }
+        readChannels.clear();
+        // Closing the channel releases the lock:
+        if (lockChannel != null) lockChannel.close();
+    }
+
+    private void openForWriting(int segmentNo) throws IOException {
+        if (writeChannel != null) writeChannel.close();
+        writeSegmentNo = segmentNo;
+        writeChannel = FileChannel.open(getSegmentFile(segmentNo).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeOffset = findEndOfLastCompleteRecord(writeChannel);
+        if (writeOffset < writeChannel.size()) {
+            // Left over from an interrupted write:
+            logger.warn("Truncating incomplete record at end of segment " + segmentNo);
+            writeChannel.truncate(writeOffset);
+        }
+    }
+
+    private long findEndOfLastCompleteRecord(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (offset + HEADER_LENGTH <= size) {
+            header.clear();
+            readFully(channel, header, offset);
+            int length = header.getInt(0);
+            if (length < 0 || offset + HEADER_LENGTH + length > size) break;
+            offset += HEADER_LENGTH + length;
+        }
+        return offset;
+    }
+
+    private static FileChannel tryLock(File lockFile) throws IOException {
+        FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            channel.close();
+            return null;
+        }
+        return channel;
+    }
+
+    private FileChannel getReadChannel(int segmentNo) throws IOException {
+        FileChannel channel = readChannels.get(segmentNo);
+        if (channel == null) {
+            synchronized (readChannels) {
+                channel = readChannels.get(segmentNo);
+                if (channel == null) {
+                    channel = FileChannel.open(getSegmentFile(segmentNo).toPath(), StandardOpenOption.READ);
+                    readChannels.put(segmentNo, channel);
+                }
+            }
+        }
+        return channel;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("Unexpected end of segment file");
+        }
+    }
+
+    private static byte[] toHeaderBytes(String artifactCode) {
+        byte[] bytes = artifactCode.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length != ARTIFACT_CODE_LENGTH) {
+            throw new IllegalArgumentException("Unexpected artifact code: " + artifactCode);
+        }
+        return bytes;
+    }
+
+    private File getSegmentFile(int segmentNo) {
+        return new File(dir, String.format("%08d.seg", segmentNo));
+    }
+
+    private static int getSegmentNo(File segmentFile) {
+        return Integer.parseInt(segmentFile.getName().replaceFirst("\\.seg$", ""));
+    }
+
+    private int getLastSegmentNo() {
+        int last = 0;
+        for (File f : listSegmentFiles()) {
+            last = Math.max(last, getSegmentNo(f));
+        }
+        return last;
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = dir.listFiles((d, name) -> name.matches("[0-9]{8}\\.seg"));
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+}
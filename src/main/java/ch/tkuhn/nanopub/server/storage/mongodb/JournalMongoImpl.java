@@ -1,11 +1,15 @@
 package ch.tkuhn.nanopub.server.storage.mongodb;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ch.tkuhn.nanopub.server.NanopubServerUtils;
 import ch.tkuhn.nanopub.server.ServerConf;
 import ch.tkuhn.nanopub.server.storage.CollectionTypeEnum;
 import ch.tkuhn.nanopub.server.storage.Journal;
+import ch.tkuhn.nanopub.server.storage.JournalSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,13 +17,11 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 
 public class JournalMongoImpl implements Journal {
 
-	private final long journalId;
-	private final int pageSize;
-	private final String uriPattern;
-	private final String hashPattern;
+	private final AtomicReference<JournalSnapshot> snapshot = new AtomicReference<>();
 	private long nextNanopubNo = -1;
 	private DB db;
 
@@ -34,11 +36,9 @@ public class JournalMongoImpl implements Journal {
 			j = Math.abs(new Random().nextLong());
 			setField("journal-id", j + "");
 		}
-		journalId = j;
-		pageSize = Integer.parseInt(getField("page-size"));
-		uriPattern = getField("uri-pattern");
-		hashPattern = getField("hash-pattern");
 		nextNanopubNo = Long.parseLong(getField("next-nanopub-no"));
+		snapshot.set(new JournalSnapshot(j, nextNanopubNo, Integer.parseInt(getField("page-size")),
+				getField("uri-pattern"), getField("hash-pattern")));
 	}
 
 	private void init() {
@@ -76,28 +76,18 @@ public class JournalMongoImpl implements Journal {
 		logger.info("Journal upgraded to version " + NanopubServerUtils.journalVersion);
 	}
 
-	public long getJournalId() {
-		return journalId;
+	public JournalSnapshot getSnapshot() {
+		return snapshot.get();
 	}
 
-	public int getPageSize() {
-		return pageSize;
-	}
-
-	public synchronized long getNextNanopubNo() {
+	// Number for the next nanopub, which is ahead of the snapshot while a commit is in progress:
+	synchronized long getNextFreeNanopubNo() {
 		return nextNanopubNo;
 	}
 
-	public synchronized long getCurrentPageNo() {
-		return getNextNanopubNo()/getPageSize() + 1;
-	}
-
-	public String getUriPattern() {
-		return uriPattern;
-	}
-
-	public String getHashPattern() {
-		return hashPattern;
+	// Makes the nanopubs of the finished commit visible to readers:
+	synchronized void publishSnapshot() {
+		snapshot.set(snapshot.get().withNextNanopubNo(nextNanopubNo));
 	}
 
 	private String getField(String field) {
@@ -119,10 +109,6 @@ public class JournalMongoImpl implements Journal {
 		return db.getCollection(CollectionTypeEnum.Journal.toString());
 	}
 
-	public synchronized String getStateId() {
-		return getJournalId() + "/" + getNextNanopubNo();
-	}
-
 	public synchronized int getVersionValue() {
 		try {
 			return NanopubServerUtils.getVersionValue(getField("journal-version"));
@@ -141,25 +127,58 @@ public class JournalMongoImpl implements Journal {
 	}
 
 	synchronized void increaseNextNanopubNo() {
-		nextNanopubNo++;
+		increaseNextNanopubNo(1);
+	}
+
+	synchronized void increaseNextNanopubNo(int count) {
+		nextNanopubNo += count;
 		setField("next-nanopub-no", "" + nextNanopubNo);
 	}
 
-	synchronized void setPageContent(long pageNo, String pageContent) {
-		setField("page" + pageNo, pageContent);
+	// Appends the entry to the page document without reading or rewriting the existing entries:
+	synchronized void appendToPage(long pageNo, String npUri) {
+		BasicDBObject query = new BasicDBObject("_id", "page" + pageNo);
+		BasicDBObject update = new BasicDBObject("$push", new BasicDBObject("entries", npUri));
+		getJournalCollection().update(query, update, true, false);
+	}
+
+	// Appends the entries of consecutive nanopubs starting at the given number, with a single
+	// update per page:
+	synchronized void appendToPages(long firstNanopubNo, List<String> npUris) {
+		int i = 0;
+		while (i < npUris.size()) {
+			long npNo = firstNanopubNo + i;
+			long pageNo = npNo / getPageSize() + 1;
+			int n = (int) Math.min(npUris.size() - i, pageNo * getPageSize() - npNo);
+			BasicDBObject query = new BasicDBObject("_id", "page" + pageNo);
+			BasicDBObject entries = new BasicDBObject("$each", new ArrayList<>(npUris.subList(i, i + n)));
+			getJournalCollection().update(query, new BasicDBObject("$push", new BasicDBObject("entries", entries)), true, false);
+			i += n;
+		}
 	}
 
 	public synchronized String getPageContent(long pageNo) {
 		String pageName = "page" + pageNo;
-		String pageContent = getField(pageName);
-		if (pageContent == null) {
-			if (getNextNanopubNo() % getPageSize() > 0) {
+		DBCursor cursor = getJournalCollection().find(new BasicDBObject("_id", pageName));
+		if (!cursor.hasNext()) {
+			if (nextNanopubNo % getPageSize() > 0) {
 				throw new RuntimeException("Cannot find journal page: " + pageName);
 			}
 			// Make new page
-			pageContent = "";
+			return "";
+		}
+		DBObject page = cursor.next();
+		StringBuilder pageContent = new StringBuilder();
+		if (page.containsField("value")) {
+			// Pages written by older versions have their whole content in a single string:
+			pageContent.append(page.get("value").toString());
+		}
+		if (page.containsField("entries")) {
+			for (Object uri : (List<?>) page.get("entries")) {
+				pageContent.append(uri).append("\n");
+			}
 		}
-		return pageContent;
+		return pageContent.toString();
 	}
 
 }
@@ -1,33 +1,38 @@
 package ch.tkuhn.nanopub.server.storage.mongodb;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import ch.tkuhn.nanopub.server.ServerConf;
 import ch.tkuhn.nanopub.server.ServerInfo;
-import ch.tkuhn.nanopub.server.Utils;
+import ch.tkuhn.nanopub.server.storage.ArtifactCodeIndex;
 import ch.tkuhn.nanopub.server.storage.NanopubStorage;
+import ch.tkuhn.nanopub.server.storage.NanopubStorageUtils;
+import ch.tkuhn.nanopub.server.storage.PackageBuilder;
+import ch.tkuhn.nanopub.server.storage.PackageFileCache;
+import ch.tkuhn.nanopub.server.storage.PreparedNanopub;
+import ch.tkuhn.nanopub.server.storage.RawNanopub;
 import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
 import ch.tkuhn.nanopub.server.exceptions.NotTrustyNanopubException;
 import ch.tkuhn.nanopub.server.exceptions.OversizedNanopubException;
 import ch.tkuhn.nanopub.server.exceptions.ProtectedNanopubException;
-import com.github.jsonldjava.shaded.com.google.common.base.Strings;
 import com.google.inject.Singleton;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.eclipse.rdf4j.RDF4JException;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFHandlerException;
@@ -35,7 +40,6 @@ import org.nanopub.MalformedNanopubException;
 import org.nanopub.Nanopub;
 import org.nanopub.NanopubImpl;
 import org.nanopub.NanopubUtils;
-import org.nanopub.NanopubWithNs;
 import org.nanopub.extra.server.ServerInfo.ServerInfoException;
 import org.nanopub.trusty.TrustyNanopubUtils;
 import org.slf4j.Logger;
@@ -74,6 +78,9 @@ public class NanopubStorageMongoImpl implements NanopubStorage {
 	private DB db;
 	private GridFS packageGridFs;
 	private JournalMongoImpl journalMongoImpl;
+	private ArtifactCodeIndex artifactIndex;
+	private PackageBuilder packageBuilder;
+	private PackageFileCache packageFileCache;
 
 	public NanopubStorageMongoImpl() {
 		init();
@@ -98,6 +105,14 @@ public class NanopubStorageMongoImpl implements NanopubStorage {
 			addPeerToCollection(s);
 		}
 		journalMongoImpl = new JournalMongoImpl(db);
+		try {
+			artifactIndex = ArtifactCodeIndex.open(new File(conf.getArtifactIndexPath()));
+			artifactIndex.catchUp(journalMongoImpl, this::getStoredArtifactCodes);
+		} catch (IOException ex) {
+			throw new RuntimeException("Cannot open artifact code index", ex);
+		}
+		packageBuilder = new PackageBuilder(new File(conf.getPackageBuildDir()), this::storePackage);
+		packageFileCache = PackageFileCache.create(journalMongoImpl.getJournalId());
 	}
 	@Override
 	public JournalMongoImpl getJournal() {
@@ -126,6 +141,9 @@ public class NanopubStorageMongoImpl implements NanopubStorage {
 
 	@Override
 	public Nanopub getNanopub(String artifactCode) {
+		if (!artifactIndex.contains(artifactCode)) {
+			return null;
+		}
 		BasicDBObject query = new BasicDBObject("_id", artifactCode);
 		DBCursor cursor = getNanopubCollection().find(query);
 		if (!cursor.hasNext()) {
@@ -147,93 +165,94 @@ public class NanopubStorageMongoImpl implements NanopubStorage {
 	}
 
 	@Override
-	public boolean hasNanopub(String artifactCode) {
+	public RawNanopub getRawNanopub(String artifactCode) {
+		if (!artifactIndex.contains(artifactCode)) {
+			return null;
+		}
 		BasicDBObject query = new BasicDBObject("_id", artifactCode);
-		return getNanopubCollection().find(query).hasNext();
+		DBCursor cursor = getNanopubCollection().find(query);
+		if (!cursor.hasNext()) {
+			return null;
+		}
+		String nanopubString = cursor.next().get("nanopub").toString();
+		return new RawNanopub(nanopubString.getBytes(StandardCharsets.UTF_8), internalFormat);
 	}
 
-	@Override
-	public synchronized void loadNanopub(Nanopub np) throws NotTrustyNanopubException,
-			OversizedNanopubException, NanopubDbException, ProtectedNanopubException {
-		if (np instanceof NanopubWithNs) {
-			((NanopubWithNs) np).removeUnusedPrefixes();
-		}
-		if (!TrustyNanopubUtils.isValidTrustyNanopub(np)) {
-			throw new NotTrustyNanopubException(np);
-		}
-		if (!ServerConf.get().isRunAsLocalServerEnabled() && Utils.isProtectedNanopub(np)) {
-			throw new ProtectedNanopubException(np);
-		}
-		ServerInfo info = ServerConf.getInfo();
-		if (info.getMaxNanopubTriples() != null && np.getTripleCount() > info.getMaxNanopubTriples()) {
-			throw new OversizedNanopubException(np);
+	private Set<String> getStoredArtifactCodes(List<String> artifactCodes) {
+		Set<String> stored = new HashSet<>();
+		BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", artifactCodes));
+		DBCursor cursor = getNanopubCollection().find(query, new BasicDBObject("_id", 1));
+		while (cursor.hasNext()) {
+			stored.add(cursor.next().get("_id").toString());
 		}
-		if (info.getMaxNanopubBytes() != null && np.getByteCount() > info.getMaxNanopubBytes()) {
-			throw new OversizedNanopubException(np);
+		return stored;
+	}
+
+	@Override
+	public boolean hasNanopub(String artifactCode) {
+		return artifactIndex.contains(artifactCode);
+	}
+
+	@Override
+	public PreparedNanopub prepareNanopub(Nanopub np) throws NotTrustyNanopubException,
+			OversizedNanopubException, ProtectedNanopubException {
+		NanopubStorageUtils.checkNanopub(np);
+		try {
+			return new PreparedNanopub(np, NanopubUtils.writeToString(np, internalFormat), internalFormat);
+		} catch (RDFHandlerException ex) {
+			throw new RuntimeException("Unexpected exception when processing nanopub", ex);
 		}
+	}
+
+	@Override
+	public synchronized List<PreparedNanopub> commitNanopubs(List<PreparedNanopub> nanopubs) throws NanopubDbException {
 		if (isFull()) {
 			throw new NanopubDbException("Server is full (maximum number of nanopubs reached)");
 		}
-		String artifactCode = TrustyUriUtils.getArtifactCode(np.getUri().toString());
-		String npString = null;
-		try {
-			npString = NanopubUtils.writeToString(np, internalFormat);
-		} catch (RDFHandlerException ex) {
-			throw new RuntimeException("Unexpected exception when processing nanopub", ex);
+		Map<String, PreparedNanopub> newNanopubs = new LinkedHashMap<>();
+		for (PreparedNanopub np : nanopubs) {
+			newNanopubs.put(np.getArtifactCode(), np);
 		}
-		BasicDBObject id = new BasicDBObject("_id", artifactCode);
-		BasicDBObject dbObj = new BasicDBObject("_id", artifactCode).append("nanopub", npString).append("uri", np.getUri().toString());
 		DBCollection coll = getNanopubCollection();
-		if (!coll.find(id).hasNext()) {
-			journalMongoImpl.checkNextNanopubNo();
-			long currentPageNo = journalMongoImpl.getCurrentPageNo();
-			String pageContent = journalMongoImpl.getPageContent(currentPageNo);
-			pageContent += np.getUri() + "\n";
-			// TODO Implement proper transactions, rollback, etc.
-			// The following three lines of code are critical. If Java gets interrupted
-			// in between, the data will remain in a slightly inconsistent state (but, I
-			// think, without serious consequences).
-			journalMongoImpl.increaseNextNanopubNo();
-			// If interrupted here, the current page of the journal will miss one entry
-			// (e.g. contain only 999 instead of 1000 entries).
-			journalMongoImpl.setPageContent(currentPageNo, pageContent);
-			// If interrupted here, journal will contain an entry that cannot be found in
-			// the database. This entry might be loaded later and then appear twice in the
-			// journal.
-			coll.insert(dbObj);
+		BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", new ArrayList<>(newNanopubs.keySet())));
+		DBCursor cursor = coll.find(query, new BasicDBObject("_id", 1));
+		while (cursor.hasNext()) {
+			newNanopubs.remove(cursor.next().get("_id").toString());
 		}
-		String[] postUrls = ServerConf.get().getPostUrls();
-		for (String postUrl : postUrls) {
-			if (!Strings.isNullOrEmpty(postUrl)) {
-				int failedTries = 0;
-				boolean success = false;
-				while (!success && failedTries < 3) {
-					try {
-						HttpPost post = new HttpPost(postUrl);
-						post.setHeader("Content-Type", internalFormat.getDefaultMIMEType());
-						post.setEntity(new StringEntity(npString, "UTF-8"));
-						HttpResponse response = HttpClientBuilder.create().build().execute(post);
-						if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-							success = true;
-						} else {
-							logger.error("Failed to post nanopub to " + postUrl + ": " + response.getStatusLine().getReasonPhrase());
-							failedTries++;
-						}
-					} catch (Exception ex) {
-						logger.error("Error while posting nanopub", ex);
-						failedTries++;
-					}
-					if (!success) {
-						try {
-							Thread.sleep(1000);
-						} catch (InterruptedException ex) {}
-					}
-				}
-			}
+		NanopubStorageUtils.checkCapacity(newNanopubs.size(), journalMongoImpl.getNextFreeNanopubNo());
+		if (newNanopubs.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<String> uris = new ArrayList<>();
+		List<DBObject> dbObjs = new ArrayList<>();
+		for (PreparedNanopub np : newNanopubs.values()) {
+			uris.add(np.getUri());
+			dbObjs.add(new BasicDBObject("_id", np.getArtifactCode()).append("nanopub", np.getContent()).append("uri", np.getUri()));
 		}
-		if (ServerConf.get().isLogNanopubLoadingEnabled()) {
-			logger.info("Nanopub loaded: " + np.getUri());
+		journalMongoImpl.checkNextNanopubNo();
+		long firstNpNo = journalMongoImpl.getNextFreeNanopubNo();
+		// TODO Implement proper transactions, rollback, etc.
+		// The following three lines of code are critical. If Java gets interrupted
+		// in between, the data will remain in a slightly inconsistent state (but, I
+		// think, without serious consequences).
+		journalMongoImpl.increaseNextNanopubNo(uris.size());
+		// If interrupted here, the pages of the journal will miss the entries of this
+		// batch (e.g. contain only 999 instead of 1000 entries).
+		journalMongoImpl.appendToPages(firstNpNo, uris);
+		// If interrupted here, journal will contain entries that cannot be found in
+		// the database. These entries might be loaded later and then appear twice in
+		// the journal.
+		coll.insert(dbObjs);
+		long npNo = firstNpNo;
+		for (String artifactCode : newNanopubs.keySet()) {
+			artifactIndex.put(artifactCode, npNo);
+			npNo++;
 		}
+		artifactIndex.setWatermark(npNo);
+		journalMongoImpl.publishSnapshot();
+		List<PreparedNanopub> committed = new ArrayList<>(newNanopubs.values());
+		packageBuilder.append(firstNpNo, journalMongoImpl.getPageSize(), committed);
+		return committed;
 	}
 
 	private DBCollection getPeerCollection() {
@@ -299,45 +318,65 @@ public class NanopubStorageMongoImpl implements NanopubStorage {
 	}
 
 
-	private boolean isPackageCached(long pageNo) {
+	@Override
+	public boolean isPackageCached(long pageNo) {
 		return packageGridFs.findOne(pageNo + "") != null;
 	}
 
+	@Override
+	public FileInputStream openPackageFile(long pageNo) throws IOException {
+		if (packageFileCache == null) return null;
+		return packageFileCache.openCached(pageNo);
+	}
+
+	private void storePackage(long pageNo, File file) throws IOException {
+		GridFSInputFile i = packageGridFs.createFile(file);
+		i.setFilename(pageNo + "");
+		i.save();
+	}
+
 	@Override
 	public void writePackageToStream(long pageNo, boolean gzipped, OutputStream out) throws IOException {
+		if (pageNo == journalMongoImpl.getCurrentPageNo() && packageBuilder.writePartialPackage(pageNo, gzipped, out)) {
+			out.close();
+			return;
+		}
 		if (pageNo < 1 || pageNo >= journalMongoImpl.getCurrentPageNo()) {
 			throw new IllegalArgumentException("Not a complete page: " + pageNo);
 		}
 		GridFSDBFile f = packageGridFs.findOne(pageNo + "");
-		OutputStream packageOut = null;
-		InputStream packageAsStream = null;
 		try {
 			if (f == null) {
 				if (gzipped) {
 					out = new GZIPOutputStream(out);
 				}
-				ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-				packageOut = new GZIPOutputStream(bOut);
-				String pageContent = journalMongoImpl.getPageContent(pageNo);
-				for (String uri : pageContent.split("\\n")) {
-					Nanopub np = getNanopub(TrustyUriUtils.getArtifactCode(uri));
-					String s;
-					try {
-						s = NanopubUtils.writeToString(np, RDFFormat.TRIG);
-					} catch (RDFHandlerException ex) {
-						throw new RuntimeException("Unexpected RDF handler exception", ex);
+				// The package is written to a temporary file while it is sent, and then streamed
+				// to GridFS from there, so it is never held in memory as a whole:
+				File tempFile = File.createTempFile("package" + pageNo + "-", ".trig.gz");
+				try {
+					try (OutputStream packageOut = new GZIPOutputStream(new FileOutputStream(tempFile))) {
+						String pageContent = journalMongoImpl.getPageContent(pageNo);
+						for (String uri : pageContent.split("\\n")) {
+							Nanopub np = getNanopub(TrustyUriUtils.getArtifactCode(uri));
+							String s;
+							try {
+								s = NanopubUtils.writeToString(np, RDFFormat.TRIG);
+							} catch (RDFHandlerException ex) {
+								throw new RuntimeException("Unexpected RDF handler exception", ex);
+							}
+							byte[] bytes = (s + "\n").getBytes();
+							out.write(bytes);
+							packageOut.write(bytes);
+						}
 					}
-					byte[] bytes = (s + "\n").getBytes();
-					out.write(bytes);
-					packageOut.write(bytes);
+					storePackage(pageNo, tempFile);
+				} finally {
+					tempFile.delete();
 				}
-				packageOut.close();
-				packageAsStream = new ByteArrayInputStream(bOut.toByteArray());
-				GridFSInputFile i = packageGridFs.createFile(packageAsStream);
-				i.setFilename(pageNo + "");
-				i.save();
 			} else {
-				if (gzipped) {
+				if (packageFileCache != null) {
+					packageFileCache.writePackage(pageNo, gzipped, out, f::getInputStream);
+				} else if (gzipped) {
 					f.writeTo(out);
 				} else {
 					GZIPInputStream in = new GZIPInputStream(f.getInputStream());
@@ -351,13 +390,11 @@ public class NanopubStorageMongoImpl implements NanopubStorage {
 			}
 		} finally {
 			if (out != null) out.close();
-			if (packageOut != null) packageOut.close();
-			if (packageAsStream != null) packageAsStream.close();
 		}
 	}
 
 	@Override
-	public synchronized long getNextNanopubNo() {
+	public long getNextNanopubNo() {
 		return journalMongoImpl.getNextNanopubNo();
 	}
 
@@ -390,5 +427,9 @@ public class NanopubStorageMongoImpl implements NanopubStorage {
 		return String.valueOf(coll.getCount());
 	}
 
+	@Override
+	public void close() {
+		packageBuilder.close();
+	}
 
 }
@@ -0,0 +1,124 @@
+package ch.tkuhn.nanopub.server.http;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncResponseWriterTest {
+
+    /**
+     * Records what is done to an async request and its response. The output stream never gets
+     * ready, so the content of accepted responses is not sent.
+     */
+    private static class Exchange {
+
+        final Map<String,String> headers = new HashMap<>();
+        int status = 200;
+        String message;
+        boolean completed;
+
+        final AsyncContext ctx = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { AsyncContext.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("complete")) completed = true;
+                    return null;
+                });
+
+        final HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("startAsync")) return ctx;
+                    if (method.getName().equals("isAsyncSupported")) return true;
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        final HttpServletResponse resp = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOutputStream":
+                            return new IdleOutputStream();
+                        case "isCommitted":
+                            return false;
+                        case "reset":
+                            headers.clear();
+                            return null;
+                        case "setHeader":
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        case "sendError":
+                            status = (Integer) args[0];
+                            message = (String) args[1];
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+    }
+
+    private static class IdleOutputStream extends ServletOutputStream {
+
+        @Override
+        public boolean isReady() {
+            return false;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            throw new IllegalStateException("Not ready");
+        }
+
+    }
+
+    @Test
+    public void rejectWhenBusy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        AsyncResponseWriter.Producer blocking = out -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            out.write(1);
+        };
+        try {
+            // The test configuration has one worker and room for one waiting response:
+            Exchange producing = new Exchange();
+            AsyncResponseWriter.write(producing.req, producing.resp, blocking);
+            running.await();
+            Exchange queued = new Exchange();
+            AsyncResponseWriter.write(queued.req, queued.resp, blocking);
+            Exchange rejected = new Exchange();
+            AsyncResponseWriter.write(rejected.req, rejected.resp, blocking);
+
+            assertEquals(503, rejected.status);
+            assertEquals("10", rejected.headers.get("Retry-After"));
+            assertEquals("*", rejected.headers.get("Access-Control-Allow-Origin"));
+            assertTrue(rejected.completed);
+            for (Exchange e : new Exchange[] { producing, queued }) {
+                assertEquals(200, e.status);
+                assertFalse(e.completed);
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package ch.tkuhn.nanopub.server.http;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ByteRangeTest {
+
+    @Test
+    public void parseRanges() {
+        ByteRange r = ByteRange.parse("bytes=100-199", 1000);
+        assertEquals(100, r.getFirst());
+        assertEquals(199, r.getLast());
+        assertEquals(100, r.getSize());
+        assertEquals("bytes 100-199/1000", r.getContentRange());
+
+        r = ByteRange.parse("bytes=900-", 1000);
+        assertEquals("bytes 900-999/1000", r.getContentRange());
+
+        r = ByteRange.parse("bytes=-300", 1000);
+        assertEquals("bytes 700-999/1000", r.getContentRange());
+
+        r = ByteRange.parse("bytes=-3000", 1000);
+        assertEquals("bytes 0-999/1000", r.getContentRange());
+
+        r = ByteRange.parse("bytes=500-5000", 1000);
+        assertEquals("bytes 500-999/1000", r.getContentRange());
+    }
+
+    @Test
+    public void unsatisfiableAndIgnoredRanges() {
+        ByteRange r = ByteRange.parse("bytes=1000-", 1000);
+        assertFalse(r.isSatisfiable());
+        assertEquals("bytes */1000", r.getContentRange());
+
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-10", 1000));
+        assertNull(ByteRange.parse("bytes=0-10,20-30", 1000));
+        assertNull(ByteRange.parse("bytes=20-10", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+        assertNull(ByteRange.parse("bytes=-", 1000));
+    }
+
+}
@@ -0,0 +1,62 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ArtifactCodeIndexTest {
+
+    private final Random r = new Random(33550336);
+
+    private String randomArtifactCode() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return "RA" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    @Test
+    public void putGrowAndReopen() throws IOException {
+        File file = new File(Files.createTempDirectory("npindex").toFile(), "index");
+        String[] codes = new String[1000];
+        ArtifactCodeIndex index = new ArtifactCodeIndex(file, 64);
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = randomArtifactCode();
+            index.put(codes[i], i);
+        }
+        index.setWatermark(codes.length);
+        assertEquals(codes.length, index.size());
+        assertFalse(index.contains(randomArtifactCode()));
+        index.close();
+
+        index = new ArtifactCodeIndex(file, 64);
+        assertEquals(codes.length, index.size());
+        assertEquals(codes.length, index.getWatermark());
+        for (int i = 0; i < codes.length; i++) {
+            assertEquals(i, index.get(codes[i]));
+        }
+        index.put(codes[0], 5);
+        assertEquals(5, index.get(codes[0]));
+        assertEquals(codes.length, index.size());
+        assertFalse(index.contains("some-other-artifact-code"));
+        index.close();
+    }
+
+    @Test
+    public void onlyOneUser() throws IOException {
+        File file = new File(Files.createTempDirectory("npindex").toFile(), "index");
+        ArtifactCodeIndex index = new ArtifactCodeIndex(file, 64);
+        assertThrows(IOException.class, () -> new ArtifactCodeIndex(file, 64));
+        index.close();
+        index = new ArtifactCodeIndex(file, 64);
+        index.close();
+    }
+
+}
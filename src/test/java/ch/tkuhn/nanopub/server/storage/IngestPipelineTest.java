@@ -0,0 +1,148 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.tkuhn.nanopub.server.ServerInfo;
+import ch.tkuhn.nanopub.server.exceptions.NanopubDbException;
+
+import net.trustyuri.TrustyUriUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.junit.jupiter.api.Test;
+import org.nanopub.Nanopub;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IngestPipelineTest {
+
+    /**
+     * Keeps the artifact codes in memory, and rejects batches with a nanopub that is marked as
+     * failing. The first commit waits until it is released, so that the others pile up.
+     */
+    private static class TestStorage implements NanopubStorage {
+
+        final Set<String> stored = new HashSet<>();
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger prepared = new AtomicInteger();
+        String failing;
+
+        @Override
+        public PreparedNanopub prepareNanopub(Nanopub np) {
+            prepared.incrementAndGet();
+            return new PreparedNanopub(np, "", RDFFormat.TRIG);
+        }
+
+        @Override
+        public synchronized List<PreparedNanopub> commitNanopubs(List<PreparedNanopub> nanopubs) throws NanopubDbException {
+            if (batchSizes.isEmpty()) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            batchSizes.add(nanopubs.size());
+            for (PreparedNanopub np : nanopubs) {
+                if (np.getArtifactCode().equals(failing)) {
+                    throw new NanopubDbException("Cannot store " + failing);
+                }
+            }
+            List<PreparedNanopub> committed = new ArrayList<>();
+            for (PreparedNanopub np : nanopubs) {
+                if (stored.add(np.getArtifactCode())) committed.add(np);
+            }
+            return committed;
+        }
+
+        @Override public boolean hasNanopub(String artifactCode) { return stored.contains(artifactCode); }
+        @Override public boolean isFull() { return false; }
+        @Override public boolean isAccessible() { return true; }
+        @Override public long getNextNanopubNo() { return stored.size(); }
+        @Override public void addPeer(String peerUrl) { throw new UnsupportedOperationException(); }
+        @Override public void updatePeerState(ServerInfo peerInfo, long npno) { throw new UnsupportedOperationException(); }
+        @Override public void populatePackageCache() { throw new UnsupportedOperationException(); }
+        @Override public boolean isPackageCached(long pageNo) { return false; }
+        @Override public void writePackageToStream(long pageNo, boolean gzipped, OutputStream out) throws IOException { throw new UnsupportedOperationException(); }
+        @Override public List<String> getPeerUris() { return Collections.emptyList(); }
+        @Override public Pair<Long, Long> getLastSeenPeerState(String peerUrl) { return null; }
+        @Override public Journal getJournal() { throw new UnsupportedOperationException(); }
+        @Override public Nanopub getNanopub(String artifactCode) { return null; }
+        @Override public RawNanopub getRawNanopub(String artifactCode) { return null; }
+        @Override public String getCid(String artifactCode) { return null; }
+        @Override public String testPublish(Nanopub np) { throw new UnsupportedOperationException(); }
+
+    }
+
+    @Test
+    public void failedBatchIsCommittedOneByOne() throws Exception {
+        TestStorage storage = new TestStorage();
+        IngestPipeline pipeline = new IngestPipeline(storage, 2, 10, 10);
+        List<List<PreparedNanopub>> notified = Collections.synchronizedList(new ArrayList<>());
+        pipeline.addCommitListener(notified::add);
+
+        CompletableFuture<Boolean> first = pipeline.submit(TestNanopubs.create(0));
+        List<Nanopub> nanopubs = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            nanopubs.add(TestNanopubs.create(i));
+        }
+        storage.failing = TrustyUriUtils.getArtifactCode(nanopubs.get(1).getUri().toString());
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (Nanopub np : nanopubs) {
+            futures.add(pipeline.submit(np));
+        }
+        // The same nanopub once more, which is not new:
+        futures.add(pipeline.submit(nanopubs.get(0)));
+        // Wait until all of them are queued for the commit thread:
+        for (int i = 0; i < 500 && storage.prepared.get() < 6; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        storage.release.countDown();
+
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        assertTrue(futures.get(0).get(10, TimeUnit.SECONDS));
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> futures.get(1).get(10, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof NanopubDbException);
+        assertTrue(futures.get(2).get(10, TimeUnit.SECONDS));
+        assertTrue(futures.get(3).get(10, TimeUnit.SECONDS));
+        assertFalse(futures.get(4).get(10, TimeUnit.SECONDS));
+
+        // The first nanopub alone, then the failing batch of the others, and then each of them:
+        assertEquals(1, (int) storage.batchSizes.get(0));
+        assertEquals(5, (int) storage.batchSizes.get(1));
+        assertEquals(7, storage.batchSizes.size());
+        for (int i = 2; i < 7; i++) {
+            assertEquals(1, (int) storage.batchSizes.get(i));
+        }
+        assertEquals(4, storage.stored.size());
+        assertFalse(storage.stored.contains(storage.failing));
+        for (int i = 0; i < 100 && countNotified(notified) < 4; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, countNotified(notified));
+    }
+
+    private static int countNotified(List<List<PreparedNanopub>> notified) {
+        synchronized (notified) {
+            int n = 0;
+            for (List<PreparedNanopub> l : notified) n += l.size();
+            return n;
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class JournalSnapshotTest {
+
+    @Test
+    public void pages() {
+        JournalSnapshot s = new JournalSnapshot(42, 2500, 1000, "", "");
+        assertEquals(3, s.getCurrentPageNo());
+        assertEquals("42/2500", s.getStateId());
+
+        s = s.withNextNanopubNo(3000);
+        assertEquals(4, s.getCurrentPageNo());
+        assertEquals("42/3000", s.getStateId());
+        assertEquals(42, s.getJournalId());
+    }
+
+}
@@ -0,0 +1,107 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.junit.jupiter.api.Test;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PackageBuilderTest {
+
+    private static final int PAGE_SIZE = 3;
+
+    private final Map<Long, List<String>> stored = new ConcurrentHashMap<>();
+
+    private void store(long pageNo, File packageFile) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(packageFile))) {
+            stored.computeIfAbsent(pageNo, k -> new ArrayList<>()).add(IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static List<PreparedNanopub> prepare(RDFFormat format, int... numbers) throws Exception {
+        List<PreparedNanopub> nanopubs = new ArrayList<>();
+        for (int i : numbers) {
+            Nanopub np = TestNanopubs.create(i);
+            nanopubs.add(new PreparedNanopub(np, NanopubUtils.writeToString(np, format), format));
+        }
+        return nanopubs;
+    }
+
+    // As the package was produced on request, before it was built incrementally:
+    private static String onDemandPackage(List<PreparedNanopub> nanopubs) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (PreparedNanopub np : nanopubs) {
+            sb.append(NanopubUtils.writeToString(np.getNanopub(), RDFFormat.TRIG)).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static String partialPackage(PackageBuilder builder, long pageNo, boolean gzipped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(builder.writePartialPackage(pageNo, gzipped, out));
+        if (!gzipped) return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        // A multi-member gzip file:
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void buildAcrossPageBoundary() throws Exception {
+        File dir = Files.createTempDirectory("nppackages").toFile();
+        PackageBuilder builder = new PackageBuilder(dir, this::store);
+        List<PreparedNanopub> first = prepare(RDFFormat.TRIG, 0, 1);
+        // Other formats are serialized as TriG again:
+        List<PreparedNanopub> second = prepare(RDFFormat.JSONLD, 2, 3, 4);
+
+        builder.append(0, PAGE_SIZE, first);
+        assertEquals(onDemandPackage(first), partialPackage(builder, 1, false));
+        assertEquals(onDemandPackage(first), partialPackage(builder, 1, true));
+        assertFalse(builder.writePartialPackage(2, false, new ByteArrayOutputStream()));
+
+        builder.append(2, PAGE_SIZE, second);
+        assertFalse(builder.writePartialPackage(1, false, new ByteArrayOutputStream()));
+        assertEquals(onDemandPackage(second.subList(1, 3)), partialPackage(builder, 2, false));
+        assertEquals(onDemandPackage(second.subList(1, 3)), partialPackage(builder, 2, true));
+        builder.close();
+
+        List<PreparedNanopub> page1 = new ArrayList<>(first);
+        page1.add(second.get(0));
+        assertEquals(1, stored.size());
+        assertEquals(1, stored.get(1L).size());
+        assertEquals(onDemandPackage(page1), stored.get(1L).get(0));
+    }
+
+    @Test
+    public void waitForNextPage() throws Exception {
+        File dir = Files.createTempDirectory("nppackages").toFile();
+        PackageBuilder builder = new PackageBuilder(dir, this::store);
+        // As after a restart in the middle of page 1:
+        builder.append(1, PAGE_SIZE, prepare(RDFFormat.TRIG, 1, 2));
+        assertFalse(builder.writePartialPackage(1, false, new ByteArrayOutputStream()));
+        List<PreparedNanopub> page2 = prepare(RDFFormat.TRIG, 3, 4, 5);
+        builder.append(3, PAGE_SIZE, page2);
+        builder.close();
+        assertEquals(1, stored.size());
+        assertEquals(onDemandPackage(page2), stored.get(2L).get(0));
+    }
+
+}
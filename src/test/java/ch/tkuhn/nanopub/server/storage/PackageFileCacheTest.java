@@ -0,0 +1,90 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PackageFileCacheTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void evictLeastRecentlyUsed() throws IOException {
+        byte[][] packages = new byte[4][];
+        for (int i = 1; i <= 3; i++) {
+            packages[i] = gzip("package of page " + i);
+        }
+        long maxBytes = packages[1].length + packages[2].length + packages[3].length - 1;
+        PackageFileCache cache = PackageFileCache.create(dir, 123, maxBytes);
+        assertNotNull(cache);
+        AtomicInteger fetched = new AtomicInteger();
+
+        write(cache, 1, packages, fetched);
+        write(cache, 2, packages, fetched);
+        assertEquals(2, fetched.get());
+        // Cached, and now more recently used than page 2:
+        assertArrayEquals(packages[1], write(cache, 1, packages, fetched));
+        assertEquals(2, fetched.get());
+
+        write(cache, 3, packages, fetched);
+        assertEquals(3, fetched.get());
+        assertNull(cache.openCached(2));
+        assertFalse(new File(dir, "123/2.trig.gz").exists());
+        for (int i : new int[] {1, 3}) {
+            try (FileInputStream in = cache.openCached(i)) {
+                assertNotNull(in);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.writePackage(3, false, out, () -> { throw new IOException("Not cached"); });
+        assertEquals("package of page 3", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void secondUserGetsNoCache() throws IOException {
+        PackageFileCache cache = PackageFileCache.create(dir, 123, 1000);
+        assertNotNull(cache);
+        assertTrue(new File(dir, "cache.lock").exists());
+        assertNull(PackageFileCache.create(dir, 123, 1000));
+        // The directory of the first user is left untouched:
+        assertTrue(new File(dir, "123").isDirectory());
+        assertNull(PackageFileCache.create(dir, 456, 1000));
+        assertTrue(new File(dir, "123").isDirectory());
+        assertFalse(new File(dir, "456").exists());
+    }
+
+    private static byte[] write(PackageFileCache cache, long pageNo, byte[][] packages, AtomicInteger fetched) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.writePackage(pageNo, true, out, () -> {
+            fetched.incrementAndGet();
+            return new ByteArrayInputStream(packages[(int) pageNo]);
+        });
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzOut = new GZIPOutputStream(out)) {
+            gzOut.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+}
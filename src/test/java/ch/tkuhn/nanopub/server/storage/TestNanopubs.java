@@ -0,0 +1,29 @@
+package ch.tkuhn.nanopub.server.storage;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubCreator;
+
+/**
+ * Small trusty nanopubs for tests, which differ by the given number.
+ */
+public class TestNanopubs {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    public static Nanopub create(int i) {
+        try {
+            NanopubCreator c = new NanopubCreator("http://example.org/np" + i + "/");
+            IRI thing = vf.createIRI("http://example.org/thing" + i);
+            c.addAssertionStatement(thing, vf.createIRI("http://example.org/number"), vf.createLiteral(i));
+            c.addProvenanceStatement(vf.createIRI("http://www.w3.org/ns/prov#hadPrimarySource"), vf.createIRI("http://example.org/source"));
+            c.addPubinfoStatement(vf.createIRI("http://purl.org/dc/terms/creator"), vf.createIRI("http://example.org/creator"));
+            return c.finalizeTrustyNanopub();
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+}
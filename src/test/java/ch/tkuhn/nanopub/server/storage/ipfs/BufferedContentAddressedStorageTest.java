@@ -0,0 +1,19 @@
+package ch.tkuhn.nanopub.server.storage.ipfs;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BufferedContentAddressedStorageTest {
+
+    @Test
+    public void fileHash() {
+        // Same as "echo 'hello world' | ipfs add":
+        byte[] content = "hello world\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals("QmT78zSuBmuS4z925WZfrqQ1qHaJ56DQaTfyMUF7F8ff5o",
+                BufferedContentAddressedStorage.getFileHash(content).toBase58());
+    }
+
+}
@@ -0,0 +1,138 @@
+package ch.tkuhn.nanopub.server.storage.local;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import ch.tkuhn.nanopub.server.NanopubServerUtils;
+import ch.tkuhn.nanopub.server.ServerConf;
+import ch.tkuhn.nanopub.server.storage.PreparedNanopub;
+import ch.tkuhn.nanopub.server.storage.TestNanopubs;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NanopubStorageLocalImplTest {
+
+    private static final int PAGE_SIZE = 3;
+
+    private File dir;
+
+    @BeforeEach
+    public void createJournal() throws IOException {
+        dir = new File(ServerConf.get().getLocalStorageDir());
+        FileUtils.deleteDirectory(dir);
+        // A journal with small pages, so that a few nanopubs fill them:
+        File journalDir = new File(dir, "journal");
+        journalDir.mkdirs();
+        Properties fields = new Properties();
+        fields.setProperty("journal-version", NanopubServerUtils.journalVersion);
+        fields.setProperty("journal-id", "1234");
+        fields.setProperty("next-nanopub-no", "0");
+        fields.setProperty("page-size", PAGE_SIZE + "");
+        fields.setProperty("uri-pattern", "");
+        fields.setProperty("hash-pattern", "");
+        try (OutputStream out = new FileOutputStream(new File(journalDir, "journal.properties"))) {
+            fields.store(out, null);
+        }
+    }
+
+    private List<PreparedNanopub> prepare(NanopubStorageLocalImpl storage, int... numbers) throws Exception {
+        List<PreparedNanopub> nanopubs = new ArrayList<>();
+        for (int i : numbers) {
+            nanopubs.add(storage.prepareNanopub(TestNanopubs.create(i)));
+        }
+        return nanopubs;
+    }
+
+    private static String uris(List<PreparedNanopub> nanopubs) {
+        StringBuilder sb = new StringBuilder();
+        for (PreparedNanopub np : nanopubs) {
+            sb.append(np.getUri()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void commitOverPageBoundary() throws Exception {
+        NanopubStorageLocalImpl storage = new NanopubStorageLocalImpl();
+        List<PreparedNanopub> first = prepare(storage, 0, 1);
+        assertEquals(first, storage.commitNanopubs(first));
+        // One of them is already stored:
+        List<PreparedNanopub> second = prepare(storage, 1, 2, 3, 4);
+        List<PreparedNanopub> committed = storage.commitNanopubs(second);
+        assertEquals(second.subList(1, 4), committed);
+
+        JournalLocalImpl journal = storage.getJournal();
+        assertEquals(5, journal.getNextNanopubNo());
+        assertEquals(2, journal.getCurrentPageNo());
+        assertEquals(uris(first) + uris(committed.subList(0, 1)), journal.getPageContent(1));
+        assertEquals(uris(committed.subList(1, 3)), journal.getPageContent(2));
+        for (PreparedNanopub np : first) {
+            assertTrue(storage.hasNanopub(np.getArtifactCode()));
+            assertEquals(np.getContent(), new String(storage.getRawNanopub(np.getArtifactCode()).getBytes(), StandardCharsets.UTF_8));
+        }
+        assertNotNull(storage.getNanopub(committed.get(2).getArtifactCode()));
+        storage.close();
+        // Stored by the package builder once the first page was complete:
+        assertTrue(storage.isPackageCached(1));
+    }
+
+    @Test
+    public void recoverInterruptedCommit() throws Exception {
+        NanopubStorageLocalImpl storage = new NanopubStorageLocalImpl();
+        List<PreparedNanopub> first = prepare(storage, 10, 11);
+        storage.commitNanopubs(first);
+        List<PreparedNanopub> lost = prepare(storage, 12, 13);
+        storage.close();
+
+        // Written to the segments, but interrupted before the journal was updated:
+        SegmentStore segments = new SegmentStore(new File(dir, "segments"), ServerConf.get().getLocalSegmentBytes());
+        for (PreparedNanopub np : lost) {
+            segments.append(np.getArtifactCode(), np.getContent().getBytes(StandardCharsets.UTF_8));
+        }
+        segments.close();
+
+        storage = new NanopubStorageLocalImpl();
+        JournalLocalImpl journal = storage.getJournal();
+        assertEquals(4, journal.getNextNanopubNo());
+        assertEquals(uris(first) + uris(lost.subList(0, 1)), journal.getPageContent(1));
+        assertEquals(uris(lost.subList(1, 2)), journal.getPageContent(2));
+        for (PreparedNanopub np : lost) {
+            assertTrue(storage.hasNanopub(np.getArtifactCode()));
+        }
+        assertEquals(Arrays.asList(), storage.commitNanopubs(lost));
+        storage.close();
+
+        // Nothing is added twice on the next start:
+        storage = new NanopubStorageLocalImpl();
+        assertEquals(4, storage.getJournal().getNextNanopubNo());
+        storage.close();
+    }
+
+    @Test
+    public void repairNextNanopubNo() throws Exception {
+        NanopubStorageLocalImpl storage = new NanopubStorageLocalImpl();
+        List<PreparedNanopub> first = prepare(storage, 20, 21);
+        storage.commitNanopubs(first);
+        // Interrupted after the number was increased, but before the pages were written:
+        storage.getJournal().increaseNextNanopubNo(2);
+        storage.close();
+
+        storage = new NanopubStorageLocalImpl();
+        assertEquals(2, storage.getJournal().getNextNanopubNo());
+        assertEquals(uris(first), storage.getJournal().getPageContent(1));
+        storage.close();
+    }
+
+}
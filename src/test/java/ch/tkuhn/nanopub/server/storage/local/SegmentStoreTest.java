@@ -0,0 +1,190 @@
+package ch.tkuhn.nanopub.server.storage.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentStoreTest {
+
+    // Header of 4 length bytes and the artifact code:
+    private static final int HEADER_LENGTH = 49;
+
+    private final Random r = new Random(33550336);
+
+    private String randomArtifactCode() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return "RA" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    private static byte[] data(int i) {
+        return ("nanopub " + i + " ..........").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static File segmentFile(File dir, int segmentNo) {
+        return new File(dir, String.format("%08d.seg", segmentNo));
+    }
+
+    @Test
+    public void pointerPacking() {
+        long p = SegmentStore.toPointer(7, 123456789L);
+        assertEquals(7, SegmentStore.getSegmentNo(p));
+        assertEquals(123456789L, SegmentStore.getOffset(p));
+        p = SegmentStore.toPointer(0, (1L << 40) - 1);
+        assertEquals(0, SegmentStore.getSegmentNo(p));
+        assertEquals((1L << 40) - 1, SegmentStore.getOffset(p));
+        assertTrue(SegmentStore.toPointer(1, 0) > SegmentStore.toPointer(0, (1L << 40) - 1));
+    }
+
+    @Test
+    public void rollOverAndReopen() throws IOException {
+        File dir = Files.createTempDirectory("npsegments").toFile();
+        int recordLength = HEADER_LENGTH + data(0).length;
+        // Room for three records per segment:
+        SegmentStore segments = new SegmentStore(dir, 3 * recordLength);
+        List<String> codes = new ArrayList<>();
+        List<Long> pointers = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            codes.add(randomArtifactCode());
+            pointers.add(segments.append(codes.get(i), data(i)));
+        }
+        assertEquals(SegmentStore.toPointer(0, 0), (long) pointers.get(0));
+        assertEquals(SegmentStore.toPointer(0, 2 * recordLength), (long) pointers.get(2));
+        assertEquals(SegmentStore.toPointer(1, 0), (long) pointers.get(3));
+        assertEquals(SegmentStore.toPointer(2, 0), (long) pointers.get(6));
+        assertEquals(3 * recordLength, segmentFile(dir, 0).length());
+        assertEquals(7 * recordLength, segments.getTotalBytes());
+        segments.close();
+
+        segments = new SegmentStore(dir, 3 * recordLength);
+        for (int i = 0; i < 7; i++) {
+            assertArrayEquals(data(i), segments.read(pointers.get(i)));
+        }
+        assertEquals(SegmentStore.toPointer(2, recordLength), segments.getEndPointer());
+        segments.close();
+    }
+
+    @Test
+    public void scanAfter() throws IOException {
+        File dir = Files.createTempDirectory("npsegments").toFile();
+        SegmentStore segments = new SegmentStore(dir, 2 * (HEADER_LENGTH + data(0).length));
+        List<String> codes = new ArrayList<>();
+        List<Long> pointers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            codes.add(randomArtifactCode());
+            pointers.add(segments.append(codes.get(i), data(i)));
+        }
+        List<String> scannedCodes = new ArrayList<>();
+        List<Long> scannedPointers = new ArrayList<>();
+        segments.scanAfter(-1, (ac, p) -> {
+            scannedCodes.add(ac);
+            scannedPointers.add(p);
+        });
+        assertEquals(codes, scannedCodes);
+        assertEquals(pointers, scannedPointers);
+
+        scannedCodes.clear();
+        segments.scanAfter(pointers.get(1), (ac, p) -> scannedCodes.add(ac));
+        assertEquals(codes.subList(2, 5), scannedCodes);
+
+        scannedCodes.clear();
+        segments.scanAfter(pointers.get(4), (ac, p) -> scannedCodes.add(ac));
+        assertTrue(scannedCodes.isEmpty());
+        segments.close();
+    }
+
+    @Test
+    public void truncateAcrossSegments() throws IOException {
+        File dir = Files.createTempDirectory("npsegments").toFile();
+        int recordLength = HEADER_LENGTH + data(0).length;
+        SegmentStore segments = new SegmentStore(dir, 2 * recordLength);
+        segments.append(randomArtifactCode(), data(0));
+        long end = segments.getEndPointer();
+        for (int i = 1; i < 6; i++) {
+            segments.append(randomArtifactCode(), data(i));
+        }
+        assertTrue(segmentFile(dir, 2).exists());
+        segments.truncate(end);
+        assertEquals(end, segments.getEndPointer());
+        assertFalse(segmentFile(dir, 1).exists());
+        assertFalse(segmentFile(dir, 2).exists());
+        assertEquals(recordLength, segmentFile(dir, 0).length());
+
+        // Appending continues where the batch started:
+        String ac = randomArtifactCode();
+        assertEquals(end, segments.append(ac, data(9)));
+        assertArrayEquals(data(9), segments.read(end));
+        List<String> scanned = new ArrayList<>();
+        segments.scanAfter(-1, (c, p) -> scanned.add(c));
+        assertEquals(2, scanned.size());
+        assertEquals(ac, scanned.get(1));
+        segments.close();
+    }
+
+    @Test
+    public void repairIncompleteRecord() throws IOException {
+        File dir = Files.createTempDirectory("npsegments").toFile();
+        int recordLength = HEADER_LENGTH + data(0).length;
+        SegmentStore segments = new SegmentStore(dir, 1 << 20);
+        String ac = randomArtifactCode();
+        segments.append(ac, data(0));
+        segments.append(randomArtifactCode(), data(1));
+        segments.close();
+        // Cut the second record in the middle, as an interrupted write would:
+        try (RandomAccessFile f = new RandomAccessFile(segmentFile(dir, 0), "rw")) {
+            f.setLength(recordLength + HEADER_LENGTH + 3);
+        }
+
+        segments = new SegmentStore(dir, 1 << 20);
+        assertEquals(recordLength, segmentFile(dir, 0).length());
+        assertEquals(SegmentStore.toPointer(0, recordLength), segments.getEndPointer());
+        List<String> scanned = new ArrayList<>();
+        segments.scanAfter(-1, (c, p) -> scanned.add(c));
+        assertEquals(1, scanned.size());
+        assertEquals(ac, scanned.get(0));
+        long p = segments.append(randomArtifactCode(), data(2));
+        assertArrayEquals(data(2), segments.read(p));
+        segments.close();
+    }
+
+    @Test
+    public void readOnlyWhileLocked() throws IOException {
+        File dir = Files.createTempDirectory("npsegments").toFile();
+        SegmentStore segments = new SegmentStore(dir, 1 << 20);
+        assertFalse(segments.isReadOnly());
+        long p1 = segments.append(randomArtifactCode(), data(1));
+
+        SegmentStore other = new SegmentStore(dir, 1 << 20);
+        assertTrue(other.isReadOnly());
+        assertArrayEquals(data(1), other.read(p1));
+        assertThrows(IOException.class, () -> other.append(randomArtifactCode(), data(2)));
+        assertThrows(IOException.class, () -> other.truncate(0));
+        // Records appended by the writing process are seen by the read-only one:
+        long p2 = segments.append(randomArtifactCode(), data(2));
+        List<Long> scanned = new ArrayList<>();
+        other.scanAfter(p1, (c, p) -> scanned.add(p));
+        assertEquals(1, scanned.size());
+        assertEquals(p2, (long) scanned.get(0));
+        other.close();
+        segments.close();
+
+        segments = new SegmentStore(dir, 1 << 20);
+        assertFalse(segments.isReadOnly());
+        segments.close();
+    }
+
+}